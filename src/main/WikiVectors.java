@@ -29,6 +29,13 @@ import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import perf.VectorDictionary;
 
@@ -37,52 +44,139 @@ import perf.VectorDictionary;
  * to generate document vectors from wiki line documents and a downloaded word embedding dictionary,
  * as a precursor for indexing vectors in benchmark runs. It's provided for "offline" (manual) use,
  * and doesn't factor into benchmark execution.
+ *
+ * <p>Documents flow through a pipeline: one thread reads batches of lines, a pool of threads embeds
+ * them, and the calling thread writes the vectors back out in line order.
  */
 public class WikiVectors {
 
+  // Lines per unit of work handed to an embedding thread:
+  private static final int BATCH_SIZE = 1000;
+
   private final VectorDictionary dict;
+  private final int numThreads;
+  private final ThreadLocal<VectorDictionary.TextVectorizer> vectorizers;
 
   int dimension;
 
   public static void main(String[] args) throws Exception {
-    if (args.length != 3) {
-      System.err.println("usage: WikiVectors <vectorDictionary> <lineDocs> <docVectorOutput>");
+    if (args.length != 3 && args.length != 4) {
+      System.err.println("usage: WikiVectors <vectorDictionary> <lineDocs> <docVectorOutput> [numThreads]");
       System.exit(-1);
     }
-    WikiVectors wv = new WikiVectors(new VectorDictionary(args[0]));
+    int numThreads = args.length == 4 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+    WikiVectors wv = new WikiVectors(new VectorDictionary(args[0]), numThreads);
     wv.computeVectors(args[1], args[2]);
   }
 
-  WikiVectors(VectorDictionary dict) {
+  WikiVectors(VectorDictionary dict, int numThreads) {
     this.dict = dict;
+    this.numThreads = numThreads;
+    vectorizers = ThreadLocal.withInitial(dict::newTextVectorizer);
   }
 
-  void computeVectors(String lineDocFile, String outputFile) throws IOException {
+  void computeVectors(String lineDocFile, String outputFile) throws IOException, InterruptedException {
     int count = 0;
     CharsetDecoder dec=StandardCharsets.UTF_8.newDecoder()
       .onMalformedInput(CodingErrorAction.REPLACE); // replace invalid input with the UTF8 replacement character
+    ExecutorService embedders = Executors.newFixedThreadPool(numThreads);
+    // Futures of embedded batches, in line order; bounded so the reader
+    // can't run arbitrarily far ahead of the writer:
+    BlockingQueue<Future<byte[]>> batches = new ArrayBlockingQueue<>(4 * numThreads);
     try (OutputStream out = Files.newOutputStream(Paths.get(outputFile));
          Reader r = Channels.newReader(FileChannel.open(Paths.get(lineDocFile)), dec, -1);
          BufferedReader in = new BufferedReader(r)) {
-      String lineDoc;
-      byte[] buffer = new byte[dict.dimension * Float.BYTES];
-      ByteBuffer bbuf = ByteBuffer.wrap(buffer)
-        .order(ByteOrder.LITTLE_ENDIAN);
-      FloatBuffer fbuf = bbuf.asFloatBuffer();
-      while ((lineDoc = in.readLine()) != null) {
-        float[] dvec = dict.computeTextVector(lineDoc);
-        fbuf.position(0);
-        fbuf.put(dvec);
-        out.write(buffer);
-        if (++count % 10000 == 0) {
-          System.out.print("wrote " + count + "\n");
+      Thread reader = new Thread(() -> readBatches(in, embedders, batches));
+      reader.setName("WikiVectors reader");
+      reader.setDaemon(true);
+      reader.start();
+
+      while (true) {
+        byte[] vectors = batches.take().get();
+        if (vectors == null) {
+          break;
+        }
+        out.write(vectors);
+        int batchCount = vectors.length / (dict.dimension * Float.BYTES);
+        for (int i = 0; i < batchCount; i++) {
+          if (++count % 10000 == 0) {
+            System.out.print("wrote " + count + "\n");
+          }
         }
       }
       System.out.println("wrote " + count);
     } catch (IOException e) {
       System.err.println("An error occurred on line " + (count + 1));
       throw e;
+    } catch (ExecutionException e) {
+      // An embedder failed, or the reader thread did:
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    } finally {
+      embedders.shutdownNow();
+    }
+  }
+
+  // Runs in the reader thread: reads batches of lines and submits
+  // each to the embedders.  A null result marks the end; if the
+  // reader fails, it hands the failure to the writer as a failed
+  // batch instead, so the writer never waits on a dead reader:
+  private void readBatches(BufferedReader in, ExecutorService embedders, BlockingQueue<Future<byte[]>> batches) {
+    try {
+      try {
+        int lineCount = 0;
+        while (true) {
+          String[] lines = new String[BATCH_SIZE];
+          int upto = 0;
+          String lineDoc;
+          while (upto < BATCH_SIZE && (lineDoc = in.readLine()) != null) {
+            lines[upto++] = lineDoc;
+          }
+          if (upto == 0) {
+            break;
+          }
+          final int batchLineCount = upto;
+          final int firstLine = lineCount;
+          batches.put(embedders.submit(() -> embed(lines, batchLineCount, firstLine)));
+          lineCount += upto;
+          if (upto < BATCH_SIZE) {
+            break;
+          }
+        }
+        batches.put(CompletableFuture.completedFuture(null));
+      } catch (IOException | RuntimeException | Error e) {
+        CompletableFuture<byte[]> failed = new CompletableFuture<>();
+        failed.completeExceptionally(e);
+        batches.put(failed);
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(ie);
+    }
+  }
+
+  // Runs in an embedder thread:
+  private byte[] embed(String[] lines, int lineCount, int firstLine) {
+    VectorDictionary.TextVectorizer vectorizer = vectorizers.get();
+    byte[] buffer = new byte[lineCount * dict.dimension * Float.BYTES];
+    FloatBuffer fbuf = ByteBuffer.wrap(buffer)
+      .order(ByteOrder.LITTLE_ENDIAN)
+      .asFloatBuffer();
+    for (int i = 0; i < lineCount; i++) {
+      try {
+        fbuf.put(vectorizer.vector(lines[i]));
+      } catch (RuntimeException e) {
+        throw new RuntimeException("An error occurred on line " + (firstLine + i + 1), e);
+      }
     }
+    return buffer;
   }
 
 }
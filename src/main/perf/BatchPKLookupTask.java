@@ -0,0 +1,197 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+// Like PKLookupTask, but resolves its ids as one batch, the way a
+// batch update/dedup pass would: ids are sorted once, each segment
+// is skipped if its min/max id range misses the batch, and otherwise
+// only the still-unresolved ids in its range (and, if enabled, that
+// pass the segment's bloom filter) are looked up, in increasing
+// order so each seek moves the terms enum forward:
+final class BatchPKLookupTask extends Task {
+  // Sorted, in term (unsigned byte) order:
+  private final BytesRef[] ids;
+  private final int[] answers;
+  private final int ord;
+
+  @Override
+  public String getCategory() {
+    return "BatchPKLookup";
+  }
+
+  private BatchPKLookupTask(BatchPKLookupTask other) {
+    ids = other.ids;
+    ord = other.ord;
+    answers = new int[ids.length];
+    Arrays.fill(answers, -1);
+  }
+
+  public BatchPKLookupTask(int maxDoc, Random random, int count, Set<BytesRef> seen, int ord) {
+    this.ord = ord;
+    ids = new BytesRef[count];
+    answers = new int[count];
+    Arrays.fill(answers, -1);
+    int idx = 0;
+    while(idx < count) {
+      final BytesRef id = new BytesRef(LineFileDocs.intToID(random.nextInt(maxDoc)));
+      if (!seen.contains(id)) {
+        seen.add(id);
+        ids[idx++] = id;
+      }
+    }
+    Arrays.sort(ids);
+  }
+
+  @Override
+  public Task clone() {
+    return new BatchPKLookupTask(this);
+  }
+
+  @Override
+  public void go(IndexState state) throws IOException {
+
+    final IndexSearcher searcher = state.mgr.acquire();
+    try {
+      final List<LeafReaderContext> subReaders = searcher.getIndexReader().leaves();
+
+      // Indices (into ids) of ids not yet found, in sorted order:
+      int[] pending = new int[ids.length];
+      for(int idx=0;idx<ids.length;idx++) {
+        pending[idx] = idx;
+      }
+      int pendingCount = ids.length;
+      int[] stillPending = new int[ids.length];
+
+      for(int subIDX=0;subIDX<subReaders.size() && pendingCount > 0;subIDX++) {
+        LeafReaderContext ctx = subReaders.get(subIDX);
+        IndexState.PKLookupState pkState = state.getPKLookupState(ctx.reader(), "id");
+        Bits liveDocs = ctx.reader().getLiveDocs();
+
+        // Only ids within this segment's [min, max] can match:
+        final int from = lowerBound(pending, pendingCount, pkState.minTerm);
+        final int to = upperBound(pending, pendingCount, pkState.maxTerm);
+        if (from >= to) {
+          continue;
+        }
+
+        int stillPendingCount = 0;
+        for(int i=0;i<from;i++) {
+          stillPending[stillPendingCount++] = pending[i];
+        }
+        for(int i=from;i<to;i++) {
+          final int idx = pending[i];
+          int docID = DocIdSetIterator.NO_MORE_DOCS;
+          if (pkState.bloom != null && pkState.bloom.mightContain(ids[idx]) == false) {
+            state.pkBloomSeeksAvoided.increment();
+          } else if (pkState.termsEnum.seekExact(ids[idx]) == false) {
+            if (pkState.bloom != null) {
+              state.pkBloomFalsePositives.increment();
+            }
+          } else {
+            PostingsEnum docs = pkState.termsEnum.postings(pkState.postingsEnum, 0);
+            for (int d = docs.nextDoc(); d != DocIdSetIterator.NO_MORE_DOCS; d = docs.nextDoc()) {
+              if (liveDocs == null || liveDocs.get(d)) {
+                docID = d;
+                break;
+              }
+            }
+          }
+          if (docID != DocIdSetIterator.NO_MORE_DOCS) {
+            answers[idx] = ctx.docBase + docID;
+          } else {
+            stillPending[stillPendingCount++] = idx;
+          }
+        }
+        for(int i=to;i<pendingCount;i++) {
+          stillPending[stillPendingCount++] = pending[i];
+        }
+
+        int[] tmp = pending;
+        pending = stillPending;
+        stillPending = tmp;
+        pendingCount = stillPendingCount;
+      }
+    } finally {
+      state.mgr.release(searcher);
+    }
+  }
+
+  // First position in pending whose id is >= target:
+  private int lowerBound(int[] pending, int count, BytesRef target) {
+    int lo = 0;
+    int hi = count;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (ids[pending[mid]].compareTo(target) < 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  // First position in pending whose id is > target:
+  private int upperBound(int[] pending, int count, BytesRef target) {
+    int lo = 0;
+    int hi = count;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (ids[pending[mid]].compareTo(target) <= 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  @Override
+  public String toString() {
+    return "BatchPK" + ord + "[" + ids.length + "]";
+  }
+
+  @Override
+  public long checksum() {
+    // Same as PKLookupTask: not meaningful
+    return 0;
+  }
+
+  @Override
+  public void printResults(PrintStream out, IndexState state) throws IOException {
+    for(int idx=0;idx<ids.length;idx++) {
+      if (answers[idx] == -1 && !state.hasDeletions) {
+        throw new RuntimeException("BatchPKLookup: id=" + ids[idx].utf8ToString() + " failed to find a matching document");
+      }
+    }
+  }
+}
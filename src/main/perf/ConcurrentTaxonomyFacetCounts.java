@@ -0,0 +1,132 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.facet.Facets;
+import org.apache.lucene.facet.FacetsCollector;
+import org.apache.lucene.facet.FacetsCollector.MatchingDocs;
+import org.apache.lucene.facet.FacetsConfig;
+import org.apache.lucene.facet.taxonomy.FastTaxonomyFacetCounts;
+import org.apache.lucene.facet.taxonomy.TaxonomyReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+
+// Taxonomy facet counts computed one leaf per task on an
+// executor, then summed, like Lucene's
+// ConcurrentSortedSetDocValuesFacetCounts does for SSDV.  Each
+// leaf is counted (and rolled up) by a FastTaxonomyFacetCounts
+// over just that leaf; since rollup is a sum, adding the per-leaf
+// values gives the same counts as counting all leaves at once.
+final class ConcurrentTaxonomyFacetCounts {
+
+  private ConcurrentTaxonomyFacetCounts() {
+  }
+
+  /** Counts the docs the query matched. */
+  public static Facets count(String indexFieldName, TaxonomyReader taxoReader, FacetsConfig config,
+                             FacetsCollector fc, ExecutorService exec) throws IOException, InterruptedException {
+    final List<Future<LeafCounts>> results = new ArrayList<>();
+    for (MatchingDocs hits : fc.getMatchingDocs()) {
+      if (hits.totalHits > 0) {
+        final FacetsCollector leafHits = new LeafFacetsCollector(hits);
+        results.add(exec.submit(() -> new LeafCounts(indexFieldName, taxoReader, config, leafHits)));
+      }
+    }
+    return merge(indexFieldName, taxoReader, config, results);
+  }
+
+  /** Counts all (live) docs in the reader. */
+  public static Facets countAll(String indexFieldName, IndexReader reader, TaxonomyReader taxoReader, FacetsConfig config,
+                                ExecutorService exec) throws IOException, InterruptedException {
+    final List<Future<LeafCounts>> results = new ArrayList<>();
+    for (LeafReaderContext ctx : reader.leaves()) {
+      results.add(exec.submit(() -> new LeafCounts(indexFieldName, ctx.reader(), taxoReader, config)));
+    }
+    return merge(indexFieldName, taxoReader, config, results);
+  }
+
+  private static Facets merge(String indexFieldName, TaxonomyReader taxoReader, FacetsConfig config,
+                              List<Future<LeafCounts>> results) throws IOException, InterruptedException {
+    final LeafCounts merged = new LeafCounts(indexFieldName, taxoReader, config, new FacetsCollector());
+    final int size = taxoReader.getSize();
+    for (Future<LeafCounts> result : results) {
+      final LeafCounts leafCounts;
+      try {
+        leafCounts = result.get();
+      } catch (ExecutionException ee) {
+        if (ee.getCause() instanceof IOException) {
+          throw (IOException) ee.getCause();
+        }
+        throw new RuntimeException(ee.getCause());
+      }
+      merged.add(leafCounts, size);
+    }
+    return merged;
+  }
+
+  // Facet counts for one leaf, or, created over no hits, the sum
+  // of all leaves' counts:
+  private static final class LeafCounts extends FastTaxonomyFacetCounts {
+
+    LeafCounts(String indexFieldName, TaxonomyReader taxoReader, FacetsConfig config, FacetsCollector fc) throws IOException {
+      super(indexFieldName, taxoReader, config, fc);
+    }
+
+    LeafCounts(String indexFieldName, IndexReader reader, TaxonomyReader taxoReader, FacetsConfig config) throws IOException {
+      super(indexFieldName, reader, taxoReader, config);
+    }
+
+    @Override
+    protected boolean useHashTable(FacetsCollector fc, TaxonomyReader taxoReader) {
+      // The merged counts start with no hits, but usually end up
+      // dense, so don't let them pick the sparse hash table:
+      return fc != null && fc.getMatchingDocs().isEmpty() == false && super.useHashTable(fc, taxoReader);
+    }
+
+    void add(LeafCounts other, int size) {
+      for (int ord = 0; ord < size; ord++) {
+        final int value = other.getValue(ord);
+        if (value != 0) {
+          increment(ord, value);
+        }
+      }
+    }
+  }
+
+  // Exposes just one leaf's hits to FastTaxonomyFacetCounts:
+  private static final class LeafFacetsCollector extends FacetsCollector {
+    private final List<MatchingDocs> matchingDocs;
+
+    LeafFacetsCollector(MatchingDocs hits) {
+      matchingDocs = Collections.singletonList(hits);
+    }
+
+    @Override
+    public List<MatchingDocs> getMatchingDocs() {
+      return matchingDocs;
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.lucene.util.InfoStream;
+
+// Tracks how long IndexWriter stalls indexing threads because
+// flushing fell behind, from the (DWFC) infoStream messages it
+// emits when it starts and stops stalling.  Shared by
+// IngestMetrics and IndexWriterProfiler:
+class FlushStallTracker {
+
+  // Finished stalls; the in-progress one, if any, started at
+  // stallStartNS:
+  private final LongAdder stallNS = new LongAdder();
+  private final LongAdder stallCount = new LongAdder();
+  private volatile long stallStartNS;
+
+  /** Returns an InfoStream that tracks flush stalls and passes
+   *  everything on to the delegate. */
+  public InfoStream wrap(InfoStream delegate) {
+    return new InfoStream() {
+      @Override
+      public void message(String component, String message) {
+        // IndexWriter checks for DWFC, but logs the stall
+        // messages as DW:
+        if (component.equals("DW") || component.equals("DWFC")) {
+          if (message.startsWith("now stalling")) {
+            stallStartNS = System.nanoTime();
+            stallCount.increment();
+          } else if (message.startsWith("done stalling")) {
+            final long startNS = stallStartNS;
+            if (startNS != 0) {
+              stallNS.add(System.nanoTime() - startNS);
+              stallStartNS = 0;
+            }
+          }
+        }
+        if (delegate.isEnabled(component)) {
+          delegate.message(component, message);
+        }
+      }
+
+      @Override
+      public boolean isEnabled(String component) {
+        return component.equals("DWFC") || delegate.isEnabled(component);
+      }
+
+      @Override
+      public void close() throws IOException {
+        delegate.close();
+      }
+    };
+  }
+
+  /** True while IndexWriter is stalling indexing threads. */
+  public boolean isStalled() {
+    return stallStartNS != 0;
+  }
+
+  /** Number of stalls started so far. */
+  public long stallCount() {
+    return stallCount.sum();
+  }
+
+  /** Total stall time up to nowNS, including the in-progress
+   *  stall, if any. */
+  public long totalStallNS(long nowNS) {
+    final long startNS = stallStartNS;
+    return stallNS.sum() + (startNS != 0 ? nowNS - startNS : 0);
+  }
+}
@@ -18,21 +18,28 @@ package perf;
  */
 
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.lucene.document.IntPoint;
 import org.apache.lucene.facet.FacetsConfig;
-import org.apache.lucene.facet.sortedset.DefaultSortedSetDocValuesReaderState;
 import org.apache.lucene.facet.sortedset.SortedSetDocValuesReaderState;
 import org.apache.lucene.facet.taxonomy.TaxonomyReader;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.PointValues.IntersectVisitor;
 import org.apache.lucene.index.PointValues.Relation;
 import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
@@ -40,7 +47,6 @@ import org.apache.lucene.search.ReferenceManager;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.spell.DirectSpellChecker;
 import org.apache.lucene.search.vectorhighlight.FastVectorHighlighter;
-import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.StringHelper;
 import org.apache.lucene.util.bkd.BKDReader.IntersectState;
@@ -59,9 +65,54 @@ class IndexState {
   public final FacetsConfig facetsConfig;
   // maps facet dimension to method (sortedset, taxonomy)
   public final Map<String,Integer> facetFields;
-  public final Map<Object, ThreadLocal<PKLookupState>> pkLookupStates = new HashMap<>();
-  public final Map<Object, ThreadLocal<PointsPKLookupState>> pointsPKLookupStates = new HashMap<>();
-  private SortedSetDocValuesReaderState sortedSetReaderState;
+  // Per-segment (keyed by core cache key), per-thread PK lookup
+  // state.  Segments are added as refreshes expose them, and
+  // removed when their core closes, so this works with NRT reopens:
+  private final Map<Object, ThreadLocal<PKLookupState>> pkLookupStates = new ConcurrentHashMap<>();
+  private final Map<Object, ThreadLocal<PointsPKLookupState>> pointsPKLookupStates = new ConcurrentHashMap<>();
+
+  // Per-segment bloom filters for PK lookups, keyed by core cache
+  // key; built when a segment is first looked up and removed when
+  // its core closes.  Bits per key is 0 if disabled:
+  private int pkBloomBitsPerKey;
+  private final Map<Object, PKBloomFilter> pkBloomFilters = new ConcurrentHashMap<>();
+  // PK lookups that the bloom filter saved a seek for, and ones
+  // where it said maybe but the segment didn't have the id:
+  public final LongAdder pkBloomSeeksAvoided = new LongAdder();
+  public final LongAdder pkBloomFalsePositives = new LongAdder();
+  public final LongAdder pkBloomBuildNanos = new LongAdder();
+
+  // Per-category totals for SearchTasks that ran with
+  // -totalHitsThreshold, ie with both exact and early terminated
+  // hit counting:
+  private final Map<String,EarlyTerminationStats> earlyTerminationStats = new ConcurrentHashMap<>();
+
+  private static final class EarlyTerminationStats {
+    final LongAdder count = new LongAdder();
+    final LongAdder exactNanos = new LongAdder();
+    final LongAdder approxNanos = new LongAdder();
+    final LongAdder identicalTopN = new LongAdder();
+    final LongAdder approxLowerBound = new LongAdder();
+  }
+
+  // Non-null if facet SearchTasks should compare sequential and
+  // concurrent counting (-compareConcurrentFacets):
+  private volatile ExecutorService facetExecutor;
+
+  // Per-category totals for facet SearchTasks that compared
+  // sequential and concurrent counting:
+  private final Map<String,FacetComparisonStats> facetComparisonStats = new ConcurrentHashMap<>();
+
+  private static final class FacetComparisonStats {
+    final LongAdder count = new LongAdder();
+    final LongAdder queryNanos = new LongAdder();
+    final LongAdder sequentialNanos = new LongAdder();
+    final LongAdder concurrentNanos = new LongAdder();
+    final LongAdder identical = new LongAdder();
+  }
+
+  // Non-null if SearchTasks should time their phases (-profilePhases):
+  private volatile SearchPhaseTimer.Stats searchPhaseStats;
 
   public IndexState(ReferenceManager<IndexSearcher> mgr, TaxonomyReader taxoReader, String textFieldName, DirectSpellChecker spellChecker,
                     String hiliteImpl, FacetsConfig facetsConfig, Map<String,Integer> facetFields) throws IOException {
@@ -87,41 +138,278 @@ class IndexState {
     IndexSearcher searcher = mgr.acquire();
     try {
       hasDeletions = searcher.getIndexReader().hasDeletions();
-
-      for(LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
-        pkLookupStates.put(ctx.reader().getCoreCacheHelper().getKey(), new ThreadLocal<PKLookupState>());
-        pointsPKLookupStates.put(ctx.reader().getCoreCacheHelper().getKey(), new ThreadLocal<PointsPKLookupState>());
-      }
+      addSegments(searcher);
     } finally {
       mgr.release(searcher);
     }
+
+    // Register new segments as soon as a refresh exposes them, and
+    // build the new reader's SSDV facet states; lookups and facet
+    // tasks also add anything they see first, since tasks can
+    // acquire the new searcher before this listener runs:
+    mgr.addListener(new ReferenceManager.RefreshListener() {
+        @Override
+        public void beforeRefresh() {
+        }
+
+        @Override
+        public void afterRefresh(boolean didRefresh) throws IOException {
+          if (didRefresh) {
+            IndexSearcher searcher = mgr.acquire();
+            try {
+              addSegments(searcher);
+              ssdvFacetStates.warm(searcher.getIndexReader());
+            } finally {
+              mgr.release(searcher);
+            }
+          }
+        }
+      });
+  }
+
+  private void addSegments(IndexSearcher searcher) {
+    for(LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+      pkLookupStates(ctx.reader());
+      pointsPKLookupStates(ctx.reader());
+    }
+  }
+
+  private ThreadLocal<PKLookupState> pkLookupStates(LeafReader reader) {
+    final IndexReader.CacheHelper cacheHelper = reader.getCoreCacheHelper();
+    return pkLookupStates.computeIfAbsent(cacheHelper.getKey(), key -> {
+        cacheHelper.addClosedListener(pkLookupStates::remove);
+        return new ThreadLocal<PKLookupState>();
+      });
+  }
+
+  private ThreadLocal<PointsPKLookupState> pointsPKLookupStates(LeafReader reader) {
+    final IndexReader.CacheHelper cacheHelper = reader.getCoreCacheHelper();
+    return pointsPKLookupStates.computeIfAbsent(cacheHelper.getKey(), key -> {
+        cacheHelper.addClosedListener(pointsPKLookupStates::remove);
+        return new ThreadLocal<PointsPKLookupState>();
+      });
+  }
+
+  /** Returns the calling thread's PK lookup state for this segment. */
+  public PKLookupState getPKLookupState(LeafReader reader, String field) throws IOException {
+    final ThreadLocal<PKLookupState> states = pkLookupStates(reader);
+    PKLookupState pkState = states.get();
+    if (pkState == null) {
+      pkState = new PKLookupState(reader, field, getPKBloomFilter(reader, field));
+      states.set(pkState);
+    }
+    return pkState;
+  }
+
+  /** Returns the calling thread's points PK lookup state for this segment. */
+  public PointsPKLookupState getPointsPKLookupState(LeafReader reader, String field) throws IOException {
+    final ThreadLocal<PointsPKLookupState> states = pointsPKLookupStates(reader);
+    PointsPKLookupState pkState = states.get();
+    if (pkState == null) {
+      pkState = new PointsPKLookupState(reader, field);
+      states.set(pkState);
+    }
+    return pkState;
+  }
+
+  /** Enables per-segment bloom filters for PK lookups; must be
+   *  called before any tasks run. */
+  public void enablePKBloomFilters(int bitsPerKey) {
+    if (bitsPerKey <= 0) {
+      throw new IllegalArgumentException("bitsPerKey must be > 0; got: " + bitsPerKey);
+    }
+    pkBloomBitsPerKey = bitsPerKey;
+  }
+
+  /** Enables per-category phase timing of SearchTasks; must be
+   *  called before any tasks run. */
+  public void enableSearchPhaseTimers() {
+    searchPhaseStats = new SearchPhaseTimer.Stats();
+  }
+
+  /** Returns a timer for one SearchTask, which does nothing unless
+   *  phase timing is enabled. */
+  public SearchPhaseTimer newSearchPhaseTimer() {
+    final SearchPhaseTimer.Stats stats = searchPhaseStats;
+    return stats == null ? SearchPhaseTimer.DISABLED : stats.newTimer();
+  }
+
+  public void printSearchPhaseStats(PrintStream out) {
+    final SearchPhaseTimer.Stats stats = searchPhaseStats;
+    if (stats != null) {
+      stats.print(out);
+    }
+  }
+
+  /** Returns the PK bloom filter for this segment, building it
+   *  if this is the first time we see the segment, or null if bloom
+   *  filters are disabled. */
+  public PKBloomFilter getPKBloomFilter(LeafReader reader, String field) throws IOException {
+    if (pkBloomBitsPerKey == 0) {
+      return null;
+    }
+    final Object key = reader.getCoreCacheHelper().getKey();
+    PKBloomFilter filter = pkBloomFilters.get(key);
+    if (filter == null) {
+      try {
+        filter = pkBloomFilters.computeIfAbsent(key, k -> {
+            try {
+              long t0 = System.nanoTime();
+              PKBloomFilter f = PKBloomFilter.build(reader, field, pkBloomBitsPerKey);
+              pkBloomBuildNanos.add(System.nanoTime() - t0);
+              if (f != null) {
+                // Drop it once the segment is gone (merged away, or closed):
+                reader.getCoreCacheHelper().addClosedListener(pkBloomFilters::remove);
+              }
+              return f;
+            } catch (IOException ioe) {
+              throw new UncheckedIOException(ioe);
+            }
+          });
+      } catch (UncheckedIOException uioe) {
+        throw uioe.getCause();
+      }
+    }
+    return filter;
+  }
+
+  public void printPKBloomStats(PrintStream out) {
+    if (pkBloomBitsPerKey == 0) {
+      return;
+    }
+    long ramBytes = 0;
+    for (PKBloomFilter filter : pkBloomFilters.values()) {
+      ramBytes += filter.ramBytesUsed();
+    }
+    final long avoided = pkBloomSeeksAvoided.sum();
+    final long falsePositives = pkBloomFalsePositives.sum();
+    // Of the lookups for ids not in a segment, how many the filter
+    // failed to reject:
+    final double fpRate = avoided + falsePositives == 0 ? 0.0 : 100.0 * falsePositives / (avoided + falsePositives);
+    out.println(String.format(Locale.ROOT, "PK bloom filters: %d bits/key; %d live filters using %.1f MB; built in %.1f msec total; %d seeks avoided; %d false positives (%.2f%%)",
+                              pkBloomBitsPerKey, pkBloomFilters.size(), ramBytes/1024./1024., pkBloomBuildNanos.sum()/1000000.,
+                              avoided, falsePositives, fpRate));
+  }
+
+  public void recordEarlyTermination(String category, long exactNanos, long approxNanos, boolean identicalTopN, boolean approxLowerBound) {
+    final EarlyTerminationStats stats = earlyTerminationStats.computeIfAbsent(category, k -> new EarlyTerminationStats());
+    stats.count.increment();
+    stats.exactNanos.add(exactNanos);
+    stats.approxNanos.add(approxNanos);
+    if (identicalTopN) {
+      stats.identicalTopN.increment();
+    }
+    if (approxLowerBound) {
+      stats.approxLowerBound.increment();
+    }
   }
 
-  private final Map<String,SortedSetDocValuesReaderState> ssdvFacetStates = new HashMap<>();
+  public void printEarlyTerminationStats(PrintStream out, int totalHitsThreshold) {
+    if (earlyTerminationStats.isEmpty()) {
+      return;
+    }
+    out.println("\nEarly termination (totalHitsThreshold=" + totalHitsThreshold + ") vs exact hit counts, by category:");
+    out.println(String.format(Locale.ROOT, "  %-24s %8s %10s %10s %8s %10s %10s",
+                              "cat", "count", "exactMS", "approxMS", "speedup", "sameTopN", "approxTot"));
+    for (Map.Entry<String,EarlyTerminationStats> ent : new TreeMap<>(earlyTerminationStats).entrySet()) {
+      final EarlyTerminationStats stats = ent.getValue();
+      final long count = stats.count.sum();
+      final long exactNanos = stats.exactNanos.sum();
+      final long approxNanos = stats.approxNanos.sum();
+      // sameTopN: tasks whose top N docs (and scores or sort
+      // values) matched exactly; approxTot: tasks whose early
+      // terminated total hit count was only a lower bound:
+      out.println(String.format(Locale.ROOT, "  %-24s %8d %10.3f %10.3f %7.2fx %9.1f%% %9.1f%%",
+                                ent.getKey(), count, exactNanos/1000000.0/count, approxNanos/1000000.0/count,
+                                approxNanos == 0 ? 0.0 : (double) exactNanos / approxNanos,
+                                100.0 * stats.identicalTopN.sum() / count, 100.0 * stats.approxLowerBound.sum() / count));
+    }
+  }
 
-  public synchronized SortedSetDocValuesReaderState getSortedSetReaderState(String facetGroupField) throws IOException {
-    SortedSetDocValuesReaderState result = ssdvFacetStates.get(facetGroupField);
-    if (result == null) {
-      IndexSearcher searcher = mgr.acquire();
-      result = new DefaultSortedSetDocValuesReaderState(searcher.getIndexReader(), facetGroupField);
-      // NOTE: do not release the acquired searcher here!  Really we should have a close() in this class where we release...
-      ssdvFacetStates.put(facetGroupField, result);
+  // SSDV facet reader states, per refreshed searcher:
+  private final SortedSetReaderStateCache ssdvFacetStates = new SortedSetReaderStateCache();
+
+  /** Returns the SSDV facet state for this (top-level) reader,
+   *  which must be the reader of a searcher the caller holds. */
+  public SortedSetDocValuesReaderState getSortedSetReaderState(IndexReader reader, String facetGroupField) throws IOException {
+    return ssdvFacetStates.get(reader, facetGroupField);
+  }
+
+  public void printSortedSetReaderStateStats(PrintStream out) {
+    ssdvFacetStates.printStats(out);
+  }
+
+  /** Makes facet SearchTasks count each taxonomy and SSDV request
+   *  both sequentially and concurrently, one leaf per task on exec;
+   *  must be called before any tasks run. */
+  public void enableFacetComparison(ExecutorService exec) {
+    facetExecutor = exec;
+  }
+
+  /** Returns the executor for concurrent facet counting, or null
+   *  if we are not comparing facet methods. */
+  public ExecutorService getFacetExecutor() {
+    return facetExecutor;
+  }
+
+  public void recordFacetComparison(String category, long queryNanos, long sequentialNanos, long concurrentNanos, boolean identical) {
+    final FacetComparisonStats stats = facetComparisonStats.computeIfAbsent(category, k -> new FacetComparisonStats());
+    stats.count.increment();
+    stats.queryNanos.add(queryNanos);
+    stats.sequentialNanos.add(sequentialNanos);
+    stats.concurrentNanos.add(concurrentNanos);
+    if (identical) {
+      stats.identical.increment();
     }
+  }
 
-    return result;
+  public void printFacetComparisonStats(PrintStream out) {
+    if (facetComparisonStats.isEmpty()) {
+      return;
+    }
+    out.println("\nSequential vs concurrent facet counting, by category:");
+    out.println(String.format(Locale.ROOT, "  %-24s %8s %10s %10s %10s %8s %10s",
+                              "cat", "count", "queryMS", "seqMS", "concMS", "speedup", "same"));
+    for (Map.Entry<String,FacetComparisonStats> ent : new TreeMap<>(facetComparisonStats).entrySet()) {
+      final FacetComparisonStats stats = ent.getValue();
+      final long count = stats.count.sum();
+      final long sequentialNanos = stats.sequentialNanos.sum();
+      final long concurrentNanos = stats.concurrentNanos.sum();
+      // queryMS is the query alone (0 for browse-only tasks); seqMS
+      // and concMS are just facet counting:
+      out.println(String.format(Locale.ROOT, "  %-24s %8d %10.3f %10.3f %10.3f %7.2fx %9.1f%%",
+                                ent.getKey(), count, stats.queryNanos.sum()/1000000.0/count,
+                                sequentialNanos/1000000.0/count, concurrentNanos/1000000.0/count,
+                                concurrentNanos == 0 ? 0.0 : (double) sequentialNanos / concurrentNanos,
+                                100.0 * stats.identical.sum() / count));
+    }
   }
 
-  /** Holds re-used thread-private classes for postings primary key lookup for one LeafReader */
+  /** Holds re-used thread-private classes for postings primary key lookup for one segment.
+   *  NOTE: this is shared by all NRT readers on the segment, whose deletions differ, so
+   *  callers must check the current reader's live docs. */
   public static class PKLookupState {
     public final TermsEnum termsEnum;
     public final PostingsEnum postingsEnum;
-    public final Bits liveDocs;
+    // Smallest and largest id in this segment, so batch lookups
+    // can skip it entirely:
+    public final BytesRef minTerm;
+    public final BytesRef maxTerm;
+    // Shared across threads; null if disabled:
+    public final PKBloomFilter bloom;
 
     public PKLookupState(LeafReader reader, String field) throws IOException {
-      termsEnum = reader.terms(field).iterator();
+      this(reader, field, null);
+    }
+
+    public PKLookupState(LeafReader reader, String field, PKBloomFilter bloom) throws IOException {
+      this.bloom = bloom;
+      Terms terms = reader.terms(field);
+      termsEnum = terms.iterator();
       termsEnum.seekCeil(new BytesRef(""));
       postingsEnum = termsEnum.postings(null, 0);
-      liveDocs = reader.getLiveDocs();
+      minTerm = BytesRef.deepCopyOf(terms.getMin());
+      maxTerm = BytesRef.deepCopyOf(terms.getMax());
     }
   }
 
@@ -162,14 +450,12 @@ class IndexState {
   public static class PointsPKLookupState {
     public final PKIntersectVisitor visitor;
     public final IntersectState state;
-    public final Bits liveDocs;
     public final BKDReader bkdReader;
 
     public PointsPKLookupState(LeafReader reader, String fieldName) throws IOException {
       visitor = new PKIntersectVisitor();
       bkdReader = ((BKDReader) reader.getPointValues(fieldName));
       state = bkdReader.getIntersectState(visitor);
-      liveDocs = reader.getLiveDocs();
     }
   }
 
@@ -18,8 +18,13 @@ package perf;
  */
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -47,11 +52,31 @@ class IndexThreads {
   final Thread[] threads;
   final AtomicBoolean refreshing;
   final AtomicLong lastRefreshNS;
+  final IngestRateLimiter rateLimiter;
+  final IngestMetrics metrics;
 
   public IndexThreads(Random random, IndexWriter w, AtomicBoolean indexingFailed, LineFileDocs lineFileDocs, int numThreads, int docCountLimit,
                       boolean addGroupingFields, boolean printDPS, Mode mode, float docsPerSecPerThread, UpdatesListener updatesListener,
                       double nrtEverySec, int randomDocIDMax)
     throws IOException, InterruptedException {
+    this(random, w, indexingFailed, lineFileDocs, numThreads, docCountLimit, addGroupingFields, printDPS, mode,
+         docsPerSecPerThread > 0 ? IngestRateLimiter.constant(docsPerSecPerThread * numThreads, numThreads) : null,
+         updatesListener, nrtEverySec, randomDocIDMax, 1, null);
+  }
+
+  /** rateLimiter, if not null, paces all threads together; it
+   *  only applies when mode is set and we are not indexing
+   *  grouping blocks.  If batchSize is &gt; 1, each thread
+   *  indexes (or updates) that many docs per IndexWriter call.
+   *  metrics, if not null, is started and stopped along with
+   *  the threads. */
+  public IndexThreads(Random random, IndexWriter w, AtomicBoolean indexingFailed, LineFileDocs lineFileDocs, int numThreads, int docCountLimit,
+                      boolean addGroupingFields, boolean printDPS, Mode mode, IngestRateLimiter rateLimiter, UpdatesListener updatesListener,
+                      double nrtEverySec, int randomDocIDMax, int batchSize, IngestMetrics metrics)
+    throws IOException, InterruptedException {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("batchSize must be >= 1; got: " + batchSize);
+    }
     final AtomicInteger groupBlockIndex;
 
     this.docs = lineFileDocs;
@@ -73,9 +98,12 @@ class IndexThreads {
     failed = indexingFailed;
     refreshing = new AtomicBoolean(false);
     lastRefreshNS = new AtomicLong(System.nanoTime());
+    this.rateLimiter = rateLimiter;
+    this.metrics = metrics;
 
     for(int thread=0;thread<numThreads;thread++) {
-      threads[thread] = new IndexThread(random, startLatch, stopLatch, w, docs, docCountLimit, count, mode, groupBlockIndex, stop, refreshing, lastRefreshNS, docsPerSecPerThread, failed, updatesListener, nrtEverySec, randomDocIDMax);
+      threads[thread] = new IndexThread(random, startLatch, stopLatch, w, docs, docCountLimit, count, mode, groupBlockIndex, stop, refreshing, lastRefreshNS, rateLimiter, failed, updatesListener, nrtEverySec, randomDocIDMax, batchSize,
+                                        thread, metrics);
       threads[thread].setName("Index #" + thread);
       threads[thread].start();
     }
@@ -91,6 +119,9 @@ class IndexThreads {
   }
 
   public void start() {
+    if (metrics != null) {
+      metrics.start();
+    }
     startLatch.countDown();
   }
 
@@ -106,6 +137,12 @@ class IndexThreads {
     if (printer != null) {
       printer.join();
     }
+    if (metrics != null) {
+      metrics.stop();
+    }
+    if (rateLimiter != null) {
+      rateLimiter.printStats(System.out);
+    }
     docs.close();
   }
 
@@ -119,6 +156,11 @@ class IndexThreads {
     return true;
   }
   
+  /** Called by each index thread around its updates.  With
+   *  -batchSize, beforeUpdate is called once before a batch is
+   *  indexed, and afterUpdate once per doc in the batch after the
+   *  whole batch is indexed, since every doc in it was pending
+   *  from the beforeUpdate call on. */
   public static interface UpdatesListener {
     public void beforeUpdate();
     public void afterUpdate();
@@ -138,7 +180,7 @@ class IndexThreads {
     private final Mode mode;
     private final CountDownLatch startLatch;
     private final CountDownLatch stopLatch;
-    private final float docsPerSec;
+    private final IngestRateLimiter rateLimiter;
     private final Random random;
     private final AtomicBoolean failed;
     private final UpdatesListener updatesListener;
@@ -146,11 +188,15 @@ class IndexThreads {
     private final AtomicLong lastRefreshNS;
     private final double nrtEverySec;
     final int randomDocIDMax;
+    private final int batchSize;
+    private final int threadID;
+    private final IngestMetrics metrics;
 
     public IndexThread(Random random, CountDownLatch startLatch, CountDownLatch stopLatch, IndexWriter w,
                        LineFileDocs docs, int numTotalDocs, AtomicInteger count, Mode mode, AtomicInteger groupBlockIndex,
-                       AtomicBoolean stop, AtomicBoolean refreshing, AtomicLong lastRefreshNS, float docsPerSec,
-                       AtomicBoolean failed, UpdatesListener updatesListener, double nrtEverySec, int randomDocIDMax) {
+                       AtomicBoolean stop, AtomicBoolean refreshing, AtomicLong lastRefreshNS, IngestRateLimiter rateLimiter,
+                       AtomicBoolean failed, UpdatesListener updatesListener, double nrtEverySec, int randomDocIDMax, int batchSize,
+                       int threadID, IngestMetrics metrics) {
       this.startLatch = startLatch;
       this.stopLatch = stopLatch;
       this.w = w;
@@ -160,7 +206,7 @@ class IndexThreads {
       this.mode = mode;
       this.groupBlockIndex = groupBlockIndex;
       this.stop = stop;
-      this.docsPerSec = docsPerSec;
+      this.rateLimiter = rateLimiter;
       this.random = random;
       this.failed = failed;
       this.updatesListener = updatesListener;
@@ -168,6 +214,9 @@ class IndexThreads {
       this.lastRefreshNS = lastRefreshNS;
       this.nrtEverySec = nrtEverySec;
       this.randomDocIDMax = randomDocIDMax;
+      this.batchSize = batchSize;
+      this.threadID = threadID;
+      this.metrics = metrics;
     }
 
     @Override
@@ -268,6 +317,9 @@ class IndexThreads {
                         if (doc == null) {
                           return false;
                         }
+                        if (metrics != null) {
+                          metrics.docIndexed(threadID, docState.docBytes);
+                        }
 
                         if (upto == numDocs) {
                           // Sneaky: we remove it down below, so that in the not-cloned case we don't accumulate this field:
@@ -308,18 +360,24 @@ class IndexThreads {
 
             docState.doc.removeField("groupend");
           }
-        } else if (docsPerSec > 0 && mode != null) {
-          final long startNS = System.nanoTime();
-          int threadCount = 0;
+        } else if (rateLimiter != null && mode != null) {
+          final DocBatch batch = batchSize > 1 && (mode == Mode.UPDATE || mode == Mode.ADD) ? new DocBatch(w, docs, docState, batchSize) : null;
           while (!stop.get()) {
-            final Document doc = docs.nextDoc(docState);
+            if (rateLimiter.acquire(stop) == false) {
+              break;
+            }
+            final LineFileDocs.DocState state = batch == null ? docState : batch.nextDocState();
+            final Document doc = docs.nextDoc(state);
             if (doc == null) {
               break;
             }
-            final int id = LineFileDocs.idToInt(idField.stringValue());
+            final int id = LineFileDocs.idToInt(state.id.stringValue());
             if (numTotalDocs != -1 && id >= numTotalDocs) {
               break;
             }
+            if (metrics != null) {
+              metrics.docIndexed(threadID, state.docBytes);
+            }
 
             if (((1+id) % 10000) == 0) {
               System.out.println("Indexer: " + (1+id) + " docs... (" + (System.currentTimeMillis() - tStart) + " msec)");
@@ -327,51 +385,81 @@ class IndexThreads {
             // TODO have a 'sometimesAdd' mode where 25%
             // of the time we add a new doc
             final String updateID = LineFileDocs.intToID(random.nextInt(randomDocIDMax));
-            if (updatesListener != null) {
-            	updatesListener.beforeUpdate();
-            }
-            switch (mode) {
-            case UPDATE:
-              // NOTE: can't use docState.id in case doClone
-              // was true
-              ((Field) ((Document) doc).getField("id")).setStringValue(updateID);
-              w.updateDocument(new Term("id", updateID), doc);
-              break;
-            case NDV_UPDATE:
-              w.updateNumericDocValue(new Term("id", updateID), "lastModNDV", System.currentTimeMillis());
-              break;
-            case BDV_UPDATE:
-              throw new IllegalArgumentException("not implemented!");
-              //w.updateBinaryDocValue(new Term("id", updateID), "titleBDV", docState.titleBDV.binaryValue());
-              //break;
-            case ADD:
-              w.addDocument(doc);
-              break;
-            default:
-              throw new IllegalArgumentException("unknown mode " + mode);
+            final int indexedCount;
+            if (batch != null) {
+              if (mode == Mode.UPDATE) {
+                // NOTE: can't use docState.id in case doClone
+                // was true
+                ((Field) doc.getField("id")).setStringValue(updateID);
+                batch.add(doc, new Term("id", updateID));
+              } else {
+                batch.add(doc, null);
+              }
+              if (batch.isFull() == false) {
+                continue;
+              }
+              if (updatesListener != null) {
+                updatesListener.beforeUpdate();
+              }
+              indexedCount = batch.flush();
+            } else {
+              if (updatesListener != null) {
+              	updatesListener.beforeUpdate();
+              }
+              switch (mode) {
+              case UPDATE:
+                // NOTE: can't use docState.id in case doClone
+                // was true
+                ((Field) doc.getField("id")).setStringValue(updateID);
+                w.updateDocument(new Term("id", updateID), doc);
+                break;
+              case NDV_UPDATE:
+                w.updateNumericDocValue(new Term("id", updateID), "lastModNDV", System.currentTimeMillis());
+                break;
+              case BDV_UPDATE:
+                throw new IllegalArgumentException("not implemented!");
+                //w.updateBinaryDocValue(new Term("id", updateID), "titleBDV", docState.titleBDV.binaryValue());
+                //break;
+              case ADD:
+                w.addDocument(doc);
+                break;
+              default:
+                throw new IllegalArgumentException("unknown mode " + mode);
+              }
+              indexedCount = 1;
             }
             if (updatesListener != null) {
-              updatesListener.afterUpdate();
+              for (int i = 0; i < indexedCount; i++) {
+                updatesListener.afterUpdate();
+              }
             }
-            int docCount = count.incrementAndGet();
-            threadCount++;
+            int docCount = count.addAndGet(indexedCount);
 
-            if ((docCount % 10000) == 0) {
+            if ((docCount / 10000) != ((docCount - indexedCount) / 10000)) {
               System.out.println("Indexer: " + docCount + " docs... (" + (System.currentTimeMillis() - tStart) + " msec)");
             }
 
-            final long sleepNS = startNS + (long) (1000000000*(threadCount/docsPerSec)) - System.nanoTime();
-            if (sleepNS > 0) {
-              final long sleepMS = sleepNS/1000000;
-              final int sleepNS2 = (int) (sleepNS - sleepMS*1000000);
-              Thread.sleep(sleepMS, sleepNS2);
-            }
-
             maybeOpenReader(tStart);
           }
+
+          if (batch != null && batch.size() > 0) {
+            // Index the last, partial batch:
+            if (updatesListener != null) {
+              updatesListener.beforeUpdate();
+            }
+            final int indexedCount = batch.flush();
+            if (updatesListener != null) {
+              for (int i = 0; i < indexedCount; i++) {
+                updatesListener.afterUpdate();
+              }
+            }
+            count.addAndGet(indexedCount);
+          }
         } else {
+          final DocBatch batch = batchSize > 1 ? new DocBatch(w, docs, docState, batchSize) : null;
           while (!stop.get()) {
-            final Document doc = docs.nextDoc(docState);
+            final LineFileDocs.DocState state = batch == null ? docState : batch.nextDocState();
+            final Document doc = docs.nextDoc(state);
             if (doc == null) {
               break;
             }
@@ -379,6 +467,9 @@ class IndexThreads {
             if (numTotalDocs != -1 && docCount > numTotalDocs) {
               break;
             }
+            if (metrics != null) {
+              metrics.docIndexed(threadID, state.docBytes);
+            }
 
             if ((docCount % 10000) == 0) {
               long nowMS = System.currentTimeMillis();
@@ -390,14 +481,28 @@ class IndexThreads {
               final String updateID = LineFileDocs.intToID(random.nextInt(randomDocIDMax));
               // NOTE: can't use docState.id in case doClone
               // was true
-              ((Field) ((Document) doc).getField("id")).setStringValue(updateID);
-              w.updateDocument(new Term("id", updateID), doc);
+              ((Field) doc.getField("id")).setStringValue(updateID);
+              if (batch != null) {
+                batch.add(doc, new Term("id", updateID));
+              } else {
+                w.updateDocument(new Term("id", updateID), doc);
+              }
+            } else if (batch != null) {
+              batch.add(doc, null);
             } else {
               w.addDocument(doc);
             }
+            if (batch != null && batch.isFull()) {
+              batch.flush();
+            }
 
             maybeOpenReader(tStart);
           }
+
+          if (batch != null) {
+            // Index the last, partial batch:
+            batch.flush();
+          }
         }
       } catch (Exception e) {
         failed.set(true);
@@ -429,6 +534,90 @@ class IndexThreads {
     }
   }
 
+  // Collects up to batchSize docs and indexes them with one
+  // addDocuments call.  Each doc comes from its own DocState, so
+  // reused Fields aren't overwritten before we index them, and
+  // the DocStates are recycled for the next batch.  IndexWriter
+  // can only update a block by a single term, so for updates we
+  // first delete all of the batch's ids with one deleteDocuments
+  // call (this is not atomic).  If an id is drawn twice in one
+  // batch, the later doc replaces the earlier one in the batch,
+  // just as the second of two updateDocument calls would:
+  private static final class DocBatch {
+    private final IndexWriter w;
+    private final LineFileDocs.DocState[] docStates;
+    private final List<Document> docs;
+    private final Term[] deleteTerms;
+    private int deleteCount;
+    // Slot in docs of each id to update in this batch:
+    private final Map<Term,Integer> slotByID = new HashMap<>();
+    // Calls to add since the last flush, counting replaced docs:
+    private int addCount;
+
+    DocBatch(IndexWriter w, LineFileDocs lineFileDocs, LineFileDocs.DocState first, int batchSize) {
+      this.w = w;
+      docStates = new LineFileDocs.DocState[batchSize];
+      docStates[0] = first;
+      for (int i = 1; i < batchSize; i++) {
+        docStates[i] = lineFileDocs.newDocState();
+      }
+      docs = new ArrayList<>(batchSize);
+      deleteTerms = new Term[batchSize];
+    }
+
+    /** DocState to load the next doc into. */
+    LineFileDocs.DocState nextDocState() {
+      return docStates[docs.size()];
+    }
+
+    void add(Document doc, Term deleteTerm) {
+      addCount++;
+      if (deleteTerm != null) {
+        final Integer slot = slotByID.get(deleteTerm);
+        if (slot != null) {
+          // Same id as an earlier doc in this batch: take its slot,
+          // and hand its DocState to the next doc:
+          final int upto = docs.size();
+          final LineFileDocs.DocState state = docStates[slot];
+          docStates[slot] = docStates[upto];
+          docStates[upto] = state;
+          docs.set(slot, doc);
+          return;
+        }
+        slotByID.put(deleteTerm, docs.size());
+        deleteTerms[deleteCount++] = deleteTerm;
+      }
+      docs.add(doc);
+    }
+
+    boolean isFull() {
+      return docs.size() == docStates.length;
+    }
+
+    int size() {
+      return docs.size();
+    }
+
+    /** Indexes the pending docs and returns how many were added,
+     *  including docs replaced by a later doc with the same id. */
+    int flush() throws IOException {
+      final int count = addCount;
+      if (count == 0) {
+        return 0;
+      }
+      if (deleteCount > 0) {
+        w.deleteDocuments(deleteCount == deleteTerms.length ? deleteTerms : Arrays.copyOf(deleteTerms, deleteCount));
+        Arrays.fill(deleteTerms, 0, deleteCount, null);
+        deleteCount = 0;
+        slotByID.clear();
+      }
+      w.addDocuments(docs);
+      docs.clear();
+      addCount = 0;
+      return count;
+    }
+  }
+
   private static class IngestRatePrinter extends Thread {
 
     private final AtomicInteger count;
@@ -0,0 +1,336 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MergeScheduler;
+import org.apache.lucene.util.InfoStream;
+
+// Shows which IndexWriter knob limits ingest: every intervalMS
+// we print a timeline row with how long each index thread was
+// blocked on flush control (stalled because flushing fell behind
+// indexing: ramBufferMB / thread count), was hijacked to flush a
+// segment itself, or was blocked in the MergeScheduler (merge
+// backpressure: maxConcurrentMerges, or merging inline with
+// SerialMergeScheduler), along with the bytes pending flush and
+// the merges in flight.
+//
+// Global flush stalls are exact, from the DWFC infoStream
+// events; merge backpressure and merges in flight are exact, from
+// the MergeScheduler (see Indexer.getMergeScheduler).  Lucene has
+// no hook for which thread is blocked on a flush stall, or is
+// flushing, so we sample the index threads' stacks for those,
+// every SAMPLE_NS:
+class IndexWriterProfiler {
+
+  private static final long SAMPLE_NS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  private static final String STALL_CONTROL_CLASS = "org.apache.lucene.index.DocumentsWriterStallControl";
+  private static final String DOCUMENTS_WRITER_CLASS = "org.apache.lucene.index.DocumentsWriter";
+
+  private final PrintStream out;
+  private final long intervalNS;
+  private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+  private final FlushStallTracker flushStalls = new FlushStallTracker();
+
+  private final AtomicInteger mergesRunning = new AtomicInteger();
+  private final AtomicLong mergeBytesRunning = new AtomicLong();
+  private final LongAdder mergesDone = new LongAdder();
+  // Time in MergeScheduler.merge by threads other than the
+  // index threads (commit, close, getReader):
+  private final LongAdder otherMergeWaitNS = new LongAdder();
+
+  private final Map<Thread,ThreadStats> statsByThread = new ConcurrentHashMap<>();
+  private ThreadStats[] threadStats;
+  private IndexWriter writer;
+  private Sampler sampler;
+
+  public IndexWriterProfiler(PrintStream out, long intervalMS) {
+    if (intervalMS <= 0) {
+      throw new IllegalArgumentException("intervalMS must be > 0; got: " + intervalMS);
+    }
+    this.out = out;
+    this.intervalNS = TimeUnit.MILLISECONDS.toNanos(intervalMS);
+  }
+
+  private static final class ThreadStats {
+    final Thread thread;
+    // Written by the thread itself, while it is in MergeScheduler.merge:
+    final LongAdder mergeWaitNS = new LongAdder();
+    // Written only by the sampler:
+    long flushStallNS;
+    long flushingNS;
+    long lastMergeWaitNS;
+    long lastFlushStallNS;
+    long lastFlushingNS;
+
+    ThreadStats(Thread thread) {
+      this.thread = thread;
+    }
+  }
+
+  /** Returns an InfoStream that tracks flush stalls and passes
+   *  everything on to the delegate. */
+  public InfoStream wrap(InfoStream delegate) {
+    return flushStalls.wrap(delegate);
+  }
+
+  /** Called by the MergeScheduler when a thread enters merge. */
+  public long mergeWaitStart() {
+    return System.nanoTime();
+  }
+
+  /** Called by the MergeScheduler when a thread returns from
+   *  merge; for the index threads this is merge backpressure. */
+  public void mergeWaitDone(long startNS) {
+    final long ns = System.nanoTime() - startNS;
+    final ThreadStats stats = statsByThread.get(Thread.currentThread());
+    if (stats != null) {
+      stats.mergeWaitNS.add(ns);
+    } else {
+      otherMergeWaitNS.add(ns);
+    }
+  }
+
+  /** Called by the MergeScheduler when it starts running a merge. */
+  public void mergeStarted(MergePolicy.OneMerge merge) {
+    mergesRunning.incrementAndGet();
+    mergeBytesRunning.addAndGet(merge.estimatedMergeBytes);
+  }
+
+  /** Called by the MergeScheduler when a merge it started is done
+   *  (or failed). */
+  public void mergeFinished(MergePolicy.OneMerge merge) {
+    mergeBytesRunning.addAndGet(-merge.estimatedMergeBytes);
+    mergesRunning.decrementAndGet();
+    mergesDone.increment();
+  }
+
+  /** Wraps the MergeSource a MergeScheduler without a per merge
+   *  hook (SerialMergeScheduler) runs merges from, to track merges
+   *  in flight; a source we already wrapped is returned as is. */
+  public MergeScheduler.MergeSource wrap(MergeScheduler.MergeSource in) {
+    if (in instanceof ProfiledMergeSource) {
+      return in;
+    }
+    return new ProfiledMergeSource(in);
+  }
+
+  private final class ProfiledMergeSource implements MergeScheduler.MergeSource {
+    private final MergeScheduler.MergeSource in;
+
+    ProfiledMergeSource(MergeScheduler.MergeSource in) {
+      this.in = in;
+    }
+
+    @Override
+    public MergePolicy.OneMerge getNextMerge() {
+      return in.getNextMerge();
+    }
+
+    @Override
+    public void onMergeFinished(MergePolicy.OneMerge merge) {
+      in.onMergeFinished(merge);
+    }
+
+    @Override
+    public boolean hasPendingMerges() {
+      return in.hasPendingMerges();
+    }
+
+    @Override
+    public void merge(MergePolicy.OneMerge merge) throws IOException {
+      mergeStarted(merge);
+      try {
+        in.merge(merge);
+      } finally {
+        mergeFinished(merge);
+      }
+    }
+  }
+
+  /** Starts sampling the index threads and printing the timeline. */
+  public synchronized void start(IndexWriter writer, Thread[] threads) {
+    if (sampler != null) {
+      throw new IllegalStateException("already started");
+    }
+    this.writer = writer;
+    threadStats = new ThreadStats[threads.length];
+    for (int i = 0; i < threads.length; i++) {
+      threadStats[i] = new ThreadStats(threads[i]);
+      statsByThread.put(threads[i], threadStats[i]);
+    }
+    out.println("IW profile: per-interval msec; flushStall = blocked on flush control, flushing = hijacked to flush a segment, mergeWait = blocked in MergeScheduler");
+    sampler = new Sampler();
+    sampler.start();
+  }
+
+  /** Stops sampling, then prints the last timeline row and the totals. */
+  public void stop() throws InterruptedException {
+    final Sampler s;
+    synchronized (this) {
+      s = sampler;
+    }
+    if (s == null) {
+      return;
+    }
+    s.done = true;
+    s.join();
+    s.printSummary();
+  }
+
+  private final class Sampler extends Thread {
+    volatile boolean done;
+
+    private final long startNS = System.nanoTime();
+    private final long[] threadIDs = new long[threadStats.length];
+    private long lastSampleNS = startNS;
+    private long lastReportNS = startNS;
+    private long lastFlushStallNS;
+    private long lastMergesDone;
+    private long maxPendingFlushBytes;
+    private int maxMergesRunning;
+
+    Sampler() {
+      setName("IndexWriterProfiler");
+      setDaemon(true);
+      for (int i = 0; i < threadIDs.length; i++) {
+        threadIDs[i] = threadStats[i].thread.getId();
+      }
+    }
+
+    @Override
+    public void run() {
+      while (done == false) {
+        try {
+          Thread.sleep(TimeUnit.NANOSECONDS.toMillis(SAMPLE_NS));
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        sample();
+        if (System.nanoTime() - lastReportNS >= intervalNS) {
+          printRow();
+        }
+      }
+      printRow();
+    }
+
+    private void sample() {
+      final long nowNS = System.nanoTime();
+      final long ns = nowNS - lastSampleNS;
+      lastSampleNS = nowNS;
+      final ThreadInfo[] infos = threadBean.getThreadInfo(threadIDs, Integer.MAX_VALUE);
+      for (int i = 0; i < infos.length; i++) {
+        if (infos[i] == null) {
+          // Thread finished
+          continue;
+        }
+        for (StackTraceElement frame : infos[i].getStackTrace()) {
+          if (frame.getClassName().equals(STALL_CONTROL_CLASS) && frame.getMethodName().equals("waitIfStalled")) {
+            threadStats[i].flushStallNS += ns;
+            break;
+          } else if (frame.getClassName().equals(DOCUMENTS_WRITER_CLASS) && frame.getMethodName().equals("doFlush")) {
+            threadStats[i].flushingNS += ns;
+            break;
+          }
+        }
+      }
+      maxPendingFlushBytes = Math.max(maxPendingFlushBytes, writer.getFlushingBytes());
+      maxMergesRunning = Math.max(maxMergesRunning, mergesRunning.get());
+    }
+
+    private void printRow() {
+      final long nowNS = System.nanoTime();
+      final long flushStall = flushStalls.totalStallNS(nowNS);
+      final long merges = mergesDone.sum();
+      out.println(String.format(Locale.ROOT, "IW profile %.1f sec: flushStall=%.1f%s pendingFlushMB=%.1f ramMB=%.1f mergesRunning=%d (%.1f MB) mergesDone=%d",
+                                (nowNS - startNS) / 1000000000.0,
+                                (flushStall - lastFlushStallNS) / 1000000.0,
+                                flushStalls.isStalled() ? " (stalled)" : "",
+                                writer.getFlushingBytes() / 1024. / 1024.,
+                                writer.ramBytesUsed() / 1024. / 1024.,
+                                mergesRunning.get(),
+                                mergeBytesRunning.get() / 1024. / 1024.,
+                                merges - lastMergesDone));
+      lastFlushStallNS = flushStall;
+      lastMergesDone = merges;
+      for (ThreadStats stats : threadStats) {
+        final long mergeWait = stats.mergeWaitNS.sum();
+        out.println(String.format(Locale.ROOT, "  %s: flushStall=%.1f flushing=%.1f mergeWait=%.1f",
+                                  stats.thread.getName(),
+                                  (stats.flushStallNS - stats.lastFlushStallNS) / 1000000.0,
+                                  (stats.flushingNS - stats.lastFlushingNS) / 1000000.0,
+                                  (mergeWait - stats.lastMergeWaitNS) / 1000000.0));
+        stats.lastFlushStallNS = stats.flushStallNS;
+        stats.lastFlushingNS = stats.flushingNS;
+        stats.lastMergeWaitNS = mergeWait;
+      }
+      lastReportNS = nowNS;
+    }
+
+    void printSummary() {
+      final double wallNS = lastReportNS - startNS;
+      long threadFlushStallNS = 0;
+      long threadFlushingNS = 0;
+      long threadMergeWaitNS = 0;
+      out.println(String.format(Locale.ROOT, "\nIW profile totals over %.1f sec: %d flush stalls, %.1f sec stalled; peak %.1f MB pending flush; peak %d merges running",
+                                wallNS / 1000000000.0, flushStalls.stallCount(), flushStalls.totalStallNS(lastReportNS) / 1000000000.0,
+                                maxPendingFlushBytes / 1024. / 1024., maxMergesRunning));
+      for (ThreadStats stats : threadStats) {
+        final long mergeWait = stats.mergeWaitNS.sum();
+        out.println(String.format(Locale.ROOT, "  %s: flushStall %.1f%%, flushing %.1f%%, mergeWait %.1f%% of wall time",
+                                  stats.thread.getName(), 100 * stats.flushStallNS / wallNS,
+                                  100 * stats.flushingNS / wallNS, 100 * mergeWait / wallNS));
+        threadFlushStallNS += stats.flushStallNS;
+        threadFlushingNS += stats.flushingNS;
+        threadMergeWaitNS += mergeWait;
+      }
+      out.println(String.format(Locale.ROOT, "  other threads: mergeWait %.1f sec", otherMergeWaitNS.sum() / 1000000000.0));
+
+      // Which knob to turn first:
+      final double threadNS = wallNS * threadStats.length;
+      final String limit;
+      if (Math.max(threadFlushStallNS, Math.max(threadFlushingNS, threadMergeWaitNS)) < 0.05 * threadNS) {
+        limit = "none (index threads spent < 5% blocked or flushing; ingest is bound by indexing itself)";
+      } else if (threadMergeWaitNS >= threadFlushStallNS && threadMergeWaitNS >= threadFlushingNS) {
+        limit = "merges (raise -maxConcurrentMerges, -useCMS, or -disableIOThrottle)";
+      } else if (threadFlushStallNS >= threadFlushingNS) {
+        limit = "flush stalls (flushing can't keep up: fewer -threadCount, or more -ramBufferMB)";
+      } else {
+        limit = "flushing (threads flush their own segments: larger -ramBufferMB means fewer, larger flushes)";
+      }
+      out.println("  limiting: " + limit);
+    }
+  }
+}
@@ -19,6 +19,7 @@ package perf;
 
 
 import java.io.IOException;
+import java.io.PrintStream;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -56,6 +57,7 @@ import org.apache.lucene.index.LogDocMergePolicy;
 import org.apache.lucene.index.LogMergePolicy;
 import org.apache.lucene.index.MergePolicy;
 import org.apache.lucene.index.MergeScheduler;
+import org.apache.lucene.index.MergeTrigger;
 import org.apache.lucene.index.NoDeletionPolicy;
 import org.apache.lucene.index.NoMergePolicy;
 import org.apache.lucene.index.SegmentInfos;
@@ -89,7 +91,28 @@ public final class Indexer {
     }
   }
 
-  private static MergeScheduler getMergeScheduler(AtomicBoolean indexingFailed, boolean useCMS, int maxConcurrentMerges, boolean disableIOThrottle) {
+  static Analyzer getAnalyzer(String analyzer) {
+    if (analyzer.equals("EnglishAnalyzer")) {
+      return new EnglishAnalyzer();
+    } else if (analyzer.equals("StandardAnalyzer")) {
+      return new StandardAnalyzer();
+    } else if (analyzer.equals("StandardAnalyzerNoStopWords")) {
+      return new StandardAnalyzer(CharArraySet.EMPTY_SET);
+    } else if (analyzer.equals("ShingleStandardAnalyzer")) {
+      return new ShingleAnalyzerWrapper(new StandardAnalyzer(),
+                                        2, 2);
+    } else if (analyzer.equals("ShingleStandardAnalyzerNoStopWords")) {
+      return new ShingleAnalyzerWrapper(new StandardAnalyzer(CharArraySet.EMPTY_SET),
+                                        2, 2);
+    } else {
+      throw new RuntimeException("unknown analyzer " + analyzer);
+    }
+  }
+
+  // profiler, if not null, tracks merges in flight and how long
+  // threads are blocked in merge (merge backpressure):
+  static MergeScheduler getMergeScheduler(AtomicBoolean indexingFailed, boolean useCMS, int maxConcurrentMerges, boolean disableIOThrottle,
+                                          IndexWriterProfiler profiler) {
     if (useCMS) {
       ConcurrentMergeScheduler cms = new ConcurrentMergeScheduler() {
           @Override
@@ -99,6 +122,37 @@ public final class Indexer {
             exc.printStackTrace(System.out);
             super.handleMergeException(exc);
           }
+
+          @Override
+          public synchronized void merge(MergeSource mergeSource, MergeTrigger trigger) throws IOException {
+            // CMS's own merge threads call back in with
+            // MERGE_FINISHED to kick off cascading merges; that isn't
+            // backpressure on the index threads:
+            if (profiler == null || trigger == MergeTrigger.MERGE_FINISHED) {
+              super.merge(mergeSource, trigger);
+              return;
+            }
+            final long startNS = profiler.mergeWaitStart();
+            try {
+              super.merge(mergeSource, trigger);
+            } finally {
+              profiler.mergeWaitDone(startNS);
+            }
+          }
+
+          @Override
+          protected void doMerge(MergeSource mergeSource, MergePolicy.OneMerge merge) throws IOException {
+            if (profiler == null) {
+              super.doMerge(mergeSource, merge);
+              return;
+            }
+            profiler.mergeStarted(merge);
+            try {
+              super.doMerge(mergeSource, merge);
+            } finally {
+              profiler.mergeFinished(merge);
+            }
+          }
         };
       cms.setMaxMergesAndThreads(maxConcurrentMerges+4, maxConcurrentMerges);
       if (disableIOThrottle) {
@@ -108,11 +162,24 @@ public final class Indexer {
     } else {
       // Gives better repeatability because if you use CMS, the order in which the merges complete can impact how the merge policy later
       // picks merges so you can easily get a very different index structure when you are comparing two indices:
-      return new SerialMergeScheduler();
+      if (profiler == null) {
+        return new SerialMergeScheduler();
+      }
+      return new SerialMergeScheduler() {
+          @Override
+          public synchronized void merge(MergeSource mergeSource, MergeTrigger trigger) throws IOException {
+            final long startNS = profiler.mergeWaitStart();
+            try {
+              super.merge(profiler.wrap(mergeSource), trigger);
+            } finally {
+              profiler.mergeWaitDone(startNS);
+            }
+          }
+        };
     }
   }
 
-  private static MergePolicy getMergePolicy(String mergePolicy, boolean useCFS) {
+  static MergePolicy getMergePolicy(String mergePolicy, boolean useCFS) {
 
     MergePolicy mp;
     if (mergePolicy.equals("LogDocMergePolicy")) {
@@ -198,22 +265,7 @@ public final class Indexer {
     dir = od.open(Paths.get(dirPath));
 
     final String analyzer = args.getString("-analyzer");
-    final Analyzer a;
-    if (analyzer.equals("EnglishAnalyzer")) {
-      a = new EnglishAnalyzer();
-    } else if (analyzer.equals("StandardAnalyzer")) {
-      a = new StandardAnalyzer();
-    } else if (analyzer.equals("StandardAnalyzerNoStopWords")) {
-      a = new StandardAnalyzer(CharArraySet.EMPTY_SET);
-    } else if (analyzer.equals("ShingleStandardAnalyzer")) {
-      a = new ShingleAnalyzerWrapper(new StandardAnalyzer(),
-                                     2, 2);
-    } else if (analyzer.equals("ShingleStandardAnalyzerNoStopWords")) {
-      a = new ShingleAnalyzerWrapper(new StandardAnalyzer(CharArraySet.EMPTY_SET),
-                                     2, 2);
-    } else {
-      throw new RuntimeException("unknown analyzer " + analyzer);
-    } 
+    final Analyzer a = getAnalyzer(analyzer);
 
     final String lineFile = args.getString("-lineDocsFile");
     String vectorFile;
@@ -275,6 +327,15 @@ public final class Indexer {
     final String defaultPostingsFormat = args.getString("-postingsFormat");
     final boolean doDeletions = args.getFlag("-deletions");
     final boolean printDPS = args.getFlag("-printDPS");
+    // If set, write IngestMetrics JSON lines to this file every
+    // -metricsIntervalMS (default 1000):
+    final String metricsFile = args.hasArg("-metricsFile") ? args.getString("-metricsFile") : null;
+    final long metricsIntervalMS = args.hasArg("-metricsIntervalMS") ? args.getInt("-metricsIntervalMS") : 1000;
+    // If set, print an IndexWriterProfiler timeline (flush stalls,
+    // pending flush bytes, merges in flight, per-thread blocked
+    // time) every -profileIntervalMS (default 1000):
+    final boolean profileIndexWriter = args.getFlag("-profileIndexWriter");
+    final long profileIntervalMS = args.hasArg("-profileIntervalMS") ? args.getInt("-profileIntervalMS") : 1000;
     final boolean waitForMerges = args.getFlag("-waitForMerges");
     final boolean waitForCommit = args.getFlag("-waitForCommit");
     final String mergePolicy = args.getString("-mergePolicy");
@@ -330,6 +391,16 @@ public final class Indexer {
     // docs from the line file source:
     final boolean repeatDocs = args.getFlag("-repeatDocs");
 
+    // Index this many docs per addDocuments (or
+    // deleteDocuments + addDocuments for -update) call, like a
+    // bulk ingest API would:
+    final int batchSize = args.hasArg("-batchSize") ? args.getInt("-batchSize") : 1;
+
+    // True to mmap the (binary) line file and let each indexing
+    // thread decode blocks directly, instead of funneling all
+    // docs through a single reader thread:
+    final boolean mmapLineDocs = args.getFlag("-mmapLineDocs");
+
     final String facetDVFormatName;
     if (facetFields.isEmpty()) {
       facetDVFormatName = "Lucene90";
@@ -342,6 +413,11 @@ public final class Indexer {
       throw new RuntimeException("cannot add grouping fields unless docCount is set");
     }
 
+    if (addGroupingFields && batchSize != 1) {
+      a.close();
+      throw new RuntimeException("-batchSize does not apply to -grouping, which already adds docs in blocks");
+    }
+
     args.check();
 
     System.out.println("Dir: " + dirImpl);
@@ -351,6 +427,7 @@ public final class Indexer {
     System.out.println("Vector file: " + vectorFile + ", dim=" + vectorDimension);
     System.out.println("Doc count limit: " + (docCountLimit == -1 ? "all docs" : ""+docCountLimit));
     System.out.println("Threads: " + numThreads);
+    System.out.println("Batch size: " + batchSize);
     System.out.println("Force merge: " + (doForceMerge ? "yes" : "no"));
     System.out.println("Rearrange to (0 for no rearrange): " + arrangement);
     System.out.println("Verbose: " + (verbose ? "yes" : "no"));
@@ -384,6 +461,12 @@ public final class Indexer {
       System.out.println("Open & close NRT reader every: never");
     }
     System.out.println("Repeat docs: " + repeatDocs);
+    if (metricsFile != null) {
+      System.out.println("Metrics: " + metricsFile + " every " + metricsIntervalMS + " msec");
+    }
+    if (profileIndexWriter) {
+      System.out.println("Profile IndexWriter: every " + profileIntervalMS + " msec");
+    }
     
     if (verbose) {
       InfoStream.setDefault(new PrintStreamInfoStream(System.out));
@@ -413,6 +496,8 @@ public final class Indexer {
 
     final AtomicBoolean indexingFailed = new AtomicBoolean();
 
+    final IndexWriterProfiler profiler = profileIndexWriter ? new IndexWriterProfiler(System.out, profileIntervalMS) : null;
+
     final String finalIndexSortField = indexSortField;
     final SortField.Type finalIndexSortType = indexSortType;
 
@@ -436,7 +521,7 @@ public final class Indexer {
       iwc.setUseCompoundFile(useCFS);
 
 
-      iwc.setMergeScheduler(getMergeScheduler(indexingFailed, useCMS, maxConcurrentMerges, disableIOThrottle));
+      iwc.setMergeScheduler(getMergeScheduler(indexingFailed, useCMS, maxConcurrentMerges, disableIOThrottle, profiler));
       iwc.setMergePolicy(getMergePolicy(mergePolicy, useCFS));
 
       // Keep all commit points:
@@ -449,10 +534,24 @@ public final class Indexer {
 
     final IndexWriterConfig iwc = getIWC.call();
 
+    if (profiler != null) {
+      iwc.setInfoStream(profiler.wrap(iwc.getInfoStream()));
+    }
+
+    final PrintStream metricsOut;
+    final IngestMetrics metrics;
+    if (metricsFile != null) {
+      metricsOut = new PrintStream(Files.newOutputStream(Paths.get(metricsFile)), false, "UTF-8");
+      metrics = new IngestMetrics(numThreads, metricsOut, metricsIntervalMS);
+      iwc.setInfoStream(metrics.wrap(iwc.getInfoStream()));
+    } else {
+      metricsOut = null;
+      metrics = null;
+    }
 
     System.out.println("IW config=" + iwc);
 
-    IndexWriter w = new IndexWriter(dir, iwc);
+    IndexWriter w = new IndexWriter(metrics == null ? dir : metrics.wrap(dir), iwc);
 
     System.out.println("Index has " + w.getDocStats().maxDoc + " docs");
 
@@ -469,17 +568,21 @@ public final class Indexer {
 
     LineFileDocs lineFileDocs = new LineFileDocs(lineFile, repeatDocs, storeBody, tvsBody, bodyPostingsOffsets, false,
                                                  taxoWriter, facetDimMethods, facetsConfig, addDVFields,
-                                                 vectorFile, vectorDimension);
+                                                 vectorFile, vectorDimension, mmapLineDocs);
 
-    float docsPerSecPerThread = -1f;
-    //float docsPerSecPerThread = 100f;
+    // Unthrottled; for a target rate, pass e.g.
+    // IngestRateLimiter.constant(100f * numThreads, numThreads):
+    IngestRateLimiter rateLimiter = null;
 
-    IndexThreads threads = new IndexThreads(random, w, indexingFailed, lineFileDocs, numThreads, docCountLimit, addGroupingFields, printDPS, mode, docsPerSecPerThread, null, nrtEverySec,
-                                            randomDocIDMax);
+    IndexThreads threads = new IndexThreads(random, w, indexingFailed, lineFileDocs, numThreads, docCountLimit, addGroupingFields, printDPS, mode, rateLimiter, null, nrtEverySec,
+                                            randomDocIDMax, batchSize, metrics);
 
     System.out.println("\nIndexer: start");
     final long t0 = System.currentTimeMillis();
 
+    if (profiler != null) {
+      profiler.start(w, threads.threads);
+    }
     threads.start();
 
     while (!threads.done() && indexingFailed.get() == false) {
@@ -495,6 +598,12 @@ public final class Indexer {
     }
 
     threads.stop();
+    if (profiler != null) {
+      profiler.stop();
+    }
+    if (metricsOut != null) {
+      metricsOut.close();
+    }
 
     final long t1 = System.currentTimeMillis();
     System.out.println("\nIndexer: indexing done (" + (t1-t0) + " msec); total " + w.getDocStats().maxDoc + " docs");
@@ -0,0 +1,274 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.facet.FacetsConfig;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+
+// Sweeps Indexer's -ramBufferMB, -threadCount and
+// -maxConcurrentMerges in one JVM: each trial indexes the same
+// first -docCount docs of the line file into an emptied
+// directory, and we report docs/sec, the segment count of the
+// final commit, and peak heap, marking the Pareto-optimal
+// trials.  -search grid tries every combination; -search hill
+// starts at the middle value of each list and moves to the
+// fastest neighbor until none is faster.  Example:
+//
+//   java perf.IndexerSweep -dirImpl MMapDirectory -indexPath /l/sweep -analyzer StandardAnalyzer
+//     -lineDocsFile /l/data/enwiki.txt -docCount 1000000 -ramBufferMB 64,256,1024
+//     -threadCount 2,4,8,16 -maxConcurrentMerges 1,3,6 -search hill
+//
+// Trials share a JVM, so later trials run with a warmer JIT;
+// put the setting you care most about last, or repeat the sweep.
+public class IndexerSweep {
+
+  private static final class Trial {
+    final double ramBufferMB;
+    final int threadCount;
+    final int maxConcurrentMerges;
+    double docsPerSec;
+    int segmentCount;
+    long peakHeapBytes;
+    boolean pareto;
+
+    Trial(double ramBufferMB, int threadCount, int maxConcurrentMerges) {
+      this.ramBufferMB = ramBufferMB;
+      this.threadCount = threadCount;
+      this.maxConcurrentMerges = maxConcurrentMerges;
+    }
+
+    boolean dominates(Trial other) {
+      return docsPerSec >= other.docsPerSec && segmentCount <= other.segmentCount && peakHeapBytes <= other.peakHeapBytes &&
+        (docsPerSec > other.docsPerSec || segmentCount < other.segmentCount || peakHeapBytes < other.peakHeapBytes);
+    }
+
+    @Override
+    public String toString() {
+      return "ramBufferMB=" + ramBufferMB + " threadCount=" + threadCount + " maxConcurrentMerges=" + maxConcurrentMerges;
+    }
+  }
+
+  private final Directory dir;
+  private final String analyzer;
+  private final String lineFile;
+  private final int docCount;
+  private final String mergePolicy;
+  private final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+  // Keyed by grid coordinates, so hill climbing never re-runs a trial:
+  private final Map<String,Trial> trials = new HashMap<>();
+
+  private IndexerSweep(Directory dir, String analyzer, String lineFile, int docCount, String mergePolicy) {
+    this.dir = dir;
+    this.analyzer = analyzer;
+    this.lineFile = lineFile;
+    this.docCount = docCount;
+    this.mergePolicy = mergePolicy;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        heapPools.add(pool);
+      }
+    }
+  }
+
+  public static void main(String[] clArgs) throws Exception {
+    Args args = new Args(clArgs);
+    final String dirImpl = args.getString("-dirImpl");
+    final String dirPath = args.getString("-indexPath");
+    final String analyzer = args.getString("-analyzer");
+    final String lineFile = args.getString("-lineDocsFile");
+    final int docCount = args.getInt("-docCount");
+    final double[] ramBufferMBs = parseDoubles(args.getString("-ramBufferMB"));
+    final int[] threadCounts = parseInts(args.getString("-threadCount"));
+    final int[] maxConcurrentMerges = parseInts(args.getString("-maxConcurrentMerges"));
+    final String search = args.getString("-search", "grid");
+    final String mergePolicy = args.getString("-mergePolicy", "TieredMergePolicy");
+    args.check();
+
+    if (docCount <= 0) {
+      throw new IllegalArgumentException("-docCount must be > 0; got: " + docCount);
+    }
+    // Fail now, not after the first trial:
+    Indexer.getAnalyzer(analyzer).close();
+
+    final Directory dir = OpenDirectory.get(dirImpl).open(Paths.get(dirPath));
+    final IndexerSweep sweep = new IndexerSweep(dir, analyzer, lineFile, docCount, mergePolicy);
+    if (search.equals("grid")) {
+      for (double ramBufferMB : ramBufferMBs) {
+        for (int threadCount : threadCounts) {
+          for (int merges : maxConcurrentMerges) {
+            sweep.run(ramBufferMB, threadCount, merges);
+          }
+        }
+      }
+    } else if (search.equals("hill")) {
+      sweep.hillClimb(ramBufferMBs, threadCounts, maxConcurrentMerges);
+    } else {
+      throw new IllegalArgumentException("-search must be grid or hill; got: " + search);
+    }
+    PerfUtils.clearDir(dir);
+    dir.close();
+
+    sweep.printTable();
+  }
+
+  private void hillClimb(double[] ramBufferMBs, int[] threadCounts, int[] maxConcurrentMerges) throws Exception {
+    final int[] sizes = new int[] {ramBufferMBs.length, threadCounts.length, maxConcurrentMerges.length};
+    int[] current = new int[] {sizes[0]/2, sizes[1]/2, sizes[2]/2};
+    Trial best = run(ramBufferMBs[current[0]], threadCounts[current[1]], maxConcurrentMerges[current[2]]);
+    while (true) {
+      int[] next = null;
+      for (int axis = 0; axis < sizes.length; axis++) {
+        for (int delta = -1; delta <= 1; delta += 2) {
+          final int[] neighbor = current.clone();
+          neighbor[axis] += delta;
+          if (neighbor[axis] < 0 || neighbor[axis] >= sizes[axis]) {
+            continue;
+          }
+          final Trial trial = run(ramBufferMBs[neighbor[0]], threadCounts[neighbor[1]], maxConcurrentMerges[neighbor[2]]);
+          if (trial.docsPerSec > best.docsPerSec) {
+            best = trial;
+            next = neighbor;
+          }
+        }
+      }
+      if (next == null) {
+        break;
+      }
+      current = next;
+    }
+    System.out.println("\nHill climb converged at " + best);
+  }
+
+  /** Runs one trial, or returns the prior result if we already ran it. */
+  private Trial run(double ramBufferMB, int threadCount, int maxConcurrentMerges) throws Exception {
+    final String key = ramBufferMB + "/" + threadCount + "/" + maxConcurrentMerges;
+    Trial trial = trials.get(key);
+    if (trial != null) {
+      return trial;
+    }
+    trial = new Trial(ramBufferMB, threadCount, maxConcurrentMerges);
+    System.out.println("\nTrial " + (trials.size()+1) + ": " + trial);
+
+    PerfUtils.clearDir(dir);
+    // Don't charge the prior trial's garbage to this one:
+    System.gc();
+    for (MemoryPoolMXBean pool : heapPools) {
+      pool.resetPeakUsage();
+    }
+
+    final AtomicBoolean indexingFailed = new AtomicBoolean();
+    final Analyzer a = Indexer.getAnalyzer(analyzer);
+    final IndexWriterConfig iwc = new IndexWriterConfig(a);
+    iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+    iwc.setMaxBufferedDocs(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+    iwc.setRAMBufferSizeMB(ramBufferMB);
+    iwc.setMergeScheduler(Indexer.getMergeScheduler(indexingFailed, true, maxConcurrentMerges, false, null));
+    iwc.setMergePolicy(Indexer.getMergePolicy(mergePolicy, false));
+    final IndexWriter w = new IndexWriter(dir, iwc);
+
+    final LineFileDocs lineFileDocs = new LineFileDocs(lineFile, false, false, false, false, false,
+                                                       null, new HashMap<String,Integer>(), new FacetsConfig(), false,
+                                                       null, 0);
+    final IndexThreads threads = new IndexThreads(new Random(17), w, indexingFailed, lineFileDocs, threadCount, docCount, false, false,
+                                                  IndexThreads.Mode.ADD, null, null, -1.0, -1, 1, null);
+    final long startNS = System.nanoTime();
+    threads.start();
+    while (threads.done() == false && indexingFailed.get() == false) {
+      Thread.sleep(10);
+    }
+    threads.stop();
+    // Include flushing the last segments, but not waiting for
+    // merges, which the merge settings could trade for speed:
+    w.commit();
+    final long elapsedNS = System.nanoTime() - startNS;
+    if (indexingFailed.get()) {
+      w.rollback();
+      throw new RuntimeException("exceptions during indexing in trial " + trial);
+    }
+
+    trial.docsPerSec = w.getDocStats().maxDoc / (elapsedNS / 1000000000.0);
+    trial.segmentCount = SegmentInfos.readLatestCommit(dir).size();
+    for (MemoryPoolMXBean pool : heapPools) {
+      trial.peakHeapBytes += pool.getPeakUsage().getUsed();
+    }
+    // Abort running merges; the next trial starts from scratch:
+    w.rollback();
+    a.close();
+
+    System.out.println(String.format(Locale.ROOT, "Trial %d: %.1f docs/sec; %d segments; peak heap %.1f MB",
+                                     trials.size()+1, trial.docsPerSec, trial.segmentCount, trial.peakHeapBytes / 1024. / 1024.));
+    trials.put(key, trial);
+    return trial;
+  }
+
+  private void printTable() {
+    final List<Trial> all = new ArrayList<>(trials.values());
+    for (Trial trial : all) {
+      trial.pareto = true;
+      for (Trial other : all) {
+        if (other.dominates(trial)) {
+          trial.pareto = false;
+          break;
+        }
+      }
+    }
+    all.sort(Comparator.comparingDouble((Trial t) -> t.docsPerSec).reversed());
+    System.out.println("\nSweep results (" + docCount + " docs; * = Pareto-optimal on docs/sec vs segments vs peak heap):");
+    System.out.println(String.format(Locale.ROOT, "  %11s %11s %11s %12s %8s %12s", "ramBufferMB", "threadCount", "maxMerges", "docs/sec", "segments", "peakHeapMB"));
+    for (Trial trial : all) {
+      System.out.println(String.format(Locale.ROOT, "%s %11.1f %11d %11d %12.1f %8d %12.1f",
+                                       trial.pareto ? "*" : " ", trial.ramBufferMB, trial.threadCount, trial.maxConcurrentMerges,
+                                       trial.docsPerSec, trial.segmentCount, trial.peakHeapBytes / 1024. / 1024.));
+    }
+  }
+
+  private static double[] parseDoubles(String s) {
+    final String[] parts = s.split(",");
+    final double[] values = new double[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      values[i] = Double.parseDouble(parts[i].trim());
+    }
+    return values;
+  }
+
+  private static int[] parseInts(String s) {
+    final String[] parts = s.split(",");
+    final int[] values = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      values[i] = Integer.parseInt(parts[i].trim());
+    }
+    return values;
+  }
+}
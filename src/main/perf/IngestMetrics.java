@@ -0,0 +1,314 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.InfoStream;
+
+// Ingestion metrics, sampled every intervalMS and written as
+// one JSON object per line, so throughput regressions can be
+// diagnosed without turning on (and then scraping) infoStream.
+// Counters are LongAdders, updated by index threads and
+// IndexWriter's flush/merge threads, and only summed by the
+// reporter thread.  Each line holds the deltas since the prior
+// line:
+//
+//   docs/dps/bytesPerSec      all index threads, plus a per-thread "threads" array
+//   flushes/flushMB           segments flushed, and bytes written by flushes
+//   merges/mergeMBPerSec      merges finished, and bytes written by merges
+//   stallMS/stalled           time IndexWriter stalled indexing threads
+//                             because flushing fell behind
+//   gcCount/gcMS              all collectors, plus a per-collector "gc" object
+//
+// Bytes indexed are the title + body chars LineFileDocs
+// counts.  Flush and merge bytes are tracked by wrapping the
+// Directory, using each output's IOContext; flushes and merges
+// are counted by their .si files.  Stalls are tracked by
+// FlushStallTracker, so wrap the infoStream too:
+class IngestMetrics {
+
+  // Publish bytes written to the shared counter in chunks this
+  // large, instead of on every writeByte:
+  private static final long BYTES_PUBLISH_CHUNK = 1 << 16;
+
+  private final LongAdder[] docsByThread;
+  private final LongAdder[] bytesByThread;
+  private final LongAdder flushCount = new LongAdder();
+  private final LongAdder flushBytes = new LongAdder();
+  private final LongAdder mergeCount = new LongAdder();
+  private final LongAdder mergeBytes = new LongAdder();
+  private final FlushStallTracker flushStalls = new FlushStallTracker();
+
+  private final PrintStream out;
+  private final long intervalMS;
+  private final List<GarbageCollectorMXBean> gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
+  private Reporter reporter;
+
+  public IngestMetrics(int numThreads, PrintStream out, long intervalMS) {
+    if (intervalMS <= 0) {
+      throw new IllegalArgumentException("intervalMS must be > 0; got: " + intervalMS);
+    }
+    docsByThread = new LongAdder[numThreads];
+    bytesByThread = new LongAdder[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      docsByThread[i] = new LongAdder();
+      bytesByThread[i] = new LongAdder();
+    }
+    this.out = out;
+    this.intervalMS = intervalMS;
+  }
+
+  /** Called by index thread threadID for each doc it indexes. */
+  public void docIndexed(int threadID, int bytes) {
+    docsByThread[threadID].increment();
+    bytesByThread[threadID].add(bytes);
+  }
+
+  /** Returns a Directory that counts bytes written by flushes and merges. */
+  public Directory wrap(Directory dir) {
+    return new FilterDirectory(dir) {
+      @Override
+      public IndexOutput createOutput(String name, IOContext context) throws IOException {
+        return maybeCount(in.createOutput(name, context), context);
+      }
+
+      @Override
+      public IndexOutput createTempOutput(String prefix, String suffix, IOContext context) throws IOException {
+        return maybeCount(in.createTempOutput(prefix, suffix, context), context);
+      }
+    };
+  }
+
+  private IndexOutput maybeCount(IndexOutput output, IOContext context) {
+    switch (context.context) {
+    case FLUSH:
+      return new CountingIndexOutput(output, flushBytes, flushCount);
+    case MERGE:
+      return new CountingIndexOutput(output, mergeBytes, mergeCount);
+    default:
+      return output;
+    }
+  }
+
+  /** Returns an InfoStream that tracks flush stalls and passes
+   *  everything on to the delegate. */
+  public InfoStream wrap(InfoStream delegate) {
+    return flushStalls.wrap(delegate);
+  }
+
+  public synchronized void start() {
+    if (reporter != null) {
+      throw new IllegalStateException("already started");
+    }
+    reporter = new Reporter();
+    reporter.start();
+  }
+
+  /** Stops the reporter, after it writes a last line covering
+   *  the time since its prior line. */
+  public void stop() throws InterruptedException {
+    final Reporter r;
+    synchronized (this) {
+      r = reporter;
+    }
+    if (r != null) {
+      r.done = true;
+      r.interrupt();
+      r.join();
+    }
+    out.flush();
+  }
+
+  private final class Reporter extends Thread {
+    volatile boolean done;
+
+    private final long startNS = System.nanoTime();
+    private long lastNS = startNS;
+    private final long[] lastThreadDocs = new long[docsByThread.length];
+    private final long[] lastThreadBytes = new long[docsByThread.length];
+    private long lastFlushCount;
+    private long lastFlushBytes;
+    private long lastMergeCount;
+    private long lastMergeBytes;
+    private long lastStallNS;
+    private final long[] lastGCCount = new long[gcBeans.size()];
+    private final long[] lastGCMS = new long[gcBeans.size()];
+
+    Reporter() {
+      setName("IngestMetrics");
+      setDaemon(true);
+      for (int i = 0; i < lastGCCount.length; i++) {
+        lastGCCount[i] = Math.max(0, gcBeans.get(i).getCollectionCount());
+        lastGCMS[i] = Math.max(0, gcBeans.get(i).getCollectionTime());
+      }
+    }
+
+    @Override
+    public void run() {
+      while (done == false) {
+        try {
+          Thread.sleep(intervalMS);
+        } catch (InterruptedException ie) {
+          // stop() wakes us up to write the last line
+        }
+        out.println(nextLine());
+      }
+    }
+
+    private String nextLine() {
+      final long nowNS = System.nanoTime();
+      final double sec = Math.max(1, nowNS - lastNS) / 1000000000.0;
+      final StringBuilder b = new StringBuilder();
+      b.append(String.format(Locale.ROOT, "{\"timeMS\":%d,\"intervalMS\":%d", (nowNS - startNS) / 1000000, (nowNS - lastNS) / 1000000));
+
+      long docs = 0;
+      long bytes = 0;
+      final StringBuilder threads = new StringBuilder();
+      for (int i = 0; i < docsByThread.length; i++) {
+        final long threadDocs = docsByThread[i].sum();
+        final long threadBytes = bytesByThread[i].sum();
+        final long deltaDocs = threadDocs - lastThreadDocs[i];
+        final long deltaBytes = threadBytes - lastThreadBytes[i];
+        lastThreadDocs[i] = threadDocs;
+        lastThreadBytes[i] = threadBytes;
+        docs += deltaDocs;
+        bytes += deltaBytes;
+        if (i > 0) {
+          threads.append(',');
+        }
+        threads.append(String.format(Locale.ROOT, "{\"dps\":%.1f,\"bytesPerSec\":%.1f}", deltaDocs / sec, deltaBytes / sec));
+      }
+      b.append(String.format(Locale.ROOT, ",\"docs\":%d,\"dps\":%.1f,\"bytesPerSec\":%.1f,\"threads\":[%s]", docs, docs / sec, bytes / sec, threads));
+
+      final long flushes = flushCount.sum();
+      final long flushed = flushBytes.sum();
+      final long merges = mergeCount.sum();
+      final long merged = mergeBytes.sum();
+      b.append(String.format(Locale.ROOT, ",\"flushes\":%d,\"flushMB\":%.2f,\"merges\":%d,\"mergeMBPerSec\":%.2f",
+                             flushes - lastFlushCount, (flushed - lastFlushBytes) / 1024. / 1024.,
+                             merges - lastMergeCount, (merged - lastMergeBytes) / 1024. / 1024. / sec));
+      lastFlushCount = flushes;
+      lastFlushBytes = flushed;
+      lastMergeCount = merges;
+      lastMergeBytes = merged;
+
+      final long stall = flushStalls.totalStallNS(nowNS);
+      b.append(String.format(Locale.ROOT, ",\"stallMS\":%.1f,\"stalled\":%b", (stall - lastStallNS) / 1000000.0, flushStalls.isStalled()));
+      lastStallNS = stall;
+
+      long gcCount = 0;
+      long gcMS = 0;
+      final StringBuilder gcs = new StringBuilder();
+      for (int i = 0; i < lastGCCount.length; i++) {
+        final GarbageCollectorMXBean bean = gcBeans.get(i);
+        // -1 means the collector doesn't report this:
+        final long count = Math.max(0, bean.getCollectionCount());
+        final long ms = Math.max(0, bean.getCollectionTime());
+        if (i > 0) {
+          gcs.append(',');
+        }
+        gcs.append(String.format(Locale.ROOT, "\"%s\":{\"count\":%d,\"ms\":%d}", bean.getName().replace("\\", "\\\\").replace("\"", "\\\""),
+                                 count - lastGCCount[i], ms - lastGCMS[i]));
+        gcCount += count - lastGCCount[i];
+        gcMS += ms - lastGCMS[i];
+        lastGCCount[i] = count;
+        lastGCMS[i] = ms;
+      }
+      b.append(String.format(Locale.ROOT, ",\"gcCount\":%d,\"gcMS\":%d,\"gc\":{%s}}", gcCount, gcMS, gcs));
+
+      lastNS = nowNS;
+      return b.toString();
+    }
+  }
+
+  // Counts bytes written to one flushed or merged file, and
+  // counts the flush or merge itself when its .si file is
+  // written:
+  private static final class CountingIndexOutput extends IndexOutput {
+    private final IndexOutput in;
+    private final LongAdder bytes;
+    private final LongAdder segmentCount;
+    private final boolean isSegmentInfo;
+    private long unpublished;
+    private boolean closed;
+
+    CountingIndexOutput(IndexOutput in, LongAdder bytes, LongAdder segmentCount) {
+      super("CountingIndexOutput(" + in + ")", in.getName());
+      this.in = in;
+      this.bytes = bytes;
+      this.segmentCount = segmentCount;
+      isSegmentInfo = "si".equals(IndexFileNames.getExtension(in.getName()));
+    }
+
+    private void count(long numBytes) {
+      unpublished += numBytes;
+      if (unpublished >= BYTES_PUBLISH_CHUNK) {
+        bytes.add(unpublished);
+        unpublished = 0;
+      }
+    }
+
+    @Override
+    public void writeByte(byte b) throws IOException {
+      in.writeByte(b);
+      count(1);
+    }
+
+    @Override
+    public void writeBytes(byte[] b, int offset, int length) throws IOException {
+      in.writeBytes(b, offset, length);
+      count(length);
+    }
+
+    @Override
+    public long getFilePointer() {
+      return in.getFilePointer();
+    }
+
+    @Override
+    public long getChecksum() throws IOException {
+      return in.getChecksum();
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+      if (closed) {
+        return;
+      }
+      closed = true;
+      bytes.add(unpublished);
+      unpublished = 0;
+      if (isSegmentInfo) {
+        segmentCount.increment();
+      }
+    }
+  }
+}
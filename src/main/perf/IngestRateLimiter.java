@@ -0,0 +1,334 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.AbstractHistogram;
+import org.HdrHistogram.HistogramData;
+import org.HdrHistogram.SynchronizedHistogram;
+
+// A token bucket shared by all index threads, so they together
+// follow one target rate instead of each pacing itself.  The
+// target rate follows a profile of steps (for bursts, or a
+// compressed diurnal cycle), and tokens are computed from the
+// absolute schedule, so we don't drift the way summing up
+// sleeps does.  Profile file format, one entry per line:
+//
+//   <durationSec> <docsPerSec>   a step
+//   burst <docs>                 token bucket size (default: index thread count)
+//   loop                         repeat the steps; else the last step's rate continues
+//
+// Blank lines and lines starting with # are ignored.
+class IngestRateLimiter {
+
+  // We re-check the stop flag at least this often while waiting:
+  private static final long MAX_WAIT_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final String desc;
+  private final double[] stepSec;
+  private final double[] stepRate;
+  // Seconds and target docs from start of the profile to each step:
+  private final double[] stepStartSec;
+  private final double[] stepStartDocs;
+  private final double periodSec;
+  private final double periodDocs;
+  private final boolean loop;
+  private final double burstDocs;
+
+  // guarded by this:
+  private long startNS;
+  private boolean started;
+  private double tokens;
+  private double lastDocs;
+  private long issued;
+
+  private final LongAdder[] issuedByStep;
+  // How late each doc was vs its slot on the target schedule:
+  private final AbstractHistogram lagHistogram = new SynchronizedHistogram(TaskThreads.MAX_LATENCY_MICROS, TaskThreads.LATENCY_SIGNIFICANT_DIGITS);
+  private volatile long lastIssueNS;
+
+  IngestRateLimiter(String desc, double[] stepSec, double[] stepRate, boolean loop, double burstDocs) {
+    if (stepSec.length == 0) {
+      throw new IllegalArgumentException("rate profile must have at least one step");
+    }
+    if (burstDocs < 1) {
+      throw new IllegalArgumentException("burst must be >= 1; got: " + burstDocs);
+    }
+    this.desc = desc;
+    this.stepSec = stepSec;
+    this.stepRate = stepRate;
+    this.loop = loop;
+    this.burstDocs = burstDocs;
+    stepStartSec = new double[stepSec.length];
+    stepStartDocs = new double[stepSec.length];
+    issuedByStep = new LongAdder[stepSec.length];
+    double sec = 0;
+    double docs = 0;
+    for (int i = 0; i < stepSec.length; i++) {
+      if (stepSec[i] <= 0 || stepRate[i] < 0) {
+        throw new IllegalArgumentException("rate profile steps need duration > 0 and rate >= 0; got: " + stepSec[i] + " sec at " + stepRate[i] + " docs/sec");
+      }
+      stepStartSec[i] = sec;
+      stepStartDocs[i] = docs;
+      sec += stepSec[i];
+      docs += stepSec[i] * stepRate[i];
+      issuedByStep[i] = new LongAdder();
+    }
+    periodSec = sec;
+    periodDocs = docs;
+    if (loop && periodDocs == 0) {
+      throw new IllegalArgumentException("looping rate profile must index some docs");
+    }
+  }
+
+  /** Fixed rate. */
+  public static IngestRateLimiter constant(double docsPerSec, int burstDocs) {
+    if (docsPerSec <= 0) {
+      throw new IllegalArgumentException("docsPerSec must be > 0; got: " + docsPerSec);
+    }
+    return new IngestRateLimiter(String.format(Locale.ROOT, "%.1f docs/sec", docsPerSec),
+                                 new double[] {1.0}, new double[] {docsPerSec}, false, burstDocs);
+  }
+
+  /** Loads a rate profile file (see above). */
+  public static IngestRateLimiter load(Path path, int defaultBurstDocs) throws IOException {
+    final List<double[]> steps = new ArrayList<>();
+    boolean loop = false;
+    double burst = defaultBurstDocs;
+    try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+      String line;
+      int lineNumber = 0;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        final String[] tokens = line.split("\\s+");
+        try {
+          if (tokens[0].equals("loop") && tokens.length == 1) {
+            loop = true;
+          } else if (tokens[0].equals("burst") && tokens.length == 2) {
+            burst = Double.parseDouble(tokens[1]);
+          } else if (tokens.length == 2) {
+            steps.add(new double[] {Double.parseDouble(tokens[0]), Double.parseDouble(tokens[1])});
+          } else {
+            throw new IllegalArgumentException("could not parse rate profile " + path + " line " + lineNumber + ": \"" + line + "\"");
+          }
+        } catch (NumberFormatException nfe) {
+          throw new IllegalArgumentException("could not parse rate profile " + path + " line " + lineNumber + ": \"" + line + "\"", nfe);
+        }
+      }
+    }
+    final double[] stepSec = new double[steps.size()];
+    final double[] stepRate = new double[steps.size()];
+    for (int i = 0; i < stepSec.length; i++) {
+      stepSec[i] = steps.get(i)[0];
+      stepRate[i] = steps.get(i)[1];
+    }
+    return new IngestRateLimiter("profile " + path.getFileName() + (loop ? " (loop)" : ""), stepSec, stepRate, loop, burst);
+  }
+
+  public double maxRate() {
+    double max = 0;
+    for (double rate : stepRate) {
+      max = Math.max(max, rate);
+    }
+    return max;
+  }
+
+  /** Target docs from the start until sec seconds in. */
+  private double docsAt(double sec) {
+    double base = 0;
+    if (sec >= periodSec) {
+      if (loop) {
+        final double periods = Math.floor(sec / periodSec);
+        base = periods * periodDocs;
+        sec -= periods * periodSec;
+      } else {
+        return periodDocs + (sec - periodSec) * stepRate[stepRate.length-1];
+      }
+    }
+    final int step = stepAt(sec);
+    return base + stepStartDocs[step] + (sec - stepStartSec[step]) * stepRate[step];
+  }
+
+  /** Seconds from the start until the target reaches docs, or
+   *  infinity if it never does. */
+  private double secAt(double docs) {
+    double base = 0;
+    if (docs >= periodDocs) {
+      if (loop) {
+        final double periods = Math.floor(docs / periodDocs);
+        base = periods * periodSec;
+        docs -= periods * periodDocs;
+      } else {
+        final double lastRate = stepRate[stepRate.length-1];
+        if (lastRate == 0) {
+          return Double.POSITIVE_INFINITY;
+        }
+        return periodSec + (docs - periodDocs) / lastRate;
+      }
+    }
+    for (int i = 0; i < stepSec.length; i++) {
+      if (stepRate[i] > 0 && docs < stepStartDocs[i] + stepSec[i] * stepRate[i]) {
+        return base + stepStartSec[i] + (docs - stepStartDocs[i]) / stepRate[i];
+      }
+    }
+    // Only reached through rounding at the very end of a period:
+    return base + periodSec;
+  }
+
+  /** Which step we are in, sec seconds into a period. */
+  private int stepAt(double sec) {
+    int step = 0;
+    while (step < stepSec.length-1 && sec >= stepStartSec[step+1]) {
+      step++;
+    }
+    return step;
+  }
+
+  private int stepAtNS(long ns) {
+    double sec = (ns - startNS) / 1000000000.0;
+    if (sec >= periodSec) {
+      if (loop) {
+        sec -= Math.floor(sec / periodSec) * periodSec;
+      } else {
+        return stepSec.length-1;
+      }
+    }
+    return stepAt(sec);
+  }
+
+  /** Waits until the next doc may be indexed; returns false if
+   *  stop was set while we waited. */
+  public boolean acquire(AtomicBoolean stop) throws InterruptedException {
+    final long waitUntilNS;
+    final long scheduledNS;
+    synchronized (this) {
+      final long nowNS = System.nanoTime();
+      if (started == false) {
+        startNS = nowNS;
+        started = true;
+      }
+      final double nowDocs = docsAt((nowNS - startNS) / 1000000000.0);
+      // Tokens we didn't use are capped at the burst size:
+      tokens = Math.min(burstDocs, tokens + nowDocs - lastDocs);
+      lastDocs = nowDocs;
+      tokens -= 1;
+      issued++;
+      if (tokens >= 0) {
+        waitUntilNS = nowNS;
+      } else {
+        // Reserve the next token; later callers queue behind us:
+        waitUntilNS = toNS(secAt(nowDocs - tokens));
+      }
+      scheduledNS = toNS(secAt(issued));
+    }
+
+    while (true) {
+      final long nowNS = System.nanoTime();
+      if (stop.get()) {
+        return false;
+      }
+      final long waitNS = waitUntilNS - nowNS;
+      if (waitNS <= 0) {
+        break;
+      }
+      // parkNanos, unlike Thread.sleep, doesn't round up to whole msec:
+      LockSupport.parkNanos(Math.min(waitNS, MAX_WAIT_NS));
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+    }
+
+    final long issueNS = System.nanoTime();
+    lastIssueNS = issueNS;
+    issuedByStep[stepAtNS(issueNS)].increment();
+    if (scheduledNS != Long.MAX_VALUE) {
+      lagHistogram.recordValue(Math.min(TaskThreads.MAX_LATENCY_MICROS, Math.max(0, issueNS - scheduledNS) / 1000));
+    }
+    return true;
+  }
+
+  private long toNS(double sec) {
+    if (Double.isInfinite(sec)) {
+      return Long.MAX_VALUE;
+    }
+    return startNS + (long) (sec * 1000000000.0);
+  }
+
+  /** Prints target vs achieved rate, overall and per step, and
+   *  how far behind the target schedule docs were issued. */
+  public synchronized void printStats(PrintStream out) {
+    if (started == false) {
+      out.println("Rate limiter " + desc + ": no docs issued");
+      return;
+    }
+    final double elapsedSec = (lastIssueNS - startNS) / 1000000000.0;
+    final double targetDocs = docsAt(elapsedSec);
+    long achievedDocs = 0;
+    for (LongAdder count : issuedByStep) {
+      achievedDocs += count.sum();
+    }
+    final HistogramData lag = lagHistogram.getHistogramData();
+    out.println(String.format(Locale.ROOT, "Rate limiter %s: %.1f sec; target %.0f docs (%.1f docs/sec); achieved %d docs (%.1f docs/sec; %.1f%% of target); schedule lag p50=%.1f p99=%.1f max=%.1f msec",
+                              desc, elapsedSec, targetDocs, targetDocs / elapsedSec, achievedDocs, achievedDocs / elapsedSec,
+                              targetDocs == 0 ? 100.0 : 100.0 * achievedDocs / targetDocs,
+                              lag.getValueAtPercentile(50.0)/1000.0, lag.getValueAtPercentile(99.0)/1000.0, lag.getMaxValue()/1000.0));
+    if (stepSec.length > 1) {
+      for (int i = 0; i < stepSec.length; i++) {
+        final double secInStep = secondsInStep(i, elapsedSec);
+        if (secInStep == 0) {
+          continue;
+        }
+        out.println(String.format(Locale.ROOT, "  step %d: %.1f sec at target %.1f docs/sec; achieved %.1f docs/sec",
+                                  i, secInStep, stepRate[i], issuedByStep[i].sum() / secInStep));
+      }
+    }
+  }
+
+  private double secondsInStep(int step, double elapsedSec) {
+    double periods = 0;
+    double sec = elapsedSec;
+    if (sec >= periodSec) {
+      if (loop) {
+        periods = Math.floor(sec / periodSec);
+        sec -= periods * periodSec;
+      } else if (step == stepSec.length-1) {
+        return sec - stepStartSec[step];
+      } else {
+        return stepSec[step];
+      }
+    }
+    return periods * stepSec[step] + Math.min(stepSec[step], Math.max(0, sec - stepStartSec[step]));
+  }
+}
@@ -26,20 +26,21 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.text.DateFormatSymbols;
-import java.text.ParsePosition;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -66,7 +67,9 @@ import org.apache.lucene.facet.taxonomy.TaxonomyWriter;
 import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.index.VectorValues.SearchStrategy;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
 import org.apache.lucene.util.UnicodeUtil;
 
 public class LineFileDocs implements Closeable {
@@ -97,13 +100,32 @@ public class LineFileDocs implements Closeable {
   final boolean isBinary;
   private final ThreadLocal<LineFileDoc> nextDocs = new ThreadLocal<>();
   private final String[] months = DateFormatSymbols.getInstance(Locale.ROOT).getMonths();
+  private final BytesRef[] monthBytes = new BytesRef[months.length];
   private final String vectorFile;
   private final int vectorDimension;
   private SeekableByteChannel vectorChannel;
 
+  // Only used with mmap: the blocks of the binary line file,
+  // which indexing threads claim directly instead of going
+  // through the reader thread:
+  private final MappedBlocks mappedBlocks;
+  private final AtomicLong nextBlock = new AtomicLong();
+  private FileChannel vectorFileChannel;
+
   public LineFileDocs(String path, boolean doRepeat, boolean storeBody, boolean tvsBody, boolean bodyPostingsOffsets,
                       boolean doClone, TaxonomyWriter taxoWriter, Map<String,Integer> facetFields,
                       FacetsConfig facetsConfig, boolean addDVFields, String vectorFile, int vectorDimension) throws IOException {
+    this(path, doRepeat, storeBody, tvsBody, bodyPostingsOffsets, doClone, taxoWriter, facetFields, facetsConfig,
+         addDVFields, vectorFile, vectorDimension, false);
+  }
+
+  /** If mmap is true, path must be a binary (.bin) line file,
+   *  which is memory-mapped and decoded directly by the threads
+   *  calling {@link #nextDoc}, with no reader thread. */
+  public LineFileDocs(String path, boolean doRepeat, boolean storeBody, boolean tvsBody, boolean bodyPostingsOffsets,
+                      boolean doClone, TaxonomyWriter taxoWriter, Map<String,Integer> facetFields,
+                      FacetsConfig facetsConfig, boolean addDVFields, String vectorFile, int vectorDimension,
+                      boolean mmap) throws IOException {
     this.path = path;
     this.isBinary = path.endsWith(".bin");
     this.storeBody = storeBody;
@@ -117,6 +139,22 @@ public class LineFileDocs implements Closeable {
     this.addDVFields = addDVFields;
     this.vectorFile = vectorFile;
     this.vectorDimension = vectorDimension;
+    for (int i = 0; i < months.length; i++) {
+      monthBytes[i] = new BytesRef(months[i]);
+    }
+
+    if (mmap) {
+      if (isBinary == false) {
+        throw new IllegalArgumentException("mmap requires a binary (.bin) line docs file; got: " + path);
+      }
+      mappedBlocks = new MappedBlocks(Paths.get(path));
+      if (vectorFile != null) {
+        vectorFileChannel = FileChannel.open(Paths.get(vectorFile), StandardOpenOption.READ);
+      }
+      readerThread = null;
+      return;
+    }
+    mappedBlocks = null;
 
     open();
     readerThread = new Thread() {
@@ -203,6 +241,131 @@ public class LineFileDocs implements Closeable {
     return vector;
   }
 
+  // Memory-mapped binary line file, plus the offset of every
+  // block in it so threads can claim blocks by ordinal:
+  private static final class MappedBlocks {
+    // Each mapping is at most this large (a MappedByteBuffer is
+    // limited to 2 GB); blocks never span two mappings:
+    private static final long MAX_MAPPING_BYTES = 1L << 30;
+
+    final MappedByteBuffer[] mappings;
+    // Per block: which mapping, where its docs start in that
+    // mapping, their length in bytes, doc count, and ordinal
+    // of its first doc in the file:
+    final int[] mapping;
+    final int[] offset;
+    final int[] length;
+    final int[] count;
+    final long[] docStart;
+    final int numBlocks;
+
+    MappedBlocks(Path path) throws IOException {
+      long t0 = System.nanoTime();
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        final long fileLength = channel.size();
+        int[] mapping = new int[1024];
+        int[] offset = new int[1024];
+        int[] length = new int[1024];
+        int[] count = new int[1024];
+        long[] docStart = new long[1024];
+        List<MappedByteBuffer> mappings = new ArrayList<>();
+
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        long pos = 0;
+        long mappingStart = 0;
+        long docCount = 0;
+        int upto = 0;
+        while (pos < fileLength) {
+          header.clear();
+          while (header.hasRemaining()) {
+            if (channel.read(header, pos + header.position()) == -1) {
+              throw new RuntimeException("truncated block header at file offset " + pos + " in " + path);
+            }
+          }
+          final int blockCount = header.getInt(0);
+          final int blockLength = header.getInt(4);
+          final long blockEnd = pos + 8 + blockLength;
+          if (blockEnd > fileLength) {
+            throw new RuntimeException("block at file offset " + pos + " has length " + blockLength + " past end of file " + path);
+          }
+          if (blockEnd - mappingStart > MAX_MAPPING_BYTES && pos > mappingStart) {
+            mappings.add(channel.map(FileChannel.MapMode.READ_ONLY, mappingStart, pos - mappingStart));
+            mappingStart = pos;
+          }
+          if (upto == mapping.length) {
+            mapping = ArrayUtil.grow(mapping);
+            offset = ArrayUtil.grow(offset, mapping.length);
+            length = ArrayUtil.grow(length, mapping.length);
+            count = ArrayUtil.grow(count, mapping.length);
+            docStart = ArrayUtil.grow(docStart, mapping.length);
+          }
+          mapping[upto] = mappings.size();
+          offset[upto] = Math.toIntExact(pos + 8 - mappingStart);
+          length[upto] = blockLength;
+          count[upto] = blockCount;
+          docStart[upto] = docCount;
+          docCount += blockCount;
+          upto++;
+          pos = blockEnd;
+        }
+        if (pos > mappingStart) {
+          mappings.add(channel.map(FileChannel.MapMode.READ_ONLY, mappingStart, pos - mappingStart));
+        }
+        if (upto == 0) {
+          throw new IllegalArgumentException("binary line docs file " + path + " has no blocks");
+        }
+
+        this.mappings = mappings.toArray(new MappedByteBuffer[0]);
+        this.mapping = mapping;
+        this.offset = offset;
+        this.length = length;
+        this.count = count;
+        this.docStart = docStart;
+        this.numBlocks = upto;
+        System.out.println(String.format(Locale.ROOT, "LineFileDocs: mmap'd %s: %d blocks, %d docs, %.1f MB in %d mappings (%.1f msec)",
+                                         path, upto, docCount, fileLength/1024./1024., this.mappings.length,
+                                         (System.nanoTime()-t0)/1000000.));
+      }
+    }
+
+    // Returns a private view of this block's docs; each caller
+    // gets its own position/limit so no locking is needed:
+    ByteBuffer block(int block) {
+      ByteBuffer buffer = mappings[mapping[block]].duplicate();
+      buffer.limit(offset[block] + length[block]);
+      buffer.position(offset[block]);
+      return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+  }
+
+  // Claims the next block for the calling thread, or returns
+  // END if we are not repeating and all blocks are claimed:
+  private LineFileDoc claimBlock() throws IOException {
+    final long ord = nextBlock.getAndIncrement();
+    if (ord >= mappedBlocks.numBlocks && doRepeat == false) {
+      return END;
+    }
+    final int block = (int) (ord % mappedBlocks.numBlocks);
+    float[] vector = null;
+    if (vectorFileChannel != null) {
+      // Positional read, so threads don't share a file pointer:
+      final int count = mappedBlocks.count[block];
+      vector = new float[count * vectorDimension];
+      ByteBuffer buffer = ByteBuffer.allocate(count * vectorDimension * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      final long start = mappedBlocks.docStart[block] * vectorDimension * Float.BYTES;
+      while (buffer.hasRemaining()) {
+        if (vectorFileChannel.read(buffer, start + buffer.position()) == -1) {
+          throw new RuntimeException("expected " + buffer.capacity() + " vector bytes at offset " + start + " but hit EOF");
+        }
+      }
+      buffer.position(0);
+      buffer.asFloatBuffer().get(vector);
+    }
+    // Same id numbering as the reader thread, which assigns one
+    // per block in file order:
+    return new LineFileDoc(mappedBlocks.block(block), vector, (int) ord);
+  }
+
   public long getBytesIndexed() {
     return bytesIndexed.get();
   }
@@ -257,6 +420,10 @@ public class LineFileDocs implements Closeable {
 
   @Override
   public synchronized void close() throws IOException {
+    if (vectorFileChannel != null) {
+      vectorFileChannel.close();
+      vectorFileChannel = null;
+    }
     if (reader != null) {
       reader.close();
       reader = null;
@@ -269,7 +436,20 @@ public class LineFileDocs implements Closeable {
 
   public static String intToID(int id) {
     // Base 36, prefixed with 0s to be length 6 (= 2.2 B)
-    final String s = String.format("%6s", Integer.toString(id, Character.MAX_RADIX)).replace(' ', '0');
+    if (id < 0) {
+      return String.format("%6s", Integer.toString(id, Character.MAX_RADIX)).replace(' ', '0');
+    }
+    // Fast path (this is called for every indexed doc):
+    final char[] chars = new char[7];
+    int upto = chars.length;
+    do {
+      chars[--upto] = Character.forDigit(id % Character.MAX_RADIX, Character.MAX_RADIX);
+      id /= Character.MAX_RADIX;
+    } while (id != 0);
+    while (upto > 1) {
+      chars[--upto] = '0';
+    }
+    final String s = new String(chars, upto, chars.length-upto);
     //System.out.println("fromint: " + id + " -> " + s);
     return s;
   }
@@ -343,18 +523,32 @@ public class LineFileDocs implements Closeable {
     //final NumericDocValuesField dateMSec;
     //final LongField rand;
     final Field timeSec;
-    // Necessary for "old style" wiki line files:
-    final SimpleDateFormat dateParser = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss", Locale.US);
     final VectorField vector;
 
-    // For just y/m/day:
-    //final SimpleDateFormat dateParser = new SimpleDateFormat("y/M/d", Locale.US);
-
-    //final SimpleDateFormat dateParser = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+    // Dates in "old style" wiki line files (dd-MMM-yyyy
+    // HH:mm:ss) are parsed with parseDate into this:
     final Calendar dateCal = Calendar.getInstance();
-    final ParsePosition datePos = new ParsePosition(0);
-
-    DocState(boolean storeBody, boolean tvsBody, boolean bodyPostingsOffsets, boolean addDVFields, int vectorDimension) {
+    final DateParser dateParser = new DateParser();
+    // Scratch for decoding title and body out of mmap'd blocks,
+    // which (unlike heap blocks) have no backing array:
+    byte[] utf8Scratch = new byte[0];
+
+    // Decoded title and body, reused across docs so decoding
+    // allocates nothing but the Strings we must hand to stored
+    // fields.  The body is only turned into a String if it is
+    // stored (or the doc is cloned); else the body field reads
+    // the chars through bodyReader:
+    char[] titleChars = new char[0];
+    char[] bodyChars = new char[0];
+    int bodyLength;
+    final CharsReader bodyReader;
+    // Title + body chars of the last doc, as counted by
+    // getBytesIndexed:
+    int docBytes;
+    final BytesRefBuilder titleBytes = new BytesRefBuilder();
+
+    DocState(boolean storeBody, boolean tvsBody, boolean bodyPostingsOffsets, boolean addDVFields, int vectorDimension,
+             boolean bodyAsReader) {
       doc = new Document();
 
       title = new StringField("title", "", Field.Store.NO);
@@ -412,7 +606,13 @@ public class LineFileDocs implements Closeable {
         bodyFieldType.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
       }
 
-      body = new Field("body", "", bodyFieldType);
+      if (bodyAsReader) {
+        bodyReader = new CharsReader();
+        body = new Field("body", bodyReader, bodyFieldType);
+      } else {
+        bodyReader = null;
+        body = new Field("body", "", bodyFieldType);
+      }
       doc.add(body);
 
       id = new Field("id", "", StringField.TYPE_STORED);
@@ -444,7 +644,114 @@ public class LineFileDocs implements Closeable {
   }
 
   public DocState newDocState() {
-    return new DocState(storeBody, tvsBody, bodyPostingsOffsets, addDVFields, vectorDimension);
+    // Reader-valued fields can be neither stored nor cloned:
+    final boolean bodyAsReader = storeBody == false && doClone == false && (facetFields == null || facetFields.isEmpty());
+    return new DocState(storeBody, tvsBody, bodyPostingsOffsets, addDVFields, vectorDimension, bodyAsReader);
+  }
+
+  // Reads the body chars of the current doc; reset for each
+  // doc instead of allocating a new StringReader:
+  static final class CharsReader extends Reader {
+    private char[] chars;
+    private int length;
+    private int upto;
+
+    void reset(char[] chars, int length) {
+      this.chars = chars;
+      this.length = length;
+      this.upto = 0;
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int count) {
+      if (upto == length) {
+        return -1;
+      }
+      final int n = Math.min(count, length - upto);
+      System.arraycopy(chars, upto, buffer, offset, n);
+      upto += n;
+      return n;
+    }
+
+    @Override
+    public void close() {
+      // The analyzer closes us after each doc; nothing to do
+    }
+  }
+
+  // Hand-rolled parser for dd-MMM-yyyy HH:mm:ss (US month
+  // abbreviations, any case), equivalent to the SimpleDateFormat
+  // we used to use but without allocating:
+  static final class DateParser {
+    private static final String[] MONTH_ABBREVS = {"jan", "feb", "mar", "apr", "may", "jun", "jul", "aug", "sep", "oct", "nov", "dec"};
+
+    private String s;
+    private int upto;
+    private int end;
+
+    /** Parses s[start:end] into cal; returns false if it is not a valid date. */
+    boolean parse(String s, int start, int end, Calendar cal) {
+      this.s = s;
+      this.upto = start;
+      this.end = end;
+      final int day = parseNumber('-');
+      final int month = parseMonth();
+      final int year = parseNumber(' ');
+      final int hour = parseNumber(':');
+      final int minute = parseNumber(':');
+      final int second = parseNumber((char) 0);
+      this.s = null;
+      if (day == -1 || month == -1 || year == -1 || hour == -1 || minute == -1 || second == -1) {
+        return false;
+      }
+      cal.clear();
+      cal.set(year, month, day, hour, minute, second);
+      return true;
+    }
+
+    // Parses digits up to (and skipping) the separator, or up to
+    // the first non-digit if sep is 0; returns -1 on error:
+    private int parseNumber(char sep) {
+      if (upto == -1) {
+        return -1;
+      }
+      int i = upto;
+      int value = 0;
+      while (i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+        value = 10*value + (s.charAt(i) - '0');
+        i++;
+      }
+      if (i == upto) {
+        upto = -1;
+        return -1;
+      }
+      if (sep != 0) {
+        if (i == end || s.charAt(i) != sep) {
+          upto = -1;
+          return -1;
+        }
+        i++;
+      }
+      upto = i;
+      return value;
+    }
+
+    // Parses a 3 letter month plus the following '-'; returns
+    // the 0-based month or -1:
+    private int parseMonth() {
+      if (upto == -1 || upto + 4 > end || s.charAt(upto+3) != '-') {
+        upto = -1;
+        return -1;
+      }
+      for (int month = 0; month < MONTH_ABBREVS.length; month++) {
+        if (s.regionMatches(true, upto, MONTH_ABBREVS[month], 0, 3)) {
+          upto += 4;
+          return month;
+        }
+      }
+      upto = -1;
+      return -1;
+    }
   }
 
   // TODO: is there a pre-existing way to do this!!!
@@ -458,11 +765,12 @@ public class LineFileDocs implements Closeable {
       } else if (f instanceof IntPoint) {
         doc2.add(new IntPoint(f.name(), ((IntPoint) f).numericValue().intValue()));
       } else if (f instanceof SortedDocValuesField) {
-        doc2.add(new SortedDocValuesField(f.name(), f.binaryValue()));
+        // Deep copy: DocState reuses the BytesRef for the next doc
+        doc2.add(new SortedDocValuesField(f.name(), BytesRef.deepCopyOf(f.binaryValue())));
       } else if (f instanceof NumericDocValuesField) {
         doc2.add(new NumericDocValuesField(f.name(), f.numericValue().longValue()));
       } else if (f instanceof BinaryDocValuesField) {
-        doc2.add(new BinaryDocValuesField(f.name(), f.binaryValue()));
+        doc2.add(new BinaryDocValuesField(f.name(), BytesRef.deepCopyOf(f.binaryValue())));
       } else if (f instanceof VectorField) {
         doc2.add(new VectorField(f.name(), ((VectorField) f).vectorValue(), f.fieldType().vectorSearchStrategy()));
       } else {
@@ -484,13 +792,10 @@ public class LineFileDocs implements Closeable {
     int spot3;
     String line;
     String title;
-    String body;
     LineFileDoc lfd;
 
     if (isBinary) {
 
-      float[] vector = new float[vectorDimension];
-      FloatBuffer vectorBuffer = null;
       lfd = nextDocs.get();
       if (lfd == null || lfd.byteText.hasRemaining() == false) {
         /*
@@ -500,11 +805,15 @@ public class LineFileDocs implements Closeable {
         }
         */
 
-        try {
-          lfd = queue.take();
-        } catch (InterruptedException ie) {
-          Thread.currentThread().interrupt();
-          throw new RuntimeException(ie);
+        if (mappedBlocks != null) {
+          lfd = claimBlock();
+        } else {
+          try {
+            lfd = queue.take();
+          } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ie);
+          }
         }
         if (lfd == END) {
           return null;
@@ -518,16 +827,37 @@ public class LineFileDocs implements Closeable {
       //System.out.println("    titleLen=" + titleLenBytes + " bodyLenBytes=" + bodyLenBytes);
       msecSinceEpoch  = buffer.getLong();
       timeSec  = buffer.getInt();
-      byte[] bytes = buffer.array();
+      byte[] bytes;
+      int bytesOffset;
+      if (buffer.hasArray()) {
+        bytes = buffer.array();
+        bytesOffset = buffer.arrayOffset() + buffer.position();
+      } else {
+        // mmap'd: copy out this doc's UTF-8 bytes
+        if (doc.utf8Scratch.length < titleLenBytes + bodyLenBytes) {
+          doc.utf8Scratch = new byte[ArrayUtil.oversize(titleLenBytes + bodyLenBytes, Byte.BYTES)];
+        }
+        bytes = doc.utf8Scratch;
+        bytesOffset = 0;
+        buffer.get(bytes, 0, titleLenBytes + bodyLenBytes);
+        buffer.position(buffer.position() - titleLenBytes - bodyLenBytes);
+      }
 
-      char[] titleChars = new char[titleLenBytes];
-      int titleLenChars = UnicodeUtil.UTF8toUTF16(bytes, buffer.position(), titleLenBytes, titleChars);
-      title = new String(titleChars, 0, titleLenChars);
+      // UTF-16 never needs more chars than the UTF-8 had bytes:
+      if (doc.titleChars.length < titleLenBytes) {
+        doc.titleChars = new char[ArrayUtil.oversize(titleLenBytes, Character.BYTES)];
+      }
+      int titleLenChars = UnicodeUtil.UTF8toUTF16(bytes, bytesOffset, titleLenBytes, doc.titleChars);
+      title = new String(doc.titleChars, 0, titleLenChars);
       //System.out.println("title: " + title);
+      if (addDVFields) {
+        doc.titleBytes.copyBytes(bytes, bytesOffset, titleLenBytes);
+      }
 
-      char[] bodyChars = new char[bodyLenBytes];
-      int bodyLenChars = UnicodeUtil.UTF8toUTF16(bytes, buffer.position()+titleLenBytes, bodyLenBytes, bodyChars);
-      body = new String(bodyChars, 0, bodyLenChars);
+      if (doc.bodyChars.length < bodyLenBytes) {
+        doc.bodyChars = new char[ArrayUtil.oversize(bodyLenBytes, Character.BYTES)];
+      }
+      doc.bodyLength = UnicodeUtil.UTF8toUTF16(bytes, bytesOffset+titleLenBytes, bodyLenBytes, doc.bodyChars);
       buffer.position(buffer.position() + titleLenBytes + bodyLenBytes);
 
       doc.dateCal.setTimeInMillis(msecSinceEpoch);
@@ -563,22 +893,26 @@ public class LineFileDocs implements Closeable {
         spot3 = line.length();
       }
 
-      body = line.substring(1+spot2, spot3);
+      doc.bodyLength = spot3 - (1+spot2);
+      if (doc.bodyChars.length < doc.bodyLength) {
+        doc.bodyChars = new char[ArrayUtil.oversize(doc.bodyLength, Character.BYTES)];
+      }
+      line.getChars(1+spot2, spot3, doc.bodyChars, 0);
 
       title = line.substring(0, spot);
+      if (addDVFields) {
+        doc.titleBytes.copyChars(line, 0, spot);
+      }
 
       final String dateString = line.substring(1+spot, spot2);
       doc.date.setStringValue(dateString);
-      doc.datePos.setIndex(0);
-      final Date date = doc.dateParser.parse(dateString, doc.datePos);
-      if (date == null) {
+      if (doc.dateParser.parse(dateString, 0, dateString.length(), doc.dateCal) == false) {
         System.out.println("FAILED: " + dateString);
+        throw new RuntimeException("could not parse date \"" + dateString + "\" in line: [" + line + "]");
       }
       //doc.dateMSec.setLongValue(date.getTime());
 
       //doc.rand.setLongValue(rand.nextInt(10000));
-      //System.out.println("DATE: " + date);
-      doc.dateCal.setTime(date);
       msecSinceEpoch = doc.dateCal.getTimeInMillis();
       timeSec = doc.dateCal.get(Calendar.HOUR_OF_DAY)*3600 + doc.dateCal.get(Calendar.MINUTE)*60 + doc.dateCal.get(Calendar.SECOND);
       if (doc.vector != null) {
@@ -588,14 +922,21 @@ public class LineFileDocs implements Closeable {
 
     final int myID = lfd.id;
 
-    bytesIndexed.addAndGet(body.length() + title.length());
-    doc.body.setStringValue(body);
+    doc.docBytes = doc.bodyLength + title.length();
+    bytesIndexed.addAndGet(doc.docBytes);
+    if (doc.bodyReader != null) {
+      doc.bodyReader.reset(doc.bodyChars, doc.bodyLength);
+    } else {
+      doc.body.setStringValue(new String(doc.bodyChars, 0, doc.bodyLength));
+    }
     doc.title.setStringValue(title);
     if (addDVFields) {
       doc.idNDV.setLongValue(myID);
-      doc.titleBDV.setBytesValue(new BytesRef(title));
-      doc.titleDV.setBytesValue(new BytesRef(title));
-      doc.monthDV.setBytesValue(new BytesRef(months[doc.dateCal.get(Calendar.MONTH)]));
+      // The BytesRef is reused for the next doc; IndexWriter
+      // copies it, and cloneDoc makes a deep copy:
+      doc.titleBDV.setBytesValue(doc.titleBytes.get());
+      doc.titleDV.setBytesValue(doc.titleBytes.get());
+      doc.monthDV.setBytesValue(monthBytes[doc.dateCal.get(Calendar.MONTH)]);
       doc.dayOfYearDV.setLongValue(doc.dateCal.get(Calendar.DAY_OF_YEAR));
       doc.dayOfYearIP.setIntValue(doc.dateCal.get(Calendar.DAY_OF_YEAR));
     }
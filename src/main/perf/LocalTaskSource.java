@@ -22,6 +22,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -43,7 +44,23 @@ class LocalTaskSource implements TaskSource {
 
   public LocalTaskSource(IndexState indexState, TaskParser taskParser, String tasksFile,
                          Random staticRandom, Random random, int numTaskPerCat, int taskRepeatCount,
-                         boolean doPKLookup, boolean groupByCat) throws IOException, ParseException {
+                         boolean doPKLookup, boolean doBatchPKLookup, boolean groupByCat) throws IOException, ParseException {
+
+    final List<Task> prunedTasks = loadPrunedTasks(indexState, taskParser, tasksFile, staticRandom, numTaskPerCat, doPKLookup, doBatchPKLookup);
+    tasks = new ArrayList<>();
+    if (groupByCat) {
+      repeatTasksGrouped(prunedTasks, taskRepeatCount, random);
+    } else {
+      repeatTasksShuffled(prunedTasks, taskRepeatCount, random);
+    }
+    System.out.println("TASK LEN=" + tasks.size());
+  }
+
+  /** Loads tasks from the file, keeps a random numTaskPerCat of
+   *  each category, and optionally adds PK lookup tasks. */
+  static List<Task> loadPrunedTasks(IndexState indexState, TaskParser taskParser, String tasksFile,
+                                    Random staticRandom, int numTaskPerCat, boolean doPKLookup,
+                                    boolean doBatchPKLookup) throws IOException, ParseException {
 
     final List<Task> loadedTasks = loadTasks(taskParser, tasksFile);
     Collections.shuffle(loadedTasks, staticRandom);
@@ -74,13 +91,16 @@ class LocalTaskSource implements TaskSource {
       }
       */
     }
-    tasks = new ArrayList<>();
-    if (groupByCat) {
-      repeatTasksGrouped(prunedTasks, taskRepeatCount, random);
-    } else {
-      repeatTasksShuffled(prunedTasks, taskRepeatCount, random);
+    if (doBatchPKLookup) {
+      // Same count and batch size as the PK tasks, but resolved as
+      // sorted batches (separate category):
+      final int numPKTasks = (int) Math.min(maxDoc/6000., numTaskPerCat);
+      final Set<BytesRef> batchPKSeenIDs = new HashSet<BytesRef>();
+      for(int idx=0;idx<numPKTasks;idx++) {
+        prunedTasks.add(new BatchPKLookupTask(maxDoc, staticRandom, 4000, batchPKSeenIDs, idx));
+      }
     }
-    System.out.println("TASK LEN=" + tasks.size());
+    return prunedTasks;
   }
 
   private void repeatTasksShuffled(List<Task> someTasks, int taskRepeatCount, Random random) {
@@ -94,15 +114,18 @@ class LocalTaskSource implements TaskSource {
   }
 
   private void repeatTasksGrouped(List<Task> someTasks, int taskRepeatCount, Random random) {
+    for (List<Task> categoryTasks : groupByCategory(someTasks)) {
+      repeatTasksShuffled(categoryTasks, taskRepeatCount, random);
+    }
+  }
+
+  static Collection<List<Task>> groupByCategory(List<Task> someTasks) {
     Map<String, List<Task>> tasksByCategory = new HashMap<>();
     for (Task task : someTasks) {
       String category = task.getCategory();
       tasksByCategory.computeIfAbsent(category, c -> new ArrayList<>()).add(task);
     }
-    for (String category : tasksByCategory.keySet()) {
-      List<Task> categoryTasks = tasksByCategory.get(category);
-      repeatTasksShuffled(categoryTasks, taskRepeatCount, random);
-    }
+    return tasksByCategory.values();
   }
 
   @Override
@@ -23,14 +23,24 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.AbstractHistogram;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramData;
+import org.HdrHistogram.SynchronizedHistogram;
 
 import org.apache.lucene.analysis.CharArraySet;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
@@ -40,15 +50,15 @@ import org.apache.lucene.codecs.PostingsFormat;
 import org.apache.lucene.index.ConcurrentMergeScheduler;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
-import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MergePolicy;
 import org.apache.lucene.index.NoDeletionPolicy;
-import org.apache.lucene.index.Term;
+import org.apache.lucene.index.SegmentReader;
 import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.SearcherManager;
-import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TotalHits;
 import org.apache.lucene.search.spell.DirectSpellChecker;
 import org.apache.lucene.store.Directory;
@@ -70,100 +80,108 @@ import perf.IndexThreads.Mode;
 
 public class NRTPerfTest {
 
-	static final class MergedReaderWarmer implements IndexWriter.IndexReaderWarmer {
+	// Start times of updates that have finished (so the next
+	// refresh will make them visible) but are not yet searchable.
+	// Index threads add; the reopen thread drains just before each
+	// refresh and then records each update's visibility lag once
+	// the refresh is done:
+	static final class PendingUpdates {
+
+		// guarded by this:
+		private long[] startNS = new long[1024];
+		private int count;
 
-		private final String field;
+		// only used by the reopen thread:
+		private long[] refreshingNS = new long[1024];
+		private int refreshingCount;
 
-		MergedReaderWarmer(String field) {
-			this.field = field;
+		public synchronized void add(long updateStartNS) {
+			if (count == startNS.length) {
+				startNS = Arrays.copyOf(startNS, 2*count);
+			}
+			startNS[count++] = updateStartNS;
 		}
 
-		@Override
-		public void warm(LeafReader reader) throws IOException {
-			final long t0 = System.currentTimeMillis();
-			//System.out.println("DO WARM: " + reader);
-			IndexSearcher s = new IndexSearcher(reader);
-                        s.setQueryCache(null); // don't bench the cache
-			s.search(new TermQuery(new Term(field, "10")), 10);
-
-			// Warm terms dict & index:
-			/*
-		  final TermsEnum te = reader.fields().terms("body").iterator();
-		  long sumDocs = 0;
-		  DocsEnum docs = null;
-		  int counter = 0;
-		  final List<BytesRef> terms = new ArrayList<BytesRef>();
-		  while(te.next() != null) {
-		    docs = te.docs(null, docs);
-		    if (counter++ % 50 == 0) {
-		      terms.add(new BytesRef(te.term()));
-		    }
-		    int docID;
-		    while((docID = docs.nextDoc()) != DocsEnum.NO_MORE_DOCS) {
-		      sumDocs += docID;
-		    }
-		  }
-		  Collections.reverse(terms);
-
-		  System.out.println("warm: " + terms.size() + " terms");
-		  for(BytesRef term : terms) {
-		    sumDocs += reader.docFreq("body", term);
-		  }
-			 */
-			final long t1 = System.currentTimeMillis();
-			System.out.println("warm took " + (t1-t0) + " msec");
-
-			//NativePosixUtil.mlockTermsDict(reader, "id");
+		/** Claims all finished updates for the refresh that is about to run. */
+		public synchronized void beforeRefresh() {
+			final long[] tmp = refreshingNS;
+			refreshingNS = startNS;
+			refreshingCount = count;
+			startNS = tmp;
+			count = 0;
+		}
+
+		/** Records the visibility lag of all updates claimed by {@link #beforeRefresh}. */
+		public void afterRefresh(long refreshDoneNS, Histogram lagHistogram) {
+			for (int i = 0; i < refreshingCount; i++) {
+				recordMicros(lagHistogram, refreshDoneNS - refreshingNS[i]);
+			}
+			refreshingCount = 0;
 		}
 	}
 
 	static final class ReopenThread extends Thread {
 
-		private final double reopenPerSec;
+		private final ReopenPolicy policy;
 
 		private final SearcherManager manager;
 
 		private final AtomicInteger[] reopensByTime;
 
+		private final Histogram[] reopenTimeByTime;
+
+		private final Histogram[] visibilityLagByTime;
+
+		private final PendingUpdates pendingUpdates;
+
 		private final double runTimeSec;
 
-		ReopenThread(double reopenPerSec, SearcherManager manager, AtomicInteger[] reopensByTime, double runTimeSec) {
-			this.reopenPerSec = reopenPerSec;
+		ReopenThread(ReopenPolicy policy, SearcherManager manager, AtomicInteger[] reopensByTime, Histogram[] reopenTimeByTime,
+		             Histogram[] visibilityLagByTime, PendingUpdates pendingUpdates, double runTimeSec) {
+			this.policy = policy;
 			this.manager = manager;
 			this.reopensByTime = reopensByTime;
+			this.reopenTimeByTime = reopenTimeByTime;
+			this.visibilityLagByTime = visibilityLagByTime;
+			this.pendingUpdates = pendingUpdates;
 			this.runTimeSec = runTimeSec;
 		}
 
 		@Override
 		public void run() {
 			try {
-				final long startMS = System.currentTimeMillis();
-				final long stopMS = startMS + (long) (runTimeSec * 1000);
-
-				int reopenCount = 1;
-				while (true) {
-					final long t = System.currentTimeMillis();
-					if (t >= stopMS) {
-						break;
-					}
-
-					final long sleepMS = startMS + (long) (1000*(reopenCount/reopenPerSec)) - System.currentTimeMillis();
-					if (sleepMS < 0) {
-						System.out.println("WARNING: reopen fell behind by " + Math.abs(sleepMS) + " ms");
-					} else {
-						Thread.sleep(sleepMS);
-					}
+				final long stopNS = System.nanoTime() + (long) (runTimeSec * 1000000000.0);
+
+				// Merged segments we've already seen, so we know when
+				// a refresh exposes a new one:
+				final Set<String> seenMergedSegments = new HashSet<>();
+				IndexSearcher s = manager.acquire();
+				try {
+					addMergedSegments(s, seenMergedSegments);
+				} finally {
+					manager.release(s);
+				}
 
+				while (policy.awaitNextRefresh(stopNS)) {
 					IndexSearcher curS = manager.acquire();
 					try {
+						pendingUpdates.beforeRefresh();
+						policy.beforeRefresh();
 						final long tStart = System.nanoTime();
 						manager.maybeRefresh();
-						++reopenCount;
+						final long tEnd = System.nanoTime();
+						policy.afterRefresh();
+						final int qt = currentQT.get();
+						pendingUpdates.afterRefresh(tEnd, visibilityLagByTime[qt]);
 						IndexSearcher newS = manager.acquire();
 						try {
 							if (curS != newS) {
-								System.out.println("Reopen: " + String.format("%9.4f", (System.nanoTime() - tStart)/1000000.0) + " msec");
-								reopensByTime[currentQT.get()].incrementAndGet();
+								System.out.println("Reopen: " + String.format("%9.4f", (tEnd - tStart)/1000000.0) + " msec");
+								reopensByTime[qt].incrementAndGet();
+								recordMicros(reopenTimeByTime[qt], tEnd - tStart);
+								if (addMergedSegments(newS, seenMergedSegments)) {
+									lastMergeVisibleNS = tEnd;
+								}
 							} else {
 								System.out.println("WARNING: no changes on reopen");
 							}
@@ -214,6 +232,43 @@ public class NRTPerfTest {
 	static AtomicLong[] totalUpdateTimeByTime; 
 	static int statsEverySec;
 
+	// Searches that start within this long after a refresh exposed
+	// a newly merged segment count as post-merge, to see how much
+	// of a latency spike the (un)warmed segment causes:
+	static final long POST_MERGE_WINDOW_NS = TimeUnit.SECONDS.toNanos(1);
+	static volatile long lastMergeVisibleNS = Long.MIN_VALUE / 2;
+
+	/** Adds the merged segments in this searcher to seen, and
+	 *  returns true if any were new. */
+	static boolean addMergedSegments(IndexSearcher s, Set<String> seen) {
+		boolean added = false;
+		for (LeafReaderContext ctx : s.getIndexReader().leaves()) {
+			if (ctx.reader() instanceof SegmentReader) {
+				final SegmentReader sr = (SegmentReader) ctx.reader();
+				if (IndexWriter.SOURCE_MERGE.equals(sr.getSegmentInfo().info.getDiagnostics().get(IndexWriter.SOURCE))) {
+					added |= seen.add(sr.getSegmentName());
+				}
+			}
+		}
+		return added;
+	}
+
+	static void recordMicros(AbstractHistogram h, long nanos) {
+		h.recordValue(Math.min(TaskThreads.MAX_LATENCY_MICROS, Math.max(1, nanos / 1000)));
+	}
+
+	static String percentiles(AbstractHistogram h) {
+		final HistogramData data = h.getHistogramData();
+		if (data.getTotalCount() == 0) {
+			return "n=0";
+		}
+		return String.format(Locale.ROOT, "n=%d p50=%.1f p99=%.1f max=%.1f",
+		                     data.getTotalCount(),
+		                     data.getValueAtPercentile(50.0)/1000.0,
+		                     data.getValueAtPercentile(99.0)/1000.0,
+		                     data.getMaxValue()/1000.0);
+	}
+
 	public static void main(String[] args) throws Exception {
 
 		final String dirImpl = args[0];
@@ -221,15 +276,30 @@ public class NRTPerfTest {
 		final String commit = args[2];
 		final String lineDocFile = args[3];
 		final long seed = Long.parseLong(args[4]);
-		final double docsPerSec = Double.parseDouble(args[5]);
+		// Either a fixed docs/sec, or a rate profile file (see IngestRateLimiter):
+		final String docsPerSecOrProfile = args[5];
 		final double runTimeSec = Double.parseDouble(args[6]);
 		final int numSearchThreads = Integer.parseInt(args[7]);
 		int numIndexThreads = Integer.parseInt(args[8]);
+		IngestRateLimiter rateLimiter;
+		double docsPerSec;
+		try {
+			docsPerSec = Double.parseDouble(docsPerSecOrProfile);
+			// <= 0 means index as fast as we can:
+			rateLimiter = docsPerSec > 0 ? IngestRateLimiter.constant(docsPerSec, numIndexThreads) : null;
+		} catch (NumberFormatException nfe) {
+			rateLimiter = IngestRateLimiter.load(Paths.get(docsPerSecOrProfile), numIndexThreads);
+			docsPerSec = rateLimiter.maxRate();
+		}
 		if (numIndexThreads > docsPerSec) {
 			System.out.println("INFO: numIndexThreads higher than docsPerSec, adjusting numIndexThreads");
 			numIndexThreads = (int) Math.max(1, docsPerSec);
 		}
 		final double reopenPerSec = Double.parseDouble(args[9]);
+		// Optional; defaults to reopening reopenPerSec times per second:
+		final String reopenPolicySpec = args.length > 15 ? args[15] : "fixed:" + (1.0 / reopenPerSec);
+		// Optional; see SegmentWarmers:
+		final String warmersSpec = args.length > 16 ? args[16] : "sync:search";
 		final Mode mode = Mode.valueOf(args[10].toUpperCase(Locale.ROOT));
 		statsEverySec = Integer.parseInt(args[11]);
 		final boolean doCommit = args[12].equals("yes");
@@ -248,11 +318,13 @@ public class NRTPerfTest {
 		System.out.println("Index=" + dirPath);
 		System.out.println("Commit=" + commit);
 		System.out.println("LineDocs=" + lineDocFile);
-		System.out.println("Docs/sec=" + docsPerSec);
+		System.out.println("Docs/sec=" + docsPerSecOrProfile);
 		System.out.println("Run time sec=" + runTimeSec);
 		System.out.println("NumSearchThreads=" + numSearchThreads);
 		System.out.println("NumIndexThreads=" + numIndexThreads);
 		System.out.println("Reopen/sec=" + reopenPerSec);
+		System.out.println("Reopen policy=" + reopenPolicySpec);
+		System.out.println("Warmers=" + warmersSpec);
 		System.out.println("Mode=" + mode);
 		System.out.println("tasksFile=" + tasksFile);
 
@@ -262,12 +334,19 @@ public class NRTPerfTest {
 		searchesByTime = new AtomicInteger[count];
 		totalUpdateTimeByTime = new AtomicLong[count];
 		final AtomicInteger reopensByTime[] = new AtomicInteger[count];
+		// Only the reopen thread records into these; we read a
+		// window only once the clock has moved two windows past it:
+		final Histogram[] reopenTimeByTime = new Histogram[count];
+		final Histogram[] visibilityLagByTime = new Histogram[count];
 		for (int i = 0; i < count; i++) {
 			docsIndexedByTime[i] = new AtomicInteger();
 			searchesByTime[i] = new AtomicInteger();
 			totalUpdateTimeByTime[i] = new AtomicLong();
 			reopensByTime[i] = new AtomicInteger();
+			reopenTimeByTime[i] = TaskThreads.newLatencyHistogram();
+			visibilityLagByTime[i] = TaskThreads.newLatencyHistogram();
 		}
+		final PendingUpdates pendingUpdates = new PendingUpdates();
 
 		System.out.println("Max merge MB/sec = " + (mergeMaxWriteMBPerSec <= 0.0 ? "unlimited" : mergeMaxWriteMBPerSec));
 		final Random random = new Random(seed);
@@ -337,30 +416,51 @@ public class NRTPerfTest {
 		}
 
 		// Make sure merges run @ higher prio than indexing:
-		final ConcurrentMergeScheduler cms = (ConcurrentMergeScheduler) conf.getMergeScheduler();
+		// Also tracks merge throughput, to see what warming costs:
+		final LongAdder mergeCount = new LongAdder();
+		final LongAdder mergeBytes = new LongAdder();
+		final LongAdder mergeNanos = new LongAdder();
+		final ConcurrentMergeScheduler cms = new ConcurrentMergeScheduler() {
+			@Override
+			protected void doMerge(MergeSource mergeSource, MergePolicy.OneMerge merge) throws IOException {
+				final long t0 = System.nanoTime();
+				super.doMerge(mergeSource, merge);
+				mergeNanos.add(System.nanoTime() - t0);
+				mergeBytes.add(merge.totalBytesSize());
+				mergeCount.increment();
+			}
+		};
 		cms.setMaxMergesAndThreads(4, 1);
+		conf.setMergeScheduler(cms);
 
-		conf.setMergedSegmentWarmer(new MergedReaderWarmer(field));
+		final SegmentWarmers warmers = new SegmentWarmers(warmersSpec, field);
+		conf.setMergedSegmentWarmer(warmers);
 
 		final IndexWriter w = new IndexWriter(dir, conf);
 		// w.setInfoStream(System.out);
 
+		final ReopenPolicy reopenPolicy = ReopenPolicy.parse(reopenPolicySpec, w);
+
 		IndexThreads.UpdatesListener updatesListener = new IndexThreads.UpdatesListener() {
-			long startTimeNS;
+			// Called from all index threads:
+			final ThreadLocal<long[]> startTimeNS = ThreadLocal.withInitial(() -> new long[1]);
 			@Override
 			public void beforeUpdate() {
-				startTimeNS = System.nanoTime();
+				startTimeNS.get()[0] = System.nanoTime();
 			}
 			@Override
 			public void afterUpdate() {
+				final long startNS = startTimeNS.get()[0];
 				int idx = currentQT.get();
-				totalUpdateTimeByTime[idx].addAndGet(System.nanoTime() - startTimeNS);
+				totalUpdateTimeByTime[idx].addAndGet(System.nanoTime() - startNS);
 				docsIndexedByTime[idx].incrementAndGet();
+				pendingUpdates.add(startNS);
+				reopenPolicy.afterUpdate();
 			}
 		};
         IndexWriter.DocStats stats = w.getDocStats();
 		IndexThreads indexThreads = new IndexThreads(random, w, new AtomicBoolean(false), docs, numIndexThreads, -1, false, false, mode,
-                                                             (float) (docsPerSec / numIndexThreads), updatesListener, -1.0, stats.maxDoc);
+                                                             rateLimiter, updatesListener, -1.0, stats.maxDoc, 1, null);
 
 		// NativePosixUtil.mlockTermsDict(startR, "id");
 		final SearcherManager manager = new SearcherManager(w, null);
@@ -374,11 +474,24 @@ public class NRTPerfTest {
 		final DirectSpellChecker spellChecker = new DirectSpellChecker();
 		final IndexState indexState = new IndexState(manager, null, field, spellChecker, "FastVectorHighlighter", null, null);
 		final QueryParser qp = new QueryParser(field, analyzer);
-		TaskParser taskParser = new TaskParser(indexState, qp, field, 10, random, null, true);
+		TaskParser taskParser = new TaskParser(indexState, qp, field, 10, random, null, true, -1);
+		final AbstractHistogram postMergeLatency = new SynchronizedHistogram(TaskThreads.MAX_LATENCY_MICROS, TaskThreads.LATENCY_SIGNIFICANT_DIGITS);
+		final AbstractHistogram steadyLatency = new SynchronizedHistogram(TaskThreads.MAX_LATENCY_MICROS, TaskThreads.LATENCY_SIGNIFICANT_DIGITS);
 		final TaskSource tasks = new RandomTaskSource(taskParser, tasksFile, random) {
 			@Override
 			public void taskDone(Task task, long queueTimeNS, TotalHits toalHitCount) {
 				searchesByTime[currentQT.get()].incrementAndGet();
+				// Our tasks have no recvTimeNS, so queueTimeNS is when the task started:
+				final long startNS = queueTimeNS + task.recvTimeNS;
+				final long sinceMergeNS = startNS - lastMergeVisibleNS;
+				if (sinceMergeNS >= 0 && sinceMergeNS < POST_MERGE_WINDOW_NS) {
+					recordMicros(postMergeLatency, System.nanoTime() - startNS);
+				} else {
+					recordMicros(steadyLatency, System.nanoTime() - startNS);
+				}
+				if (task instanceof SearchTask) {
+					warmers.recordQuery(((SearchTask) task).getQuery());
+				}
 			}
 		};
 		System.out.println("Task repeat count 1");
@@ -386,7 +499,7 @@ public class NRTPerfTest {
 		System.out.println("Num task per cat 20");
 		final TaskThreads taskThreads = new TaskThreads(tasks, indexState, numSearchThreads);
 
-		final ReopenThread reopenThread = new ReopenThread(reopenPerSec, manager, reopensByTime, runTimeSec);
+		final ReopenThread reopenThread = new ReopenThread(reopenPolicy, manager, reopensByTime, reopenTimeByTime, visibilityLagByTime, pendingUpdates, runTimeSec);
 		reopenThread.setName("ReopenThread");
 		reopenThread.setPriority(4+Thread.currentThread().getPriority());
 		System.out.println("REOPEN PRI " + reopenThread.getPriority());
@@ -421,12 +534,16 @@ public class NRTPerfTest {
 						other = "";
 					}
 					int prev = prevQT - 1;
-					System.out.println(String.format("QT %d searches=%d docs=%d reopens=%s totUpdateTime=%d", 
+					System.out.println(String.format(Locale.ROOT, "QT %d searches=%d docs=%d reopens=%s totUpdateTime=%d qps=%.1f dps=%.1f reopenMS(%s) lagMS(%s)", 
 							prev, 
 							searchesByTime[prev].get(),
 							docsIndexedByTime[prev].get(),
 							reopensByTime[prev].get() + other,
-							TimeUnit.NANOSECONDS.toMillis(totalUpdateTimeByTime[prev].get())));
+							TimeUnit.NANOSECONDS.toMillis(totalUpdateTimeByTime[prev].get()),
+							searchesByTime[prev].get() / (double) statsEverySec,
+							docsIndexedByTime[prev].get() / (double) statsEverySec,
+							percentiles(reopenTimeByTime[prev]),
+							percentiles(visibilityLagByTime[prev])));
 				}
 			}
 			Thread.sleep(25);
@@ -436,6 +553,14 @@ public class NRTPerfTest {
 		reopenThread.join();
 		indexThreads.stop();
 
+		final Map<String,Histogram> latencyHistograms = taskThreads.getLatencyHistograms();
+		TaskThreads.printLatencySummary(latencyHistograms, System.out);
+		final Histogram allLatencies = TaskThreads.newLatencyHistogram();
+		for (Histogram h : latencyHistograms.values()) {
+			allLatencies.add(h);
+		}
+		System.out.println("Search latency msec: " + percentiles(allLatencies));
+
 		System.out.println("By time:");
 		for (int i = 0; i < searchesByTime.length - 2; i++) {
 			System.out.println(String.format("  %d searches=%d docs=%d reopens=%d totUpdateTime=%d", 
@@ -446,7 +571,36 @@ public class NRTPerfTest {
 					TimeUnit.NANOSECONDS.toMillis(totalUpdateTimeByTime[i].get())));
 		}
 
+		// Reopen wall time and visibility lag (time from the start
+		// of updateDocument until a refresh that includes it
+		// finished), in msec, in the same windows as above:
+		System.out.println("Freshness by time:");
+		final Histogram allReopenTimes = TaskThreads.newLatencyHistogram();
+		final Histogram allVisibilityLags = TaskThreads.newLatencyHistogram();
+		for (int i = 0; i < searchesByTime.length - 2; i++) {
+			System.out.println(String.format(Locale.ROOT, "  %d qps=%.1f dps=%.1f reopenMS(%s) lagMS(%s)",
+					i*statsEverySec,
+					searchesByTime[i].get() / (double) statsEverySec,
+					docsIndexedByTime[i].get() / (double) statsEverySec,
+					percentiles(reopenTimeByTime[i]),
+					percentiles(visibilityLagByTime[i])));
+			allReopenTimes.add(reopenTimeByTime[i]);
+			allVisibilityLags.add(visibilityLagByTime[i]);
+		}
+		System.out.println("Reopen time msec: " + percentiles(allReopenTimes));
+		System.out.println("Visibility lag msec: " + percentiles(allVisibilityLags));
+		reopenPolicy.printStats(System.out);
+
+		System.out.println("Post-merge search latency msec: " + percentiles(postMergeLatency));
+		System.out.println("Steady search latency msec: " + percentiles(steadyLatency));
+		warmers.printStats(System.out);
+		final double mergeSec = mergeNanos.sum() / 1000000000.0;
+		System.out.println(String.format(Locale.ROOT, "Merges: %d merges; %.1f MB in %.1f sec merge time (%.1f MB/sec)",
+				mergeCount.sum(), mergeBytes.sum() / 1024. / 1024., mergeSec,
+				mergeSec == 0.0 ? 0.0 : mergeBytes.sum() / 1024. / 1024. / mergeSec));
+
 		manager.close();
+		warmers.close();
 		if (doCommit) {
                   w.close();
 		} else {
@@ -0,0 +1,134 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.lucene.search.TotalHits;
+
+// Wraps another TaskSource and issues its tasks at a fixed
+// target rate (open loop), instead of as fast as the search
+// threads can pull them (closed loop).  Each task's
+// recvTimeNS is set to its intended send time, so the
+// latency we measure includes any time it spent waiting for
+// a free search thread, ie we don't suffer from coordinated
+// omission once the searcher falls behind the arrival rate.
+// This is the in-JVM equivalent of sendTasks.py +
+// RemoteTaskSource.
+class OpenLoopTaskSource implements TaskSource {
+
+  private final TaskSource tasks;
+  private final double targetQPS;
+  private final boolean poisson;
+  private final Random random;
+
+  // guarded by this:
+  private long startNS;
+  private long nextSendNS;
+  private int sentCount;
+
+  private volatile long lastDoneNS;
+
+  public OpenLoopTaskSource(TaskSource tasks, double targetQPS, String arrivals, Random random) {
+    if (targetQPS <= 0.0) {
+      throw new IllegalArgumentException("targetQPS must be > 0; got: " + targetQPS);
+    }
+    if (arrivals.equals("poisson")) {
+      poisson = true;
+    } else if (arrivals.equals("constant")) {
+      poisson = false;
+    } else {
+      throw new IllegalArgumentException("arrivals must be poisson or constant; got: " + arrivals);
+    }
+    this.tasks = tasks;
+    this.targetQPS = targetQPS;
+    this.random = random;
+  }
+
+  @Override
+  public Task nextTask() throws InterruptedException {
+    final Task task;
+    final long sendNS;
+    synchronized (this) {
+      task = tasks.nextTask();
+      if (task == null || task == Task.END_TASK) {
+        return task;
+      }
+      if (sentCount == 0) {
+        // First task goes out immediately; the schedule is
+        // relative to it:
+        startNS = System.nanoTime();
+        nextSendNS = startNS;
+      }
+      sendNS = nextSendNS;
+      nextSendNS += nextInterArrivalNS();
+      sentCount++;
+    }
+
+    // Wait (outside the lock) for this task's send time; if
+    // we are already late, we run it right away but still
+    // charge the lateness to its latency:
+    while (true) {
+      final long waitNS = sendNS - System.nanoTime();
+      if (waitNS <= 0) {
+        break;
+      }
+      LockSupport.parkNanos(waitNS);
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+    }
+    task.recvTimeNS = sendNS;
+    return task;
+  }
+
+  private long nextInterArrivalNS() {
+    final double meanNS = 1000000000.0 / targetQPS;
+    if (poisson) {
+      // Exponentially distributed gaps give a Poisson arrival
+      // process:
+      return (long) (-Math.log(1.0 - random.nextDouble()) * meanNS);
+    } else {
+      return (long) meanNS;
+    }
+  }
+
+  @Override
+  public void taskDone(Task task, long queueTimeNS, TotalHits totalHitCount) throws IOException {
+    lastDoneNS = System.nanoTime();
+    tasks.taskDone(task, queueTimeNS, totalHitCount);
+  }
+
+  @Override
+  public List<Task> getAllTasks() {
+    return tasks.getAllTasks();
+  }
+
+  /** Prints target vs achieved rate once all tasks are done;
+   *  per-category latency comes from TaskThreads' histograms. */
+  public synchronized void printStats(PrintStream out) {
+    final double elapsedSec = (lastDoneNS - startNS) / 1000000000.0;
+    out.println(String.format(Locale.ROOT, "Open loop: %s arrivals; target %.1f QPS; sent %d tasks; achieved %.1f QPS",
+                              poisson ? "poisson" : "constant", targetQPS, sentCount, sentCount / elapsedSec));
+  }
+}
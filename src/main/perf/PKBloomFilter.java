@@ -0,0 +1,106 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+// Bloom filter over all terms of one segment's primary key field,
+// so PK lookups can skip the terms dictionary seek in segments that
+// surely don't have the id.  Immutable once built, so one instance
+// is shared by all threads.
+final class PKBloomFilter {
+
+  private static final int SEED1 = 0x3c074a61;
+  private static final int SEED2 = 0x7f4a7c15;
+
+  private final long[] bits;
+  private final int mask;
+  private final int numHashes;
+  private final long termCount;
+
+  private PKBloomFilter(long termCount, int bitsPerKey) {
+    // Round up to a power of 2 so we can mask instead of mod:
+    final long wantBits = Math.max(64, termCount * bitsPerKey);
+    if (wantBits > (1L << 30)) {
+      throw new IllegalArgumentException("too many terms (" + termCount + ") for a bloom filter with " + bitsPerKey + " bits per key");
+    }
+    final int numBits = (int) (Long.highestOneBit(wantBits - 1) << 1);
+    bits = new long[Math.max(1, numBits >>> 6)];
+    mask = numBits - 1;
+    // Optimal count for the bits per key we actually got:
+    numHashes = (int) Math.max(1, Math.min(30, Math.round(Math.log(2) * numBits / Math.max(1, termCount))));
+    this.termCount = termCount;
+  }
+
+  /** Builds the filter from every term of the field in this segment;
+   *  returns null if the segment does not have the field. */
+  public static PKBloomFilter build(LeafReader reader, String field, int bitsPerKey) throws IOException {
+    final Terms terms = reader.terms(field);
+    if (terms == null) {
+      return null;
+    }
+    long termCount = terms.size();
+    if (termCount == -1) {
+      // Unknown; maxDoc is an upper bound for a primary key
+      termCount = reader.maxDoc();
+    }
+    final PKBloomFilter filter = new PKBloomFilter(termCount, bitsPerKey);
+    final TermsEnum termsEnum = terms.iterator();
+    BytesRef term;
+    while ((term = termsEnum.next()) != null) {
+      filter.add(term);
+    }
+    return filter;
+  }
+
+  private void add(BytesRef term) {
+    final int h1 = StringHelper.murmurhash3_x86_32(term.bytes, term.offset, term.length, SEED1);
+    final int h2 = StringHelper.murmurhash3_x86_32(term.bytes, term.offset, term.length, SEED2);
+    for (int i = 0; i < numHashes; i++) {
+      final int bit = (h1 + i * h2) & mask;
+      bits[bit >>> 6] |= 1L << bit;
+    }
+  }
+
+  /** Returns false if the term is definitely not in the segment. */
+  public boolean mightContain(BytesRef term) {
+    final int h1 = StringHelper.murmurhash3_x86_32(term.bytes, term.offset, term.length, SEED1);
+    final int h2 = StringHelper.murmurhash3_x86_32(term.bytes, term.offset, term.length, SEED2);
+    for (int i = 0; i < numHashes; i++) {
+      final int bit = (h1 + i * h2) & mask;
+      if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public long ramBytesUsed() {
+    return (long) bits.length * Long.BYTES;
+  }
+
+  public long termCount() {
+    return termCount;
+  }
+}
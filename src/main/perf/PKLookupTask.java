@@ -84,16 +84,11 @@ final class PKLookupTask extends Task {
     try {
       final List<LeafReaderContext> subReaders = searcher.getIndexReader().leaves();
       IndexState.PKLookupState[] pkStates = new IndexState.PKLookupState[subReaders.size()];
+      Bits[] liveDocs = new Bits[subReaders.size()];
       for(int subIDX=0;subIDX<subReaders.size();subIDX++) {
         LeafReaderContext ctx = subReaders.get(subIDX);
-        ThreadLocal<IndexState.PKLookupState> states = state.pkLookupStates.get(ctx.reader().getCoreCacheHelper().getKey());
-        // NPE here means you are trying to use this task on a newly refreshed NRT reader!
-        IndexState.PKLookupState pkState = states.get();
-        if (pkState == null) {
-          pkState = new IndexState.PKLookupState(ctx.reader(), "id");
-          states.set(pkState);
-        }
-        pkStates[subIDX] = pkState;
+        pkStates[subIDX] = state.getPKLookupState(ctx.reader(), "id");
+        liveDocs[subIDX] = ctx.reader().getLiveDocs();
       }
 
       for(int idx=0;idx<ids.length;idx++) {
@@ -103,13 +98,15 @@ final class PKLookupTask extends Task {
           IndexState.PKLookupState pkState = pkStates[subIDX];
           //System.out.println("\nTASK: sub=" + sub);
           //System.out.println("TEST: lookup " + ids[idx].utf8ToString());
-          if (pkState.termsEnum.seekExact(id)) { 
+          if (pkState.bloom != null && pkState.bloom.mightContain(id) == false) {
+            state.pkBloomSeeksAvoided.increment();
+          } else if (pkState.termsEnum.seekExact(id)) { 
             //System.out.println("  found!");
             PostingsEnum docs = pkState.termsEnum.postings(pkState.postingsEnum, 0);
             assert docs != null;
             int docID = DocIdSetIterator.NO_MORE_DOCS;
             for (int d = docs.nextDoc(); d != DocIdSetIterator.NO_MORE_DOCS; d = docs.nextDoc()) {
-              if (pkState.liveDocs == null || pkState.liveDocs.get(d)) {
+              if (liveDocs[subIDX] == null || liveDocs[subIDX].get(d)) {
                 docID = d;
                 break;
               }
@@ -118,6 +115,8 @@ final class PKLookupTask extends Task {
               answers[idx] = base + docID;
               break;
             }
+          } else if (pkState.bloom != null) {
+            state.pkBloomFalsePositives.increment();
           }
           base += subReaders.get(subIDX).reader().maxDoc();
         }
@@ -18,35 +18,162 @@ package perf;
  */
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.search.TotalHits;
 
-// Serves up tasks from remote client
+// Serves up tasks from any number of remote clients (see
+// sendTasks.py).  A single selector thread accepts clients,
+// reads their requests and writes back their results; nothing
+// it does blocks, so one slow client can't stall the others.
+// Results are appended to a per-client outbound buffer as tasks
+// finish, and flushed (all pending responses in one write) when
+// the client's socket is writable.  If the task queue is full,
+// we stop reading from that client until its tasks fit again.
+//
+// Each request and response is a frame: a 4 byte big-endian
+// length followed by that many bytes of UTF-8 text.  Requests
+// are one task line each; the request END// (from any client)
+// stops the searcher once queued tasks are done.  Responses are
+// clientTaskID:totalHitCount:queueTimeMS, where clientTaskID
+// counts up from 0 in the order that client sent its tasks.
 class RemoteTaskSource extends Thread implements TaskSource {
-  private final ServerSocket serverSocket;
+  private final Selector selector;
+  private final ServerSocketChannel serverChannel;
   private final TaskParser taskParser;
   private final int numThreads;
-  private static final int MAX_BYTES = 70;
+
+  // Guards against a corrupt length prefix making us allocate
+  // a huge buffer:
+  private static final int MAX_FRAME_BYTES = 1024*1024;
 
   // nocommit maybe fair=true?
   private final BlockingQueue<Task> queue = new ArrayBlockingQueue<Task>(100000);
 
+  // Maps our (server-wide) taskID back to the client that
+  // sent the task:
+  private final Map<Integer,Pending> pending = new ConcurrentHashMap<>();
+
+  // Connections with newly buffered responses, for the selector
+  // thread to flush:
+  private final Queue<Connection> toFlush = new ConcurrentLinkedQueue<>();
+
+  // Only touched by the selector thread:
+  private int taskCount;
+  // Connections whose tasks didn't fit in the queue; we stopped
+  // reading from them until they do:
+  private final List<Connection> backlogged = new ArrayList<>();
+
+  private static class Connection {
+    final SocketChannel channel;
+    final SelectionKey key;
+    final String name;
+    // Starts as the 4 byte length, then holds the frame:
+    ByteBuffer readBuffer = ByteBuffer.allocate(4);
+    boolean readingLength = true;
+    int sentCount;
+    // Parsed tasks waiting for room in the queue:
+    final Deque<Task> backlog = new ArrayDeque<>();
+    volatile boolean closed;
+
+    // Guarded by this; responses not yet written, in write mode:
+    ByteBuffer outBuffer = ByteBuffer.allocate(1024);
+    // Guarded by this; true if already queued in toFlush, or
+    // waiting for OP_WRITE:
+    boolean flushPending;
+
+    Connection(SocketChannel channel, SelectionKey key) {
+      this.channel = channel;
+      this.key = key;
+      String s;
+      try {
+        s = channel.getRemoteAddress().toString();
+      } catch (IOException ioe) {
+        s = "?";
+      }
+      name = s;
+    }
+
+    // Returns true if the caller must schedule a flush:
+    synchronized boolean append(byte[] bytes) {
+      if (outBuffer.remaining() < 4 + bytes.length) {
+        ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(2*outBuffer.capacity(), outBuffer.position() + 4 + bytes.length));
+        outBuffer.flip();
+        newBuffer.put(outBuffer);
+        outBuffer = newBuffer;
+      }
+      outBuffer.putInt(bytes.length);
+      outBuffer.put(bytes);
+      if (flushPending) {
+        return false;
+      }
+      flushPending = true;
+      return true;
+    }
+
+    // Writes as much as the socket takes without blocking;
+    // returns true if responses are still buffered:
+    synchronized boolean flush() throws IOException {
+      outBuffer.flip();
+      try {
+        channel.write(outBuffer);
+      } finally {
+        outBuffer.compact();
+      }
+      flushPending = outBuffer.position() > 0;
+      return flushPending;
+    }
+
+    void close() {
+      closed = true;
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException ioe) {
+      }
+    }
+  }
+
+  private static class Pending {
+    final Connection conn;
+    final int clientTaskID;
+
+    Pending(Connection conn, int clientTaskID) {
+      this.conn = conn;
+      this.clientTaskID = clientTaskID;
+    }
+  }
+
   public RemoteTaskSource(String iface, int port, int numThreads, TaskParser taskParser) throws IOException {
     this.numThreads = numThreads;
     this.taskParser = taskParser;
-    serverSocket = new ServerSocket(port, 50, InetAddress.getByName(iface));
-    System.out.println("Waiting for client connection on interface " + iface + ", port " + port);
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress(InetAddress.getByName(iface), port), 50);
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    System.out.println("Waiting for client connections on interface " + iface + ", port " + port);
+    setName("RemoteTaskSource");
     setPriority(Thread.MAX_PRIORITY);
     setDaemon(true);
     start();
@@ -57,102 +184,201 @@ class RemoteTaskSource extends Thread implements TaskSource {
     return null;
   }
 
-  private volatile OutputStream out;
-
   @Override
   public void run() {
-    // Start server socket and accept only one client
-    // connection, which will feed us the requests:
+    try {
+      while (true) {
+        if (backlogged.isEmpty()) {
+          selector.select();
+        } else {
+          // Poll for room in the queue:
+          selector.select(1);
+          drainBacklogs();
+        }
 
-    newClient: while(true) {
-      Socket socket = null;
-      InputStream in;
-      try {
-        System.out.println("  ready for client...");
-        socket = serverSocket.accept();
-        in = socket.getInputStream();
-        out = socket.getOutputStream();
-      } catch (IOException ioe) {
-        if (socket != null) {
-          try {
-            socket.close();
-          } catch (IOException ioe2) {
-          }
+        Connection conn;
+        while ((conn = toFlush.poll()) != null) {
+          flush(conn);
         }
-        continue;
-      }
-      System.out.println("    connection!");
 
-      try {
-        final byte[] buffer = new byte[MAX_BYTES];
-        int taskCount = 0;
-        while(true) {
-          int upto = 0;
-          while(upto < buffer.length) {
-            final int inc;
-            try {
-              inc = in.read(buffer, upto, MAX_BYTES-upto);
-            } catch (java.net.SocketException se) {
-              socket.close();
-              queue.clear();
-              out = null;
-              continue newClient;
-            }
-            if (inc >= 0) {
-              upto += inc;
-            } else {
-              // Connection closed
-              socket.close();
-              queue.clear();
-              out = null;
-              continue newClient;
-            }
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+          if (key.isValid() == false) {
+            continue;
           }
-
-          String s = new String(buffer, "UTF-8");
-          if (s.startsWith("END//")) {
-            for(int threadID=0;threadID<numThreads;threadID++) {
-              queue.put(Task.END_TASK);
+          if (key.isAcceptable()) {
+            SocketChannel channel = serverChannel.accept();
+            if (channel != null) {
+              channel.configureBlocking(false);
+              channel.socket().setTcpNoDelay(true);
+              SelectionKey channelKey = channel.register(selector, SelectionKey.OP_READ);
+              channelKey.attach(new Connection(channel, channelKey));
+              System.out.println("    connection from " + ((Connection) channelKey.attachment()).name);
             }
-            break;
-          }
-          Task task;
-          try {
-            task = taskParser.parseOneTask(s);
-          } catch (RuntimeException re) {
-            re.printStackTrace();
             continue;
           }
-          task.recvTimeNS = System.nanoTime();
-          task.taskID = taskCount++;
-          queue.put(task);
-          //System.out.println("S: add " + s + "; size=" + queue.size());
+          conn = (Connection) key.attachment();
+          if (key.isWritable()) {
+            flush(conn);
+          }
+          if (key.isValid() && key.isReadable()) {
+            if (readFrames(conn) == false) {
+              System.out.println("    connection from " + conn.name + " closed");
+              conn.close();
+            } else if (conn.backlog.isEmpty() == false) {
+              // Queue is full: stop reading from this client
+              // until its tasks fit:
+              key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+              backlogged.add(conn);
+            }
+          }
+        }
+      }
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void flush(Connection conn) {
+    if (conn.closed) {
+      return;
+    }
+    try {
+      if (conn.flush()) {
+        // Socket send buffer is full; finish once it's writable:
+        conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_WRITE);
+      } else {
+        conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_WRITE);
+      }
+    } catch (IOException ioe) {
+      System.out.println("Ignore IOException writing to " + conn.name + ": " + ioe);
+      conn.close();
+    }
+  }
+
+  private void drainBacklogs() {
+    Iterator<Connection> it = backlogged.iterator();
+    while (it.hasNext()) {
+      Connection conn = it.next();
+      if (conn.closed) {
+        it.remove();
+      } else if (offerBacklog(conn)) {
+        it.remove();
+        conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_READ);
+      }
+    }
+  }
+
+  // Moves this client's parsed tasks into the queue; returns
+  // false if some didn't fit:
+  private boolean offerBacklog(Connection conn) {
+    while (conn.backlog.isEmpty() == false) {
+      if (queue.offer(conn.backlog.peekFirst()) == false) {
+        return false;
+      }
+      conn.backlog.removeFirst();
+    }
+    return true;
+  }
+
+  // Reads and enqueues all complete frames available on this
+  // connection, stopping early if the queue fills up; returns
+  // false if the client went away:
+  private boolean readFrames(Connection conn) {
+    while (conn.backlog.isEmpty()) {
+      int inc;
+      try {
+        inc = conn.channel.read(conn.readBuffer);
+      } catch (IOException ioe) {
+        return false;
+      }
+      if (inc == -1) {
+        return false;
+      }
+      if (conn.readBuffer.hasRemaining()) {
+        // Wait for more bytes
+        return true;
+      }
+      conn.readBuffer.flip();
+      if (conn.readingLength) {
+        int length = conn.readBuffer.getInt();
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+          System.out.println("    connection from " + conn.name + ": invalid frame length " + length + "; closing");
+          return false;
         }
-      } catch (Exception e) {
-        throw new RuntimeException(e);
+        conn.readBuffer = ByteBuffer.allocate(length);
+        conn.readingLength = false;
+      } else {
+        String s = new String(conn.readBuffer.array(), 0, conn.readBuffer.limit(), StandardCharsets.UTF_8);
+        conn.readBuffer = ByteBuffer.allocate(4);
+        conn.readingLength = true;
+        handleRequest(conn, s);
+        offerBacklog(conn);
+      }
+    }
+    return true;
+  }
+
+  private void handleRequest(Connection conn, String s) {
+    if (s.startsWith("END//")) {
+      for(int threadID=0;threadID<numThreads;threadID++) {
+        conn.backlog.addLast(Task.END_TASK);
       }
+      return;
+    }
+    // Counted even if the task fails to parse, so our
+    // numbering matches the client's:
+    int clientTaskID = conn.sentCount++;
+    Task task;
+    try {
+      task = taskParser.parseOneTask(s.trim());
+    } catch (ParseException | RuntimeException e) {
+      e.printStackTrace();
+      return;
     }
+    task.recvTimeNS = System.nanoTime();
+    task.taskID = taskCount++;
+    pending.put(task.taskID, new Pending(conn, clientTaskID));
+    conn.backlog.addLast(task);
   }
 
   @Override
   public Task nextTask() throws InterruptedException {
-    return queue.take();
+    while (true) {
+      Task task = queue.take();
+      if (task == Task.END_TASK) {
+        return task;
+      }
+      Pending p = pending.get(task.taskID);
+      if (p != null && p.conn.closed == false) {
+        return task;
+      }
+      // Client went away; don't bother running its tasks:
+      pending.remove(task.taskID);
+    }
   }
 
   @Override
-  public void taskDone(Task task, long queueTimeNS, TotalHits totalHitCount) throws IOException {
-    if (out != null) {
-      try {
-        // NOTE: can cause NPE here (we are not sync'd)
-        // but caller will print & ignore it...
-        out.write(String.format(Locale.ENGLISH, "%8d:%9d:%11.1f", task.taskID, totalHitCount.value + (totalHitCount.relation == TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO ? "+" : ""), queueTimeNS/1000000.0).getBytes("UTF-8"));
-      } catch (SocketException se) {
-        System.out.println("Ignore SocketException: " + se);
-        queue.clear();
-      } catch (UnsupportedEncodingException uee) {
-        throw new RuntimeException(uee);
-      }
+  public void taskDone(Task task, long queueTimeNS, TotalHits totalHitCount) {
+    if (task == Task.END_TASK) {
+      // Its taskID is 0, same as the first real task's:
+      return;
+    }
+    Pending p = pending.remove(task.taskID);
+    if (p == null || p.conn.closed) {
+      return;
+    }
+    String s = String.format(Locale.ENGLISH, "%d:%d%s:%.1f",
+                             p.clientTaskID, totalHitCount.value,
+                             totalHitCount.relation == TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO ? "+" : "",
+                             queueTimeNS/1000000.0);
+    if (p.conn.append(s.getBytes(StandardCharsets.UTF_8))) {
+      // Responses that finish before the selector thread gets to
+      // this one are sent in the same write:
+      toFlush.add(p.conn);
+      selector.wakeup();
     }
   }
 }
-
@@ -0,0 +1,331 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.IndexWriter;
+
+// Decides when the NRT reopen thread (NRTPerfTest, SearchPerfTest
+// -nrt) refreshes.  Index threads report each finished update
+// (this is an UpdatesListener), and the reopen thread loops on
+// awaitNextRefresh, calling beforeRefresh/afterRefresh around
+// each refresh.  Specs (-reopenPolicy):
+//
+//   fixed:<sec>                  refresh every <sec> seconds, like before
+//   staleness:<maxMS>[:<maxCPU>] refresh so no update stays invisible for
+//                                longer than <maxMS>, but spend at most
+//                                <maxCPU> (default 0.1) of one core refreshing
+//   ram:<MB>[:<docs>]            refresh once IndexWriter.ramBytesUsed()
+//                                reaches <MB>, or <docs> updates are pending
+abstract class ReopenPolicy implements IndexThreads.UpdatesListener {
+
+  // How often we re-check polling policies:
+  static final long POLL_NS = TimeUnit.MILLISECONDS.toNanos(5);
+
+  private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+  // Updates finished since the last refresh started, and when
+  // the first one finished (Long.MAX_VALUE if none):
+  protected final AtomicLong pendingDocs = new AtomicLong();
+  protected final AtomicLong oldestPendingNS = new AtomicLong(Long.MAX_VALUE);
+
+  // only used by the reopen thread:
+  protected long lastReopenNS;
+  protected long lastRefreshEndNS;
+  private long refreshStartNS;
+  private long refreshStartCPUNS;
+
+  // guarded by this, so printStats can run while we refresh:
+  private long firstNS;
+  private int refreshCount;
+  private long lateCount;
+  private long totalReopenNS;
+  private long totalReopenCPUNS;
+
+  public static ReopenPolicy parse(String spec, IndexWriter writer) {
+    final String[] parts = spec.split(":");
+    try {
+      switch (parts[0]) {
+      case "fixed":
+        if (parts.length == 2) {
+          return new Fixed(Double.parseDouble(parts[1]));
+        }
+        break;
+      case "staleness":
+        if (parts.length == 2 || parts.length == 3) {
+          return new Staleness(Double.parseDouble(parts[1]), parts.length == 3 ? Double.parseDouble(parts[2]) : 0.1);
+        }
+        break;
+      case "ram":
+        if (parts.length == 2 || parts.length == 3) {
+          return new RAM(writer, Double.parseDouble(parts[1]), parts.length == 3 ? Long.parseLong(parts[2]) : 0);
+        }
+        break;
+      }
+    } catch (NumberFormatException nfe) {
+      throw new IllegalArgumentException("could not parse reopen policy \"" + spec + "\"", nfe);
+    }
+    throw new IllegalArgumentException("reopen policy must be fixed:<sec>, staleness:<maxMS>[:<maxCPU>] or ram:<MB>[:<docs>]; got: \"" + spec + "\"");
+  }
+
+  @Override
+  public void beforeUpdate() {
+  }
+
+  @Override
+  public void afterUpdate() {
+    pendingDocs.incrementAndGet();
+    if (oldestPendingNS.get() == Long.MAX_VALUE) {
+      oldestPendingNS.compareAndSet(Long.MAX_VALUE, System.nanoTime());
+    }
+  }
+
+  /** Returns how long to wait before the next refresh; &lt;= 0
+   *  means refresh now.  Waiting less is fine: we just ask
+   *  again. */
+  protected abstract long nanosUntilRefresh(long nowNS);
+
+  /** Waits until the policy wants to refresh; returns false
+   *  if stopNS arrives first. */
+  public boolean awaitNextRefresh(long stopNS) throws InterruptedException {
+    synchronized (this) {
+      if (firstNS == 0) {
+        firstNS = System.nanoTime();
+        lastRefreshEndNS = firstNS;
+        start(firstNS);
+      }
+    }
+    boolean first = true;
+    while (true) {
+      final long nowNS = System.nanoTime();
+      if (nowNS >= stopNS) {
+        return false;
+      }
+      final long waitNS = nanosUntilRefresh(nowNS);
+      if (waitNS <= 0) {
+        if (first && waitNS < 0) {
+          synchronized (this) {
+            lateCount++;
+          }
+          System.out.println("WARNING: reopen fell behind by " + TimeUnit.NANOSECONDS.toMillis(-waitNS) + " ms");
+        }
+        return true;
+      }
+      first = false;
+      TimeUnit.NANOSECONDS.sleep(Math.min(waitNS, stopNS - nowNS));
+    }
+  }
+
+  /** Counts refreshes the policy skipped because it fell behind. */
+  protected synchronized void missedRefreshes(long count) {
+    lateCount += count;
+  }
+
+  /** Called once, just before we start waiting for the first refresh. */
+  protected void start(long nowNS) {
+  }
+
+  /** Called by the reopen thread right before it refreshes. */
+  public void beforeRefresh() {
+    // Updates finishing from now on may miss this refresh, so
+    // they count towards the next one:
+    pendingDocs.set(0);
+    oldestPendingNS.set(Long.MAX_VALUE);
+    refreshStartCPUNS = threadBean.getCurrentThreadCpuTime();
+    refreshStartNS = System.nanoTime();
+  }
+
+  /** Called by the reopen thread once the refresh is done. */
+  public synchronized void afterRefresh() {
+    final long endNS = System.nanoTime();
+    lastReopenNS = endNS - refreshStartNS;
+    lastRefreshEndNS = endNS;
+    totalReopenNS += lastReopenNS;
+    if (refreshStartCPUNS != -1) {
+      totalReopenCPUNS += threadBean.getCurrentThreadCpuTime() - refreshStartCPUNS;
+    }
+    refreshCount++;
+  }
+
+  /** Prints refresh count and cost so far. */
+  public synchronized void printStats(PrintStream out) {
+    final double wallNS = System.nanoTime() - firstNS;
+    out.println(String.format(Locale.ROOT, "Reopen policy %s: %d refreshes (%.2f/sec); %d late; reopen time %.1f%% of wall time, CPU %.1f%% of one core%s",
+                              this, refreshCount, refreshCount / (wallNS / 1000000000.0), lateCount,
+                              100.0 * totalReopenNS / wallNS, 100.0 * totalReopenCPUNS / wallNS, extraStats()));
+  }
+
+  protected String extraStats() {
+    return "";
+  }
+
+  static final class Fixed extends ReopenPolicy {
+    private final long periodNS;
+    private long nextNS;
+
+    Fixed(double everySec) {
+      if (everySec <= 0.0) {
+        throw new IllegalArgumentException("fixed reopen period must be > 0; got: " + everySec);
+      }
+      periodNS = (long) (everySec * 1000000000.0);
+    }
+
+    @Override
+    protected void start(long nowNS) {
+      nextNS = nowNS + periodNS;
+    }
+
+    @Override
+    protected long nanosUntilRefresh(long nowNS) {
+      return nextNS - nowNS;
+    }
+
+    @Override
+    public void beforeRefresh() {
+      super.beforeRefresh();
+      // Stay on the original schedule, but if we fell behind by more
+      // than a period, skip (and count as late) the slots we missed
+      // instead of refreshing back to back to catch up:
+      final long nowNS = System.nanoTime();
+      nextNS += periodNS;
+      if (nextNS <= nowNS) {
+        final long missed = (nowNS - nextNS) / periodNS + 1;
+        nextNS += missed * periodNS;
+        missedRefreshes(missed);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "fixed(sec=" + (periodNS / 1000000000.0) + ")";
+    }
+  }
+
+  // Refreshes just in time so the oldest pending update becomes
+  // visible within maxStalenessMS (allowing for how long recent
+  // reopens took), unless that would spend more than maxCPU of
+  // the reopen thread refreshing, in which case staleness gives:
+  static final class Staleness extends ReopenPolicy {
+    private final double maxStalenessMS;
+    private final long maxStalenessNS;
+    private final double maxCPU;
+
+    // Moving average of reopen time:
+    private double avgReopenNS;
+    private boolean capped;
+    private int cappedCount;
+
+    Staleness(double maxStalenessMS, double maxCPU) {
+      if (maxStalenessMS <= 0.0) {
+        throw new IllegalArgumentException("maxStalenessMS must be > 0; got: " + maxStalenessMS);
+      }
+      if (maxCPU <= 0.0 || maxCPU > 1.0) {
+        throw new IllegalArgumentException("maxCPU must be > 0 and <= 1.0; got: " + maxCPU);
+      }
+      this.maxStalenessMS = maxStalenessMS;
+      this.maxStalenessNS = (long) (maxStalenessMS * 1000000.0);
+      this.maxCPU = maxCPU;
+    }
+
+    @Override
+    protected long nanosUntilRefresh(long nowNS) {
+      final long oldestNS = oldestPendingNS.get();
+      if (oldestNS == Long.MAX_VALUE) {
+        // Nothing to make visible
+        return POLL_NS;
+      }
+      final long deadlineNS = oldestNS + maxStalenessNS - (long) avgReopenNS;
+      // Idle at least this long between refreshes so that
+      // reopen time / (reopen time + idle time) <= maxCPU:
+      final long earliestNS = lastRefreshEndNS + (long) (avgReopenNS * (1.0 - maxCPU) / maxCPU);
+      capped = earliestNS > deadlineNS;
+      return Math.max(deadlineNS, earliestNS) - nowNS;
+    }
+
+    @Override
+    public void beforeRefresh() {
+      if (capped) {
+        cappedCount++;
+      }
+      super.beforeRefresh();
+    }
+
+    @Override
+    public void afterRefresh() {
+      super.afterRefresh();
+      if (avgReopenNS == 0) {
+        avgReopenNS = lastReopenNS;
+      } else {
+        avgReopenNS = 0.75 * avgReopenNS + 0.25 * lastReopenNS;
+      }
+    }
+
+    @Override
+    protected String extraStats() {
+      return "; " + cappedCount + " delayed by CPU cap";
+    }
+
+    @Override
+    public String toString() {
+      return "staleness(maxMS=" + maxStalenessMS + ",maxCPU=" + maxCPU + ")";
+    }
+  }
+
+  // Refreshes once the writer buffers enough RAM or updates.
+  // Note that IndexWriter flushes on its own at its RAM buffer
+  // size, so maxMB should be well below that:
+  static final class RAM extends ReopenPolicy {
+    private final IndexWriter writer;
+    private final double maxMB;
+    private final long maxBytes;
+    private final long maxDocs;
+
+    RAM(IndexWriter writer, double maxMB, long maxDocs) {
+      if (maxMB <= 0.0) {
+        throw new IllegalArgumentException("maxMB must be > 0; got: " + maxMB);
+      }
+      this.writer = writer;
+      this.maxMB = maxMB;
+      this.maxBytes = (long) (maxMB * 1024 * 1024);
+      this.maxDocs = maxDocs;
+    }
+
+    @Override
+    protected long nanosUntilRefresh(long nowNS) {
+      final long docs = pendingDocs.get();
+      if (docs == 0) {
+        return POLL_NS;
+      }
+      if ((maxDocs > 0 && docs >= maxDocs) || writer.ramBytesUsed() >= maxBytes) {
+        return 0;
+      }
+      return POLL_NS;
+    }
+
+    @Override
+    public String toString() {
+      return "ram(maxMB=" + maxMB + (maxDocs > 0 ? ",maxDocs=" + maxDocs : "") + ")";
+    }
+  }
+}
@@ -0,0 +1,241 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramData;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.facet.FacetsConfig;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.spell.DirectSpellChecker;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.NamedThreadFactory;
+
+// Sweeps intra-query concurrency: runs the same tasks once per
+// combination of leaf slice policy and IndexSearcher executor
+// size, and reports per-category latency plus overall QPS for
+// each, to show the tail latency vs throughput trade-off.  Slice
+// policies (-slicePolicies, comma separated):
+//
+//   default          IndexSearcher's default slicing
+//   segment          one slice per segment
+//   maxDocs:<N>      merge small segments into slices of up to N docs
+//   maxSegments:<N>  at most N segments per slice
+//
+// Executor sizes (-executorSizes) are search pool thread counts;
+// 0 means no executor, ie each query runs on its search thread
+// only, so slicing does not apply.  Example:
+//
+//   java perf.SearchConcurrencySweep -dirImpl MMapDirectory -indexPath /l/indices/wikimedium10m
+//     -analyzer StandardAnalyzer -taskSource wikimedium.tasks -tasksPerCat 5 -taskRepeatCount 20
+//     -searchThreadCount 4 -slicePolicies segment,default,maxDocs:1000000 -executorSizes 0,8,32,64
+//
+// We first run all tasks once, unmeasured, to warm up the JVM
+// and OS caches.
+public class SearchConcurrencySweep {
+
+  private static final class Combination {
+    final String slicePolicy;
+    final int executorSize;
+    int sliceCount;
+    double qps;
+    Histogram latency;
+
+    Combination(String slicePolicy, int executorSize) {
+      this.slicePolicy = slicePolicy;
+      this.executorSize = executorSize;
+    }
+  }
+
+  public static void main(String[] clArgs) throws Exception {
+    Args args = new Args(clArgs);
+    final String dirImpl = args.getString("-dirImpl");
+    final String dirPath = args.getString("-indexPath") + "/index";
+    final String analyzer = args.getString("-analyzer");
+    final String fieldName = args.getString("-field", "body");
+    final String tasksFile = args.getString("-taskSource");
+    final int tasksPerCat = args.getInt("-tasksPerCat");
+    final int taskRepeatCount = args.getInt("-taskRepeatCount");
+    final int searchThreadCount = args.getInt("-searchThreadCount");
+    final int topN = args.hasArg("-topN") ? args.getInt("-topN") : 10;
+    final long staticSeed = args.hasArg("-staticSeed") ? args.getLong("-staticSeed") : 0;
+    final long seed = args.hasArg("-seed") ? args.getLong("-seed") : 0;
+    final String hiliteImpl = args.getString("-hiliteImpl", "FastVectorHighlighter");
+    final String[] slicePolicies = args.getString("-slicePolicies", "default").split(",");
+    final String[] executorSizes = args.getString("-executorSizes").split(",");
+    args.check();
+
+    final List<Combination> combinations = new ArrayList<>();
+    for (String executorSize : executorSizes) {
+      final int size = Integer.parseInt(executorSize.trim());
+      if (size < 0) {
+        throw new IllegalArgumentException("-executorSizes must be >= 0; got: " + size);
+      }
+      if (size == 0) {
+        combinations.add(new Combination("none", 0));
+        continue;
+      }
+      for (String slicePolicy : slicePolicies) {
+        // Fail now, not halfway through the sweep:
+        getSlicer(slicePolicy.trim());
+        combinations.add(new Combination(slicePolicy.trim(), size));
+      }
+    }
+
+    final Directory dir = OpenDirectory.get(dirImpl).open(Paths.get(dirPath));
+    final DirectoryReader reader = DirectoryReader.open(dir);
+    System.out.println("maxDoc=" + reader.maxDoc() + " numDocs=" + reader.numDocs() + " segments=" + reader.leaves().size());
+    final Analyzer a = SearchPerfTest.getAnalyzer(analyzer);
+
+    System.out.println("\nWarmup:");
+    runTasks(reader, new Combination("none", 0), a, fieldName, tasksFile, tasksPerCat, taskRepeatCount, searchThreadCount,
+             topN, staticSeed, seed, hiliteImpl);
+
+    for (Combination combination : combinations) {
+      System.out.println("\nslices=" + combination.slicePolicy + " executorSize=" + combination.executorSize + ":");
+      runTasks(reader, combination, a, fieldName, tasksFile, tasksPerCat, taskRepeatCount, searchThreadCount,
+               topN, staticSeed, seed, hiliteImpl);
+    }
+
+    System.out.println("\nSweep results (" + searchThreadCount + " search threads; latency msec over all categories):");
+    System.out.println(String.format(Locale.ROOT, "  %-20s %8s %7s %10s %9s %9s %9s %9s",
+                                     "slices", "executor", "nSlices", "QPS", "p50", "p90", "p99", "max"));
+    for (Combination combination : combinations) {
+      final HistogramData data = combination.latency.getHistogramData();
+      System.out.println(String.format(Locale.ROOT, "  %-20s %8d %7d %10.1f %9.3f %9.3f %9.3f %9.3f",
+                                       combination.slicePolicy, combination.executorSize, combination.sliceCount, combination.qps,
+                                       data.getValueAtPercentile(50.0)/1000.0, data.getValueAtPercentile(90.0)/1000.0,
+                                       data.getValueAtPercentile(99.0)/1000.0, data.getMaxValue()/1000.0));
+    }
+
+    a.close();
+    reader.close();
+    dir.close();
+  }
+
+  private static void runTasks(DirectoryReader reader, Combination combination, Analyzer a, String fieldName,
+                               String tasksFile, int tasksPerCat, int taskRepeatCount, int searchThreadCount,
+                               int topN, long staticSeed, long seed, String hiliteImpl) throws Exception {
+    final ExecutorService executor;
+    if (combination.executorSize > 0) {
+      executor = new ThreadPoolExecutor(combination.executorSize, combination.executorSize, 0L, TimeUnit.MILLISECONDS,
+                                        new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("ConcurrentSearches"));
+    } else {
+      executor = null;
+    }
+    try {
+      final IndexSearcher searcher = newSearcher(reader, executor, combination.slicePolicy);
+      searcher.setQueryCache(null); // don't bench the cache
+      combination.sliceCount = executor == null ? 1 : searcher.getSlices().length;
+
+      // SingleIndexSearcher decRefs the reader when the searcher
+      // is released, so give it its own reference:
+      reader.incRef();
+      final SearchPerfTest.SingleIndexSearcher mgr = new SearchPerfTest.SingleIndexSearcher(searcher);
+      try {
+        final IndexState indexState = new IndexState(mgr, null, fieldName, new DirectSpellChecker(), hiliteImpl,
+                                                     new FacetsConfig(), new HashMap<String,Integer>());
+        final Random staticRandom = new Random(staticSeed);
+        final TaskParser taskParser = new TaskParser(indexState, new QueryParser("body", a), fieldName, topN, staticRandom, null, false, -1);
+        // Same seeds every time, so every combination runs the same tasks in the same order:
+        final TaskSource tasks = new LocalTaskSource(indexState, taskParser, tasksFile, staticRandom, new Random(seed),
+                                                     tasksPerCat, taskRepeatCount, false, false, false);
+        final TaskThreads taskThreads = new TaskThreads(tasks, indexState, searchThreadCount);
+        final long startNS = System.nanoTime();
+        taskThreads.start();
+        taskThreads.finish();
+        final long elapsedNS = System.nanoTime() - startNS;
+
+        final Map<String,Histogram> latencyHistograms = taskThreads.getLatencyHistograms();
+        TaskThreads.printLatencySummary(latencyHistograms, System.out);
+        combination.latency = TaskThreads.newLatencyHistogram();
+        for (Histogram h : latencyHistograms.values()) {
+          combination.latency.add(h);
+        }
+        final long taskCount = combination.latency.getHistogramData().getTotalCount();
+        combination.qps = taskCount / (elapsedNS / 1000000000.0);
+        System.out.println(String.format(Locale.ROOT, "%d tasks; %.1f QPS; %d slices", taskCount, combination.qps, combination.sliceCount));
+      } finally {
+        mgr.close();
+      }
+    } finally {
+      if (executor != null) {
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+      }
+    }
+  }
+
+  private interface Slicer {
+    IndexSearcher.LeafSlice[] slices(List<LeafReaderContext> leaves);
+  }
+
+  private static Slicer getSlicer(String slicePolicy) {
+    if (slicePolicy.equals("default")) {
+      return null;
+    } else if (slicePolicy.equals("segment")) {
+      return leaves -> {
+        final IndexSearcher.LeafSlice[] slices = new IndexSearcher.LeafSlice[leaves.size()];
+        for (int i = 0; i < slices.length; i++) {
+          slices[i] = new IndexSearcher.LeafSlice(leaves.subList(i, i+1));
+        }
+        return slices;
+      };
+    } else if (slicePolicy.startsWith("maxDocs:")) {
+      final int maxDocs = Integer.parseInt(slicePolicy.substring(8));
+      return leaves -> IndexSearcher.slices(leaves, maxDocs, Integer.MAX_VALUE);
+    } else if (slicePolicy.startsWith("maxSegments:")) {
+      final int maxSegments = Integer.parseInt(slicePolicy.substring(12));
+      return leaves -> IndexSearcher.slices(leaves, Integer.MAX_VALUE, maxSegments);
+    } else {
+      throw new IllegalArgumentException("unknown slice policy \"" + slicePolicy + "\"; expected default, segment, maxDocs:<N> or maxSegments:<N>");
+    }
+  }
+
+  private static IndexSearcher newSearcher(DirectoryReader reader, ExecutorService executor, String slicePolicy) throws IOException {
+    final Slicer slicer = executor == null ? null : getSlicer(slicePolicy);
+    if (slicer == null) {
+      return new IndexSearcher(reader, executor);
+    }
+    // NOTE: IndexSearcher's constructor calls slices, which works
+    // here because javac sets captured locals (slicer) before it
+    // invokes the super constructor:
+    return new IndexSearcher(reader, executor) {
+      @Override
+      protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+        return slicer.slices(leaves);
+      }
+    };
+  }
+}
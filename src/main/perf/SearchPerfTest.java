@@ -23,6 +23,8 @@ package perf;
 //  - switch to named cmd line args
 //  - get pk lookup working w/ remote tasks
 
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.file.Path;
@@ -40,6 +42,8 @@ import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import org.HdrHistogram.Histogram;
+
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.CharArraySet;
 import org.apache.lucene.analysis.classic.ClassicAnalyzer;
@@ -97,7 +101,7 @@ import perf.IndexThreads.Mode;
 public class SearchPerfTest {
 
   // ReferenceManager that never changes its searcher:
-  private static class SingleIndexSearcher extends ReferenceManager<IndexSearcher> {
+  static class SingleIndexSearcher extends ReferenceManager<IndexSearcher> {
 
     public SingleIndexSearcher(IndexSearcher s) {
       this.current = s;
@@ -195,20 +199,70 @@ public class SearchPerfTest {
     final String fieldName = args.getString("-field");
     final boolean printHeap = args.getFlag("-printHeap");
     final boolean doPKLookup = args.getFlag("-pk");
+    // Sorted-batch PK lookups, as their own BatchPKLookup category:
+    final boolean doBatchPKLookup = args.getFlag("-batchPK");
+    // Per-segment bloom filters for PK lookups (0 = off):
+    final int pkBloomBitsPerKey;
+    if (args.hasArg("-pkBloomBitsPerKey")) {
+      pkBloomBitsPerKey = args.getInt("-pkBloomBitsPerKey");
+    } else {
+      pkBloomBitsPerKey = 0;
+    }
     final boolean doConcurrentSearches = args.getFlag("-concurrentSearches");
     final int topN = args.getInt("-topN");
     final boolean doStoredLoads = args.getFlag("-loadStoredFields");
+    // If set, run each top N search with exact hit counting and
+    // with this early termination threshold, and compare:
+    final int totalHitsThreshold = args.hasArg("-totalHitsThreshold") ? args.getInt("-totalHitsThreshold") : -1;
+    // Break each SearchTask's time down into rewrite, weight,
+    // search, hilite, facets and stored loads, per category:
+    final boolean profilePhases = args.getFlag("-profilePhases");
+    // Count each taxonomy and SSDV facet request both sequentially
+    // and concurrently (one leaf per task), and compare:
+    final boolean compareConcurrentFacets = args.getFlag("-compareConcurrentFacets");
+
+    // platform or virtual:
+    final String threadModel = args.getString("-threadModel", "platform");
+    final boolean useVirtualThreads;
+    if (threadModel.equals("virtual")) {
+      useVirtualThreads = true;
+    } else if (threadModel.equals("platform")) {
+      useVirtualThreads = false;
+    } else {
+      throw new IllegalArgumentException("-threadModel must be platform or virtual; got: " + threadModel);
+    }
 
     int cores = Runtime.getRuntime().availableProcessors();
 
     final ExecutorService executorService;
     if (doConcurrentSearches) {
-      executorService = new ThreadPoolExecutor(cores, cores, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
-                                               new NamedThreadFactory("ConcurrentSearches"));
+      if (useVirtualThreads) {
+        // Each leaf slice runs on its own virtual thread:
+        executorService = VirtualThreads.newThreadPerTaskExecutor("ConcurrentSearches");
+      } else {
+        executorService = new ThreadPoolExecutor(cores, cores, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                                                 new NamedThreadFactory("ConcurrentSearches"));
+      }
     } else {
       executorService = null;
     }
 
+    final ExecutorService facetExecutorService;
+    if (compareConcurrentFacets) {
+      final int facetThreadCount = args.hasArg("-facetThreadCount") ? args.getInt("-facetThreadCount") : cores;
+      if (useVirtualThreads) {
+        if (args.hasArg("-facetThreadCount")) {
+          throw new IllegalArgumentException("-facetThreadCount does not apply to -threadModel virtual: each concurrent facet task gets its own virtual thread");
+        }
+        facetExecutorService = VirtualThreads.newThreadPerTaskExecutor("ConcurrentFacets");
+      } else {
+        facetExecutorService = new ThreadPoolExecutor(facetThreadCount, facetThreadCount, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                                                      new NamedThreadFactory("ConcurrentFacets"));
+      }
+    } else {
+      facetExecutorService = null;
+    }
+
     // Used to choose which random subset of tasks we will
     // run, to generate the PKLookup tasks, and to generate
     // any random pct filters:
@@ -229,29 +283,20 @@ public class SearchPerfTest {
     System.out.println("Similarity " + similarity);
     System.out.println("Search thread count " + searchThreadCount);
     System.out.println("topN " + topN);
+    if (totalHitsThreshold >= 0) {
+      System.out.println("Compare exact vs totalHitsThreshold " + totalHitsThreshold);
+    }
     System.out.println("JVM " + (Constants.JRE_IS_64BIT ? "is" : "is not") + " 64bit");
     System.out.println("Pointer is " + RamUsageEstimator.NUM_BYTES_OBJECT_REF + " bytes");
     System.out.println("Concurrent segment reads is " + doConcurrentSearches);
+    System.out.println("Thread model " + threadModel);
  
-    final Analyzer a;
-    if (analyzer.equals("EnglishAnalyzer")) {
-      a = new EnglishAnalyzer();
-    } else if (analyzer.equals("ClassicAnalyzer")) {
-      a = new ClassicAnalyzer();
-    } else if (analyzer.equals("StandardAnalyzer")) {
-      a = new StandardAnalyzer();
-    } else if (analyzer.equals("StandardAnalyzerNoStopWords")) {
-      a = new StandardAnalyzer(CharArraySet.EMPTY_SET);
-    } else if (analyzer.equals("ShingleStandardAnalyzer")) {
-      a = new ShingleAnalyzerWrapper(new StandardAnalyzer(CharArraySet.EMPTY_SET),
-                                     2, 2, ShingleFilter.DEFAULT_TOKEN_SEPARATOR, true, true, ShingleFilter.DEFAULT_FILLER_TOKEN);
-    } else {
-      throw new RuntimeException("unknown analyzer " + analyzer);
-    } 
+    final Analyzer a = getAnalyzer(analyzer);
 
     final ReferenceManager<IndexSearcher> mgr;
     final IndexWriter writer;
     final Directory dir;
+    final ReopenPolicy reopenPolicy;
 
     final String commit = args.getString("-commit");
     final String hiliteImpl = args.getString("-hiliteImpl");
@@ -278,8 +323,25 @@ public class SearchPerfTest {
       // TODO: factor out & share this CL processing w/ Indexer
       final int indexThreadCount = args.getInt("-indexThreadCount");
       final String lineDocsFile = args.getString("-lineDocsFile");
-      final float docsPerSecPerThread = args.getFloat("-docsPerSecPerThread");
-      final float reopenEverySec = args.getFloat("-reopenEverySec");
+      // -rateProfile (see IngestRateLimiter) overrides -docsPerSecPerThread:
+      final IngestRateLimiter rateLimiter;
+      if (args.hasArg("-rateProfile")) {
+        rateLimiter = IngestRateLimiter.load(Paths.get(args.getString("-rateProfile")), indexThreadCount);
+      } else {
+        final float docsPerSecPerThread = args.getFloat("-docsPerSecPerThread");
+        if (docsPerSecPerThread > 0) {
+          rateLimiter = IngestRateLimiter.constant(docsPerSecPerThread * indexThreadCount, indexThreadCount);
+        } else {
+          rateLimiter = null;
+        }
+      }
+      // -reopenPolicy (see ReopenPolicy) overrides -reopenEverySec:
+      final String reopenPolicySpec;
+      if (args.hasArg("-reopenPolicy")) {
+        reopenPolicySpec = args.getString("-reopenPolicy");
+      } else {
+        reopenPolicySpec = "fixed:" + args.getFloat("-reopenEverySec");
+      }
       final boolean storeBody = args.getFlag("-store");
       final boolean tvsBody = args.getFlag("-tvs");
       final boolean useCFS = args.getFlag("-cfs");
@@ -288,8 +350,7 @@ public class SearchPerfTest {
       final boolean verbose = args.getFlag("-verbose");
       final boolean cloneDocs = args.getFlag("-cloneDocs");
       final Mode mode = Mode.valueOf(args.getString("-mode", "update").toUpperCase(Locale.ROOT));
-
-      final long reopenEveryMS = (long) (1000 * reopenEverySec);
+      final int batchSize = args.hasArg("-batchSize") ? args.getInt("-batchSize") : 1;
 
       if (verbose) {
         InfoStream.setDefault(new PrintStreamInfoStream(System.out));
@@ -354,7 +415,8 @@ public class SearchPerfTest {
       // hardwired false:
       boolean addDVFields = mode == Mode.BDV_UPDATE || mode == Mode.NDV_UPDATE;
       LineFileDocs lineFileDocs = new LineFileDocs(lineDocsFile, false, storeBody, tvsBody, false, cloneDocs, null, null, null, addDVFields, null, 0);
-      IndexThreads threads = new IndexThreads(new Random(17), writer, new AtomicBoolean(false), lineFileDocs, indexThreadCount, -1, false, false, mode, docsPerSecPerThread, null, -1.0, -1);
+      reopenPolicy = ReopenPolicy.parse(reopenPolicySpec, writer);
+      IndexThreads threads = new IndexThreads(new Random(17), writer, new AtomicBoolean(false), lineFileDocs, indexThreadCount, -1, false, false, mode, rateLimiter, reopenPolicy, -1.0, -1, batchSize, null);
       threads.start();
 
       mgr = new SearcherManager(writer, new SearcherFactory() {
@@ -367,7 +429,7 @@ public class SearchPerfTest {
           }
         });
 
-      System.out.println("reopen every " + reopenEverySec);
+      System.out.println("reopen policy " + reopenPolicy);
 
       Thread reopenThread = new Thread() {
           @Override
@@ -375,18 +437,10 @@ public class SearchPerfTest {
             try {
               final long startMS = System.currentTimeMillis();
 
-              int reopenCount = 1;
-              while (true) {
-                final long sleepMS = startMS + (reopenCount * reopenEveryMS) - System.currentTimeMillis();
-                if (sleepMS < 0) {
-                	System.out.println("WARNING: reopen fell behind by " + Math.abs(sleepMS) + " ms");
-                } else {
-                	Thread.sleep(sleepMS);
-                }
-
-                Thread.sleep(sleepMS);
+              while (reopenPolicy.awaitNextRefresh(Long.MAX_VALUE)) {
+                reopenPolicy.beforeRefresh();
                 mgr.maybeRefresh();
-                reopenCount++;
+                reopenPolicy.afterRefresh();
                 IndexSearcher s = mgr.acquire();
                 try {
                   System.out.println(String.format(Locale.ENGLISH, "%.1fs: done reopen; writer.maxDoc()=%d; searcher.maxDoc()=%d; searcher.numDocs()=%d",
@@ -409,6 +463,7 @@ public class SearchPerfTest {
     } else {
       dir = dir0;
       writer = null;
+      reopenPolicy = null;
       final DirectoryReader reader;
       if (commit != null && commit.length() > 0) {
         System.out.println("Opening searcher on commit=" + commit);
@@ -503,11 +558,25 @@ public class SearchPerfTest {
 
     final DirectSpellChecker spellChecker = new DirectSpellChecker();
     final IndexState indexState = new IndexState(mgr, taxoReader, fieldName, spellChecker, hiliteImpl, facetsConfig, facetDimMethods);
+    if (pkBloomBitsPerKey > 0) {
+      indexState.enablePKBloomFilters(pkBloomBitsPerKey);
+      System.out.println("PK bloom filters: " + pkBloomBitsPerKey + " bits per key");
+    }
+    if (facetExecutorService != null) {
+      indexState.enableFacetComparison(facetExecutorService);
+      System.out.println("Compare sequential vs concurrent facet counting");
+    }
+    if (profilePhases) {
+      indexState.enableSearchPhaseTimers();
+      System.out.println("Search phase timers enabled");
+    }
 
     final QueryParser queryParser = new QueryParser("body", a);
-    TaskParser taskParser = new TaskParser(indexState, queryParser, fieldName, topN, staticRandom, vectorFile, doStoredLoads);
+    TaskParser taskParser = new TaskParser(indexState, queryParser, fieldName, topN, staticRandom, vectorFile, doStoredLoads, totalHitsThreshold);
 
     final TaskSource tasks;
+    final OpenLoopTaskSource openLoopTasks;
+    final StreamingTaskSource streamingTasks;
 
     if (tasksFile.startsWith("server:")) {
       int idx = tasksFile.indexOf(':', 8);
@@ -520,14 +589,39 @@ public class SearchPerfTest {
 
       // nocommit must stop thread?
       tasks = remoteTasks;
+      openLoopTasks = null;
+      streamingTasks = null;
     } else {
       // Load the tasks from a file:
       final int taskRepeatCount = args.getInt("-taskRepeatCount");
       final int numTaskPerCat = args.getInt("-tasksPerCat");
-      tasks = new LocalTaskSource(indexState, taskParser, tasksFile, staticRandom, random, numTaskPerCat, taskRepeatCount, doPKLookup, doConcurrentSearches);
+      final TaskSource localTasks;
+      if (args.getFlag("-streamTasks")) {
+        // Don't hold all repeated tasks (and their results) in RAM, e.g. for long soak runs;
+        // instead each finished task is written to the log right away:
+        streamingTasks = new StreamingTaskSource(indexState, taskParser, tasksFile, staticRandom, random, numTaskPerCat, taskRepeatCount, doPKLookup, doBatchPKLookup, doConcurrentSearches, verifyCheckSum,
+                                                 new PrintStream(new BufferedOutputStream(new FileOutputStream(logFile))));
+        localTasks = streamingTasks;
+      } else {
+        streamingTasks = null;
+        localTasks = new LocalTaskSource(indexState, taskParser, tasksFile, staticRandom, random, numTaskPerCat, taskRepeatCount, doPKLookup, doBatchPKLookup, doConcurrentSearches);
+      }
       System.out.println("Task repeat count " + taskRepeatCount);
       System.out.println("Tasks file " + tasksFile);
       System.out.println("Num task per cat " + numTaskPerCat);
+
+      if (args.hasArg("-targetQPS")) {
+        // Open loop: issue tasks at a fixed arrival rate and
+        // measure latency from each task's intended send time:
+        final double targetQPS = args.getDouble("-targetQPS");
+        final String arrivals = args.getString("-arrivals", "poisson");
+        openLoopTasks = new OpenLoopTaskSource(localTasks, targetQPS, arrivals, new Random(randomSeed));
+        tasks = openLoopTasks;
+        System.out.println("Open loop target QPS " + targetQPS + " with " + arrivals + " arrivals");
+      } else {
+        openLoopTasks = null;
+        tasks = localTasks;
+      }
     }
 
     args.check();
@@ -535,19 +629,59 @@ public class SearchPerfTest {
     // Evil respeller:
     //spellChecker.setMinPrefix(0);
     //spellChecker.setMaxInspections(1024);
-    final TaskThreads taskThreads = new TaskThreads(tasks, indexState, searchThreadCount);
+    final TaskThreads taskThreads;
+    final VirtualThreads.CarrierStats carrierStats;
+    if (useVirtualThreads) {
+      taskThreads = new TaskThreads(tasks, indexState, searchThreadCount, VirtualThreads.newThreadFactory("SearchTask"));
+      carrierStats = new VirtualThreads.CarrierStats();
+    } else {
+      taskThreads = new TaskThreads(tasks, indexState, searchThreadCount);
+      carrierStats = null;
+    }
     Thread.sleep(10);
 
     final long startNanos = System.nanoTime();
+    if (carrierStats != null) {
+      carrierStats.start();
+    }
     taskThreads.start();
     taskThreads.finish();
     final long endNanos = System.nanoTime();
 
     System.out.println("\n" + ((endNanos - startNanos)/1000000.0) + " msec total");
+    if (carrierStats != null) {
+      carrierStats.print(System.out);
+    }
+
+    if (openLoopTasks != null) {
+      openLoopTasks.printStats(System.out);
+    }
+
+    final Map<String,Histogram> latencyHistograms = taskThreads.getLatencyHistograms();
+    TaskThreads.printLatencySummary(latencyHistograms, System.out);
+    long totalTaskCount = 0;
+    for (Histogram h : latencyHistograms.values()) {
+      totalTaskCount += h.getHistogramData().getTotalCount();
+    }
+    System.out.println(String.format(Locale.ROOT, "%d tasks; %.1f QPS", totalTaskCount, totalTaskCount / ((endNanos - startNanos)/1000000000.0)));
+    TaskThreads.writeLatencyHistograms(latencyHistograms, logFile);
+    indexState.printPKBloomStats(System.out);
+    indexState.printEarlyTerminationStats(System.out, totalHitsThreshold);
+    indexState.printFacetComparisonStats(System.out);
+    indexState.printSortedSetReaderStateStats(System.out);
+    if (reopenPolicy != null) {
+      reopenPolicy.printStats(System.out);
+    }
 
     final List<Task> allTasks = tasks.getAllTasks();
 
-    PrintStream out = new PrintStream(logFile);
+    final PrintStream out;
+    if (streamingTasks != null) {
+      // Already holds the results of every finished task:
+      out = streamingTasks.getResultsOut();
+    } else {
+      out = new PrintStream(logFile);
+    }
 
     if (allTasks != null) {
       // Tasks were local: verify checksums:
@@ -585,12 +719,22 @@ public class SearchPerfTest {
       }
 
       allTasks.clear();
+    } else if (streamingTasks != null) {
+      if (streamingTasks.checksumFailed()) {
+        throw new RuntimeException("some tasks got different results across different threads");
+      }
     }
 
+    indexState.printSearchPhaseStats(out);
+
     if (executorService != null) {
       executorService.shutdownNow();
     }
 
+    if (facetExecutorService != null) {
+      facetExecutorService.shutdownNow();
+    }
+
     mgr.close();
 
     if (taxoReader != null) {
@@ -623,6 +767,23 @@ public class SearchPerfTest {
     out.close();
   }
 
+  static Analyzer getAnalyzer(String analyzer) {
+    if (analyzer.equals("EnglishAnalyzer")) {
+      return new EnglishAnalyzer();
+    } else if (analyzer.equals("ClassicAnalyzer")) {
+      return new ClassicAnalyzer();
+    } else if (analyzer.equals("StandardAnalyzer")) {
+      return new StandardAnalyzer();
+    } else if (analyzer.equals("StandardAnalyzerNoStopWords")) {
+      return new StandardAnalyzer(CharArraySet.EMPTY_SET);
+    } else if (analyzer.equals("ShingleStandardAnalyzer")) {
+      return new ShingleAnalyzerWrapper(new StandardAnalyzer(CharArraySet.EMPTY_SET),
+                                        2, 2, ShingleFilter.DEFAULT_TOKEN_SEPARATOR, true, true, ShingleFilter.DEFAULT_FILLER_TOKEN);
+    } else {
+      throw new RuntimeException("unknown analyzer " + analyzer);
+    }
+  }
+
   private static IndexSearcher createIndexSearcher(IndexReader reader, ExecutorService executorService) {
       return new IndexSearcher(reader, executorService);
   }
@@ -0,0 +1,215 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Per-task phase timers for SearchTask (-profilePhases): each
+// phase records wall time (nanoTime) and, where the JVM supports
+// it, the search thread's CPU time, so we can tell where a
+// category's time goes without attaching a profiler.  Time in go
+// that is not inside any phase (highlighter setup, vector loads,
+// etc.) is reported as "other".
+final class SearchPhaseTimer {
+
+  enum Phase {
+    REWRITE("rewrite"),
+    WEIGHT("weight"),
+    SEARCH("search"),
+    HILITE("hilite"),
+    FACETS("facets"),
+    STORED_LOADS("storedLoads");
+
+    final String label;
+
+    Phase(String label) {
+      this.label = label;
+    }
+  }
+
+  private static final Phase[] PHASES = Phase.values();
+
+  private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+  /** Shared no-op timer, used when phase profiling is off. */
+  static final SearchPhaseTimer DISABLED = new SearchPhaseTimer(null);
+
+  private final Stats stats;
+  private final long[] wallNanos = new long[PHASES.length];
+  private final long[] cpuNanos = new long[PHASES.length];
+  // False if thread CPU time is unsupported here (e.g. on a
+  // virtual thread):
+  private boolean cpuValid = true;
+
+  private final long startWallNanos;
+  private final long startCPUNanos;
+
+  private Phase current;
+  private long phaseStartWallNanos;
+  private long phaseStartCPUNanos;
+
+  private SearchPhaseTimer(Stats stats) {
+    this.stats = stats;
+    if (stats != null) {
+      startWallNanos = System.nanoTime();
+      startCPUNanos = cpuNanos();
+    } else {
+      startWallNanos = 0;
+      startCPUNanos = 0;
+    }
+  }
+
+  public boolean isEnabled() {
+    return stats != null;
+  }
+
+  /** Ends the current phase, if any, and starts the next one. */
+  public void start(Phase phase) {
+    if (stats == null) {
+      return;
+    }
+    stop();
+    current = phase;
+    phaseStartWallNanos = System.nanoTime();
+    phaseStartCPUNanos = cpuNanos();
+  }
+
+  /** Ends the current phase, if any. */
+  public void stop() {
+    if (current == null) {
+      return;
+    }
+    wallNanos[current.ordinal()] += System.nanoTime() - phaseStartWallNanos;
+    final long cpu = cpuNanos();
+    if (cpu == -1 || phaseStartCPUNanos == -1) {
+      cpuValid = false;
+    } else {
+      cpuNanos[current.ordinal()] += cpu - phaseStartCPUNanos;
+    }
+    current = null;
+  }
+
+  /** Ends the current phase and adds this task's breakdown to its category. */
+  public void finish(String category) {
+    if (stats == null) {
+      return;
+    }
+    stop();
+    final long totalWallNanos = System.nanoTime() - startWallNanos;
+    final long cpu = cpuNanos();
+    if (cpu == -1 || startCPUNanos == -1) {
+      cpuValid = false;
+    }
+    stats.add(category, wallNanos, cpuValid ? cpuNanos : null, totalWallNanos, cpuValid ? cpu - startCPUNanos : 0);
+  }
+
+  private static long cpuNanos() {
+    try {
+      return threadBean.getCurrentThreadCpuTime();
+    } catch (UnsupportedOperationException uoe) {
+      return -1;
+    }
+  }
+
+  /** Per-category totals across all timed tasks. */
+  static final class Stats {
+
+    private final Map<String,CategoryStats> byCategory = new ConcurrentHashMap<>();
+
+    private static final class CategoryStats {
+      final LongAdder count = new LongAdder();
+      final LongAdder cpuCount = new LongAdder();
+      final LongAdder[] wallNanos = newAdders(PHASES.length + 1);
+      final LongAdder[] cpuNanos = newAdders(PHASES.length + 1);
+      final LongAdder totalWallNanos = new LongAdder();
+      final LongAdder totalCPUNanos = new LongAdder();
+    }
+
+    private static LongAdder[] newAdders(int count) {
+      final LongAdder[] adders = new LongAdder[count];
+      for (int i = 0; i < count; i++) {
+        adders[i] = new LongAdder();
+      }
+      return adders;
+    }
+
+    /** Returns a new timer for one task. */
+    public SearchPhaseTimer newTimer() {
+      return new SearchPhaseTimer(this);
+    }
+
+    void add(String category, long[] wallNanos, long[] cpuNanos, long totalWallNanos, long totalCPUNanos) {
+      final CategoryStats stats = byCategory.computeIfAbsent(category, k -> new CategoryStats());
+      stats.count.increment();
+      long otherWallNanos = totalWallNanos;
+      for (int i = 0; i < wallNanos.length; i++) {
+        stats.wallNanos[i].add(wallNanos[i]);
+        otherWallNanos -= wallNanos[i];
+      }
+      stats.wallNanos[PHASES.length].add(otherWallNanos);
+      stats.totalWallNanos.add(totalWallNanos);
+      if (cpuNanos != null) {
+        stats.cpuCount.increment();
+        long otherCPUNanos = totalCPUNanos;
+        for (int i = 0; i < cpuNanos.length; i++) {
+          stats.cpuNanos[i].add(cpuNanos[i]);
+          otherCPUNanos -= cpuNanos[i];
+        }
+        stats.cpuNanos[PHASES.length].add(otherCPUNanos);
+        stats.totalCPUNanos.add(totalCPUNanos);
+      }
+    }
+
+    /** Prints mean wall/CPU msec per task for each phase, by category. */
+    public void print(PrintStream out) {
+      if (byCategory.isEmpty()) {
+        return;
+      }
+      out.println("\nSearch phases: mean msec per task, wall/CPU, by category:");
+      final StringBuilder header = new StringBuilder(String.format(Locale.ROOT, "  %-24s %8s", "cat", "count"));
+      for (Phase phase : PHASES) {
+        header.append(String.format(Locale.ROOT, " %17s", phase.label));
+      }
+      header.append(String.format(Locale.ROOT, " %17s %17s", "other", "total"));
+      out.println(header);
+      for (Map.Entry<String,CategoryStats> ent : new TreeMap<>(byCategory).entrySet()) {
+        final CategoryStats stats = ent.getValue();
+        final long count = stats.count.sum();
+        final long cpuCount = stats.cpuCount.sum();
+        final StringBuilder b = new StringBuilder(String.format(Locale.ROOT, "  %-24s %8d", ent.getKey(), count));
+        for (int i = 0; i <= PHASES.length; i++) {
+          b.append(' ').append(formatMsec(stats.wallNanos[i].sum(), count, stats.cpuNanos[i].sum(), cpuCount));
+        }
+        b.append(' ').append(formatMsec(stats.totalWallNanos.sum(), count, stats.totalCPUNanos.sum(), cpuCount));
+        out.println(b);
+      }
+    }
+
+    private static String formatMsec(long wallNanos, long count, long cpuNanos, long cpuCount) {
+      final String cpu = cpuCount == 0 ? "n/a" : String.format(Locale.ROOT, "%.3f", cpuNanos/1000000.0/cpuCount);
+      return String.format(Locale.ROOT, "%17s", String.format(Locale.ROOT, "%.3f/%s", wallNanos/1000000.0/count, cpu));
+    }
+  }
+}
@@ -24,6 +24,7 @@ import org.apache.lucene.facet.Facets;
 import org.apache.lucene.facet.FacetsCollector;
 import org.apache.lucene.facet.range.LongRange;
 import org.apache.lucene.facet.range.LongRangeFacetCounts;
+import org.apache.lucene.facet.sortedset.ConcurrentSortedSetDocValuesFacetCounts;
 import org.apache.lucene.facet.sortedset.SortedSetDocValuesFacetCounts;
 import org.apache.lucene.facet.sortedset.SortedSetDocValuesReaderState;
 import org.apache.lucene.facet.taxonomy.FastTaxonomyFacetCounts;
@@ -33,18 +34,25 @@ import org.apache.lucene.index.RandomAccessVectorValues;
 import org.apache.lucene.index.RandomAccessVectorValuesProducer;
 import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.index.VectorValues;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.CollectionTerminatedException;
 import org.apache.lucene.search.Collector;
 import org.apache.lucene.search.Explanation;
 import org.apache.lucene.search.FieldDoc;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.ScoreMode;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopDocsCollector;
+import org.apache.lucene.search.TopFieldCollector;
 import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
 import org.apache.lucene.search.TotalHits;
+import org.apache.lucene.search.Weight;
 import org.apache.lucene.search.grouping.AllGroupsCollector;
 import org.apache.lucene.search.grouping.BlockGroupingCollector;
 import org.apache.lucene.search.grouping.FirstPassGroupingCollector;
@@ -65,9 +73,12 @@ import org.apache.lucene.util.BytesRef;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 
 final class SearchTask extends Task {
   private final String category;
@@ -80,6 +91,13 @@ final class SearchTask extends Task {
   private final boolean doHilite;
   private final boolean doStoredLoads;
   private final boolean doDrillSideways;
+  // If >= 0, top N searches run twice, counting hits exactly and
+  // with this early termination threshold, and compare:
+  private final int totalHitsThreshold;
+
+  // Matches IndexSearcher.search(q, n), which counts hits
+  // accurately up to 1000:
+  private static final int DEFAULT_TOTAL_HITS_THRESHOLD = 1000;
 
   private TopDocs hits;
   private TopGroups<?> groupsResultBlock;
@@ -91,10 +109,18 @@ final class SearchTask extends Task {
   private double getFacetResultsMsec;
   private List<String> facetRequests;
   private String vectorField;
+  private TopDocs approxHits;
+  private double exactMsec;
+  private double approxMsec;
+  private boolean identicalTopN;
+  private boolean compareFacets;
+  private double queryMsec;
+  private double concurrentFacetMsec;
+  private boolean identicalFacets;
 
   public SearchTask(String category, Query q, Sort s, String group, int topN,
                     boolean doHilite, boolean doStoredLoads, List<String> facetRequests,
-                    String vectorField, boolean doDrillSideways) {
+                    String vectorField, boolean doDrillSideways, int totalHitsThreshold) {
     this.category = category;
     this.q = q;
     this.s = s;
@@ -113,14 +139,15 @@ final class SearchTask extends Task {
     this.facetRequests = facetRequests;
     this.vectorField = vectorField;
     this.doDrillSideways = doDrillSideways;
+    this.totalHitsThreshold = totalHitsThreshold;
   }
 
   @Override
   public Task clone() {
     if (singlePassGroup) {
-      return new SearchTask(category, q, s, "groupblock1pass", topN, doHilite, doStoredLoads, facetRequests, vectorField, doDrillSideways);
+      return new SearchTask(category, q, s, "groupblock1pass", topN, doHilite, doStoredLoads, facetRequests, vectorField, doDrillSideways, totalHitsThreshold);
     } else {
-      return new SearchTask(category, q, s, group, topN, doHilite, doStoredLoads, facetRequests, vectorField, doDrillSideways);
+      return new SearchTask(category, q, s, group, topN, doHilite, doStoredLoads, facetRequests, vectorField, doDrillSideways, totalHitsThreshold);
     }
   }
 
@@ -129,10 +156,15 @@ final class SearchTask extends Task {
     return category;
   }
 
+  public Query getQuery() {
+    return q;
+  }
+
   @Override
   public void go(IndexState state) throws IOException {
     //System.out.println("go group=" + this.group + " single=" + singlePassGroup + " xxx=" + xxx + " this=" + this);
     final IndexSearcher searcher = state.mgr.acquire();
+    final SearchPhaseTimer timer = state.newSearchPhaseTimer();
 
     //System.out.println("GO query=" + q);
 
@@ -149,16 +181,19 @@ final class SearchTask extends Task {
 
       if (group != null) {
         if (singlePassGroup) {
+          timer.start(SearchPhaseTimer.Phase.SEARCH);
           final BlockGroupingCollector c = new BlockGroupingCollector(Sort.RELEVANCE, 10, true, searcher.createWeight(searcher.rewrite(state.groupEndQuery), ScoreMode.COMPLETE_NO_SCORES, 1));
           searcher.search(q, c);
           groupsResultBlock = c.getTopGroups(Sort.RELEVANCE, 0, 0, 10);
 
           if (doHilite) {
+            timer.start(SearchPhaseTimer.Phase.HILITE);
             hilite(groupsResultBlock, state, searcher);
           }
 
         } else {
           //System.out.println("GB: " + group);
+          timer.start(SearchPhaseTimer.Phase.SEARCH);
           final FirstPassGroupingCollector<BytesRef> c1 = new FirstPassGroupingCollector(new TermGroupSelector(group), Sort.RELEVANCE, 10);
 
           final Collector c;
@@ -185,6 +220,7 @@ final class SearchTask extends Task {
                                                           allGroupsCollector.getGroupCount());
             }
             if (doHilite) {
+              timer.start(SearchPhaseTimer.Phase.HILITE);
               hilite(groupsResultTerms, state, searcher);
             }
           }
@@ -196,77 +232,61 @@ final class SearchTask extends Task {
           // nocommit todo
           hits = null;
           facetResults = null;
+        } else if (state.getFacetExecutor() != null) {
+          compareFacetCounting(searcher, state, timer);
         } else if (q instanceof MatchAllDocsQuery) {
           facetResults = new ArrayList<FacetResult>();
+          timer.start(SearchPhaseTimer.Phase.FACETS);
           long t0 = System.nanoTime();
           for(String request : facetRequests) {
             if (request.startsWith("range:")) {
               throw new AssertionError("fix me!");
-            } else if (request.endsWith(".taxonomy")) {
-              // TODO: fixme to handle N facets in one indexed field!  Need to make the facet counts once per indexed field...
-              Facets facets = new FastTaxonomyFacetCounts(state.facetsConfig.getDimConfig(request).indexFieldName, searcher.getIndexReader(), state.taxoReader, state.facetsConfig);
-              facetResults.add(facets.getTopChildren(10, request));
-            } else if (request.endsWith(".sortedset")) {
-              // TODO: fixme to handle N facets in one SSDV field!  Need to make the facet counts once per indexed field...
-              SortedSetDocValuesReaderState ssdvFacetsState = state.getSortedSetReaderState(state.facetsConfig.getDimConfig(request).indexFieldName);
-              SortedSetDocValuesFacetCounts facets = new SortedSetDocValuesFacetCounts(ssdvFacetsState);
-              facetResults.add(facets.getTopChildren(10, request));
             } else {
-              // should have been prevented higher up:
-              throw new AssertionError("unknown facet method \"" + state.facetFields.get(request) + "\"");
+              facetResults.add(countFacets(searcher, state, request, null, null));
             }
           }
           getFacetResultsMsec = (System.nanoTime() - t0)/1000000.0;
         } else {
           facetResults = new ArrayList<FacetResult>();
           FacetsCollector fc = new FacetsCollector();
+          timer.start(SearchPhaseTimer.Phase.SEARCH);
           hits = FacetsCollector.search(searcher, q, 10, fc);
+          timer.start(SearchPhaseTimer.Phase.FACETS);
           long t0 = System.nanoTime();
           for(String request : facetRequests) {
             if (request.startsWith("range:")) {
-              int i = request.indexOf(':', 6);
-              if (i == -1) {
-                throw new IllegalArgumentException("range facets request \"" + request + "\" is missing field; should be range:field:0-10,10-20");
-              }
-              String field = request.substring(6, i);
-              String[] rangeStrings = request.substring(i+1, request.length()).split(",");
-              LongRange[] ranges = new LongRange[rangeStrings.length];
-              for(int rangeIDX=0;rangeIDX<ranges.length;rangeIDX++) {
-                String rangeString = rangeStrings[rangeIDX];
-                int j = rangeString.indexOf('-');
-                if (j == -1) {
-                  throw new IllegalArgumentException("range facets request should be X-Y; got: " + rangeString);
-                }
-                long start = Long.parseLong(rangeString.substring(0, j));
-                long end = Long.parseLong(rangeString.substring(j+1));
-                ranges[rangeIDX] = new LongRange(rangeString, start, true, end, true);
-              }
-              LongRangeFacetCounts facets = new LongRangeFacetCounts(field, fc, ranges);
-              facetResults.add(facets.getTopChildren(ranges.length, field));
-            } else if (request.endsWith(".taxonomy")) {
-              // TODO: fixme to handle N facets in one indexed field!  Need to make the facet counts once per indexed field...
-              Facets facets = new FastTaxonomyFacetCounts(state.facetsConfig.getDimConfig(request).indexFieldName, state.taxoReader, state.facetsConfig, fc);
-              facetResults.add(facets.getTopChildren(10, request));
-            } else if (request.endsWith(".sortedset")) {
-              // TODO: fixme to handle N facets in one SSDV field!  Need to make the facet counts once per indexed field...
-              SortedSetDocValuesReaderState ssdvFacetsState = state.getSortedSetReaderState(state.facetsConfig.getDimConfig(request).indexFieldName);
-              SortedSetDocValuesFacetCounts facets = new SortedSetDocValuesFacetCounts(ssdvFacetsState, fc);
-              facetResults.add(facets.getTopChildren(10, request));
+              facetResults.add(countRangeFacets(request, fc));
             } else {
-              // should have been prevented higher up:
-              throw new AssertionError("unknown facet method \"" + state.facetFields.get(request) + "\"");
+              facetResults.add(countFacets(searcher, state, request, fc, null));
             }
           }
           getFacetResultsMsec = (System.nanoTime() - t0)/1000000.0;
         }
+      } else if (totalHitsThreshold >= 0) {
+        timer.start(SearchPhaseTimer.Phase.SEARCH);
+        compareEarlyTermination(searcher, state);
+        if (doHilite) {
+          timer.start(SearchPhaseTimer.Phase.HILITE);
+          hilite(hits, state, searcher, q);
+        }
+      } else if (timer.isEnabled() && searcher.getExecutor() == null) {
+        hits = searchByPhase(searcher, timer);
+        if (doHilite) {
+          timer.start(SearchPhaseTimer.Phase.HILITE);
+          hilite(hits, state, searcher, q);
+        }
       } else if (s == null) {
+        timer.start(SearchPhaseTimer.Phase.SEARCH);
         hits = searcher.search(q, topN);
         if (doHilite) {
+          timer.start(SearchPhaseTimer.Phase.HILITE);
           hilite(hits, state, searcher, q);
         }
       } else {
+        timer.start(SearchPhaseTimer.Phase.SEARCH);
         hits = searcher.search(q, topN, s);
         if (doHilite) {
+          timer.start(SearchPhaseTimer.Phase.HILITE);
           hilite(hits, state, searcher, q);
         }
         /*
@@ -286,10 +306,12 @@ final class SearchTask extends Task {
         totalHitCount = hits.totalHits;
 
         if (doStoredLoads) {
+          timer.start(SearchPhaseTimer.Phase.STORED_LOADS);
           for (int i = 0; i < hits.scoreDocs.length; i++) {
             ScoreDoc scoreDoc = hits.scoreDocs[i];
             searcher.doc(scoreDoc.doc);
           }
+          timer.stop();
         }
         if (vectorField != null) {
           IndexReader reader = searcher.getIndexReader();
@@ -314,6 +336,7 @@ final class SearchTask extends Task {
       } else if (groupsResultBlock != null) {
         totalHitCount = new TotalHits(groupsResultBlock.totalHitCount, TotalHits.Relation.EQUAL_TO);
       }
+      timer.finish(category);
     } catch (Throwable t) {
       System.out.println("EXC: " + q);
       throw new RuntimeException(t);
@@ -325,6 +348,220 @@ final class SearchTask extends Task {
     }
   }
 
+  // Counts one taxonomy or SSDV facet request over the docs in fc,
+  // or over all docs if fc is null.  If exec is non-null, each leaf
+  // is counted by its own task on exec:
+  private FacetResult countFacets(IndexSearcher searcher, IndexState state, String request,
+                                  FacetsCollector fc, ExecutorService exec) throws IOException, InterruptedException {
+    final String indexFieldName = state.facetsConfig.getDimConfig(request).indexFieldName;
+    final Facets facets;
+    if (request.endsWith(".taxonomy")) {
+      // TODO: fixme to handle N facets in one indexed field!  Need to make the facet counts once per indexed field...
+      if (exec != null) {
+        if (fc == null) {
+          facets = ConcurrentTaxonomyFacetCounts.countAll(indexFieldName, searcher.getIndexReader(), state.taxoReader, state.facetsConfig, exec);
+        } else {
+          facets = ConcurrentTaxonomyFacetCounts.count(indexFieldName, state.taxoReader, state.facetsConfig, fc, exec);
+        }
+      } else if (fc == null) {
+        facets = new FastTaxonomyFacetCounts(indexFieldName, searcher.getIndexReader(), state.taxoReader, state.facetsConfig);
+      } else {
+        facets = new FastTaxonomyFacetCounts(indexFieldName, state.taxoReader, state.facetsConfig, fc);
+      }
+    } else if (request.endsWith(".sortedset")) {
+      // TODO: fixme to handle N facets in one SSDV field!  Need to make the facet counts once per indexed field...
+      SortedSetDocValuesReaderState ssdvFacetsState = state.getSortedSetReaderState(searcher.getIndexReader(), indexFieldName);
+      if (exec != null) {
+        if (fc == null) {
+          facets = new ConcurrentSortedSetDocValuesFacetCounts(ssdvFacetsState, exec);
+        } else {
+          facets = new ConcurrentSortedSetDocValuesFacetCounts(ssdvFacetsState, fc, exec);
+        }
+      } else if (fc == null) {
+        facets = new SortedSetDocValuesFacetCounts(ssdvFacetsState);
+      } else {
+        facets = new SortedSetDocValuesFacetCounts(ssdvFacetsState, fc);
+      }
+    } else {
+      // should have been prevented higher up:
+      throw new AssertionError("unknown facet method \"" + state.facetFields.get(request) + "\"");
+    }
+    return facets.getTopChildren(10, request);
+  }
+
+  private static FacetResult countRangeFacets(String request, FacetsCollector fc) throws IOException {
+    int i = request.indexOf(':', 6);
+    if (i == -1) {
+      throw new IllegalArgumentException("range facets request \"" + request + "\" is missing field; should be range:field:0-10,10-20");
+    }
+    String field = request.substring(6, i);
+    String[] rangeStrings = request.substring(i+1, request.length()).split(",");
+    LongRange[] ranges = new LongRange[rangeStrings.length];
+    for(int rangeIDX=0;rangeIDX<ranges.length;rangeIDX++) {
+      String rangeString = rangeStrings[rangeIDX];
+      int j = rangeString.indexOf('-');
+      if (j == -1) {
+        throw new IllegalArgumentException("range facets request should be X-Y; got: " + rangeString);
+      }
+      long start = Long.parseLong(rangeString.substring(0, j));
+      long end = Long.parseLong(rangeString.substring(j+1));
+      ranges[rangeIDX] = new LongRange(rangeString, start, true, end, true);
+    }
+    LongRangeFacetCounts facets = new LongRangeFacetCounts(field, fc, ranges);
+    return facets.getTopChildren(ranges.length, field);
+  }
+
+  // Runs the query once (unless it's match all), then counts each
+  // taxonomy and SSDV request both sequentially and concurrently, in
+  // random order, and checks they agree.  We keep the sequential
+  // results.  Query time is kept separate from facet counting time;
+  // range requests are only counted sequentially, and count toward
+  // neither:
+  private void compareFacetCounting(IndexSearcher searcher, IndexState state, SearchPhaseTimer timer) throws IOException, InterruptedException {
+    final FacetsCollector fc;
+    long queryNS = 0;
+    if (q instanceof MatchAllDocsQuery) {
+      fc = null;
+    } else {
+      fc = new FacetsCollector();
+      timer.start(SearchPhaseTimer.Phase.SEARCH);
+      long t0 = System.nanoTime();
+      hits = FacetsCollector.search(searcher, q, 10, fc);
+      queryNS = System.nanoTime() - t0;
+    }
+
+    timer.start(SearchPhaseTimer.Phase.FACETS);
+    facetResults = new ArrayList<FacetResult>();
+    long sequentialNS = 0;
+    long concurrentNS = 0;
+    boolean identical = true;
+    for(String request : facetRequests) {
+      if (request.startsWith("range:")) {
+        if (fc == null) {
+          throw new AssertionError("fix me!");
+        }
+        facetResults.add(countRangeFacets(request, fc));
+        continue;
+      }
+      final boolean sequentialFirst = ThreadLocalRandom.current().nextBoolean();
+      FacetResult sequential = null;
+      FacetResult concurrent = null;
+      for (int pass = 0; pass < 2; pass++) {
+        long t0 = System.nanoTime();
+        if ((pass == 0) == sequentialFirst) {
+          sequential = countFacets(searcher, state, request, fc, null);
+          sequentialNS += System.nanoTime() - t0;
+        } else {
+          concurrent = countFacets(searcher, state, request, fc, state.getFacetExecutor());
+          concurrentNS += System.nanoTime() - t0;
+        }
+      }
+      identical &= sequential.equals(concurrent);
+      facetResults.add(sequential);
+    }
+    queryMsec = queryNS/1000000.0;
+    getFacetResultsMsec = sequentialNS/1000000.0;
+    concurrentFacetMsec = concurrentNS/1000000.0;
+    identicalFacets = identical;
+    compareFacets = true;
+    state.recordFacetComparison(category, queryNS, sequentialNS, concurrentNS, identical);
+  }
+
+  // Same as searcher.search(q, topN[, s]) without an executor, but
+  // rewrites, creates the weight, and scores each leaf ourselves so
+  // each step gets its own phase timer:
+  private TopDocs searchByPhase(IndexSearcher searcher, SearchPhaseTimer timer) throws IOException {
+    timer.start(SearchPhaseTimer.Phase.REWRITE);
+    final Query rewritten = searcher.rewrite(q);
+    final int numHits = Math.min(topN, Math.max(1, searcher.getIndexReader().maxDoc()));
+    final TopDocsCollector<?> c;
+    if (s == null) {
+      c = TopScoreDocCollector.create(numHits, null, DEFAULT_TOTAL_HITS_THRESHOLD);
+    } else {
+      c = TopFieldCollector.create(s.rewrite(searcher), numHits, null, DEFAULT_TOTAL_HITS_THRESHOLD);
+    }
+
+    timer.start(SearchPhaseTimer.Phase.WEIGHT);
+    final Weight weight = searcher.createWeight(rewritten, c.scoreMode(), 1);
+
+    timer.start(SearchPhaseTimer.Phase.SEARCH);
+    for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+      final LeafCollector leafCollector;
+      try {
+        leafCollector = c.getLeafCollector(ctx);
+      } catch (CollectionTerminatedException e) {
+        continue;
+      }
+      final BulkScorer scorer = weight.bulkScorer(ctx);
+      if (scorer != null) {
+        try {
+          scorer.score(leafCollector, ctx.reader().getLiveDocs());
+        } catch (CollectionTerminatedException e) {
+          // collection was terminated early for this leaf
+        }
+      }
+    }
+    return c.topDocs();
+  }
+
+  // Runs the top N search with exact hit counting, and with
+  // totalHitsThreshold, which lets the collector skip
+  // non-competitive docs (WAND / block-max) once it has seen that
+  // many hits.  We keep the exact hits as this task's result, so
+  // checksums don't depend on the threshold:
+  private void compareEarlyTermination(IndexSearcher searcher, IndexState state) throws IOException {
+    // Alternate which one runs first, so neither always gets the
+    // other's warmed up caches:
+    final boolean exactFirst = ThreadLocalRandom.current().nextBoolean();
+    long exactNS;
+    long approxNS;
+    if (exactFirst) {
+      long t0 = System.nanoTime();
+      hits = searchTopN(searcher, Integer.MAX_VALUE);
+      exactNS = System.nanoTime() - t0;
+      t0 = System.nanoTime();
+      approxHits = searchTopN(searcher, totalHitsThreshold);
+      approxNS = System.nanoTime() - t0;
+    } else {
+      long t0 = System.nanoTime();
+      approxHits = searchTopN(searcher, totalHitsThreshold);
+      approxNS = System.nanoTime() - t0;
+      t0 = System.nanoTime();
+      hits = searchTopN(searcher, Integer.MAX_VALUE);
+      exactNS = System.nanoTime() - t0;
+    }
+    exactMsec = exactNS / 1000000.0;
+    approxMsec = approxNS / 1000000.0;
+    identicalTopN = sameTopN(hits, approxHits);
+    state.recordEarlyTermination(category, exactNS, approxNS, identicalTopN,
+                                 approxHits.totalHits.relation == TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO);
+  }
+
+  private TopDocs searchTopN(IndexSearcher searcher, int threshold) throws IOException {
+    if (s == null) {
+      return searcher.search(q, TopScoreDocCollector.createSharedManager(topN, null, threshold));
+    } else {
+      return searcher.search(q, TopFieldCollector.createSharedManager(s, topN, null, threshold));
+    }
+  }
+
+  private static boolean sameTopN(TopDocs a, TopDocs b) {
+    if (a.scoreDocs.length != b.scoreDocs.length) {
+      return false;
+    }
+    for (int i = 0; i < a.scoreDocs.length; i++) {
+      final ScoreDoc hitA = a.scoreDocs[i];
+      final ScoreDoc hitB = b.scoreDocs[i];
+      if (hitA.doc != hitB.doc || Float.compare(hitA.score, hitB.score) != 0) {
+        return false;
+      }
+      if (hitA instanceof FieldDoc && Arrays.equals(((FieldDoc) hitA).fields, ((FieldDoc) hitB).fields) == false) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   private void hilite(TopGroups<?> groups, IndexState indexState, IndexSearcher searcher) throws IOException {
     for(GroupDocs<?> group : groups.groups) {
       for(ScoreDoc sd : group.scoreDocs) {
@@ -557,9 +794,18 @@ final class SearchTask extends Task {
         }
       }
 
+      if (approxHits != null) {
+        out.println(String.format(Locale.ROOT, "  totalHitsThreshold=%d: exact %.4f msec, approx %.4f msec (%d%s hits); same top N: %b",
+                                  totalHitsThreshold, exactMsec, approxMsec, approxHits.totalHits.value,
+                                  approxHits.totalHits.relation == TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO ? "+" : "", identicalTopN));
+      }
       if (hiliteMsec > 0) {
         out.println(String.format(Locale.ROOT, "  hilite time %.4f msec", hiliteMsec));
       }
+      if (compareFacets) {
+        out.println(String.format(Locale.ROOT, "  facet counting: query %.4f msec, sequential %.4f msec, concurrent %.4f msec; same results: %b",
+                                  queryMsec, getFacetResultsMsec, concurrentFacetMsec, identicalFacets));
+      }
       if (getFacetResultsMsec > 0) {
         out.println(String.format(Locale.ROOT, "  getFacetResults time %.4f msec", getFacetResultsMsec));
       }
@@ -0,0 +1,382 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.util.BytesRef;
+
+// Warms newly merged segments with a list of pluggable warmers,
+// either on the merge thread (sync, IndexWriter's default) or
+// handed off to a dedicated pool (async) so the merge can
+// finish right away, at the risk of the segment becoming
+// searchable before it is warm.  Spec is <mode>:<warmer>,...
+// where mode is sync, async or async=<threads>, and warmers are:
+//
+//   search       one TermQuery on the body field (the old MergedReaderWarmer)
+//   norms        read all norms
+//   dv           read all doc values
+//   terms        scan every terms dict, then seek a sample of terms
+//                through the terms index
+//   queries=<N>  run the N most recently searched queries
+//
+// or "none" to not warm at all.
+class SegmentWarmers implements IndexWriter.IndexReaderWarmer {
+
+  interface Warmer {
+    void warm(LeafReader reader) throws IOException;
+  }
+
+  // Seek every Nth term, up to this many per field, when warming
+  // the terms index:
+  private static final int TERMS_SAMPLE_INTERVAL = 64;
+  private static final int MAX_SAMPLED_TERMS = 16384;
+
+  private final String spec;
+  private final String[] names;
+  private final Warmer[] warmers;
+  private final LongAdder[] warmNanos;
+  private final ThreadPoolExecutor pool;
+  private final RecentQueries recentQueries;
+
+  private final AtomicInteger warmedCount = new AtomicInteger();
+  private final AtomicInteger skippedCount = new AtomicInteger();
+  // For async: time from merge handing off the segment until
+  // all warmers finished:
+  private final LongAdder totalWarmLagNanos = new LongAdder();
+
+  // Keeps the JIT from skipping our reads:
+  private final LongAdder sink = new LongAdder();
+
+  // The N most recently searched distinct queries, most recent
+  // last:
+  static final class RecentQueries {
+    private final int maxSize;
+    private final LinkedHashMap<Query,Boolean> queries;
+
+    RecentQueries(int maxSize) {
+      this.maxSize = maxSize;
+      this.queries = new LinkedHashMap<Query,Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Query,Boolean> eldest) {
+          return size() > RecentQueries.this.maxSize;
+        }
+      };
+    }
+
+    public synchronized void add(Query query) {
+      queries.put(query, Boolean.TRUE);
+    }
+
+    public synchronized List<Query> get() {
+      return new ArrayList<>(queries.keySet());
+    }
+  }
+
+  public SegmentWarmers(String spec, String field) {
+    this.spec = spec;
+    if (spec.equals("none")) {
+      names = new String[0];
+      warmers = new Warmer[0];
+      warmNanos = new LongAdder[0];
+      pool = null;
+      recentQueries = null;
+      return;
+    }
+
+    final int colon = spec.indexOf(':');
+    if (colon == -1) {
+      throw new IllegalArgumentException("warmers spec must be none or <mode>:<warmer>,...; got: \"" + spec + "\"");
+    }
+    final String mode = spec.substring(0, colon);
+    if (mode.equals("sync")) {
+      pool = null;
+    } else if (mode.equals("async")) {
+      pool = newPool(1);
+    } else if (mode.startsWith("async=")) {
+      pool = newPool(Integer.parseInt(mode.substring(6)));
+    } else {
+      throw new IllegalArgumentException("warmers mode must be sync, async or async=<threads>; got: \"" + mode + "\"");
+    }
+
+    names = spec.substring(colon+1).split(",");
+    warmers = new Warmer[names.length];
+    warmNanos = new LongAdder[names.length];
+    RecentQueries recent = null;
+    for (int i = 0; i < names.length; i++) {
+      final String name = names[i];
+      if (name.equals("search")) {
+        warmers[i] = reader -> searchWarm(reader, field);
+      } else if (name.equals("norms")) {
+        warmers[i] = this::normsWarm;
+      } else if (name.equals("dv")) {
+        warmers[i] = this::docValuesWarm;
+      } else if (name.equals("terms")) {
+        warmers[i] = this::termsWarm;
+      } else if (name.startsWith("queries=")) {
+        if (recent != null) {
+          throw new IllegalArgumentException("queries warmer may only be listed once");
+        }
+        final RecentQueries queries = recent = new RecentQueries(Integer.parseInt(name.substring(8)));
+        warmers[i] = reader -> queriesWarm(reader, queries);
+      } else {
+        throw new IllegalArgumentException("unknown warmer \"" + name + "\"; must be search, norms, dv, terms or queries=<N>");
+      }
+      warmNanos[i] = new LongAdder();
+    }
+    recentQueries = recent;
+  }
+
+  private static ThreadPoolExecutor newPool(int threadCount) {
+    final AtomicInteger threadID = new AtomicInteger();
+    return new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+        Thread t = new Thread(r, "SegmentWarmer" + threadID.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+      });
+  }
+
+  /** Call for each query the search threads run, so the
+   *  queries warmer (if any) knows what is recent. */
+  public void recordQuery(Query query) {
+    if (recentQueries != null) {
+      recentQueries.add(query);
+    }
+  }
+
+  @Override
+  public void warm(LeafReader reader) throws IOException {
+    if (warmers.length == 0) {
+      return;
+    }
+    if (pool == null) {
+      warmNow(reader, System.nanoTime());
+    } else if (reader.tryIncRef()) {
+      pool.execute(new WarmTask(reader, System.nanoTime()));
+    } else {
+      skippedCount.incrementAndGet();
+    }
+  }
+
+  // Holds a reference to the reader until it is warmed, or
+  // dropped by close:
+  private final class WarmTask implements Runnable {
+    final LeafReader reader;
+    final long queuedNS;
+
+    WarmTask(LeafReader reader, long queuedNS) {
+      this.reader = reader;
+      this.queuedNS = queuedNS;
+    }
+
+    @Override
+    public void run() {
+      try {
+        try {
+          warmNow(reader, queuedNS);
+        } finally {
+          reader.decRef();
+        }
+      } catch (IOException ioe) {
+        throw new RuntimeException(ioe);
+      }
+    }
+  }
+
+  private void warmNow(LeafReader reader, long queuedNS) throws IOException {
+    final StringBuilder b = new StringBuilder();
+    try {
+      for (int i = 0; i < warmers.length; i++) {
+        final long t0 = System.nanoTime();
+        warmers[i].warm(reader);
+        final long nanos = System.nanoTime() - t0;
+        warmNanos[i].add(nanos);
+        b.append(String.format(Locale.ROOT, " %s:%.1f", names[i], nanos/1000000.0));
+      }
+    } catch (AlreadyClosedException ace) {
+      // Segment was merged away before we got to it
+      skippedCount.incrementAndGet();
+      return;
+    }
+    final long lagNS = System.nanoTime() - queuedNS;
+    totalWarmLagNanos.add(lagNS);
+    warmedCount.incrementAndGet();
+    System.out.println(String.format(Locale.ROOT, "warm took %.1f msec (%s;%s msec) maxDoc=%d",
+                                     lagNS/1000000.0, pool == null ? "sync" : "async", b, reader.maxDoc()));
+  }
+
+  private void searchWarm(LeafReader reader, String field) throws IOException {
+    IndexSearcher s = new IndexSearcher(reader);
+    s.setQueryCache(null); // don't bench the cache
+    s.search(new TermQuery(new Term(field, "10")), 10);
+  }
+
+  private void normsWarm(LeafReader reader) throws IOException {
+    long sum = 0;
+    for (FieldInfo fi : reader.getFieldInfos()) {
+      if (fi.hasNorms()) {
+        final NumericDocValues norms = reader.getNormValues(fi.name);
+        while (norms.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+          sum += norms.longValue();
+        }
+      }
+    }
+    sink.add(sum);
+  }
+
+  private void docValuesWarm(LeafReader reader) throws IOException {
+    long sum = 0;
+    for (FieldInfo fi : reader.getFieldInfos()) {
+      final DocValuesType type = fi.getDocValuesType();
+      if (type == DocValuesType.NUMERIC) {
+        final NumericDocValues dv = reader.getNumericDocValues(fi.name);
+        while (dv.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+          sum += dv.longValue();
+        }
+      } else if (type == DocValuesType.BINARY) {
+        final BinaryDocValues dv = reader.getBinaryDocValues(fi.name);
+        while (dv.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+          sum += dv.binaryValue().length;
+        }
+      } else if (type == DocValuesType.SORTED) {
+        final SortedDocValues dv = reader.getSortedDocValues(fi.name);
+        while (dv.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+          sum += dv.ordValue();
+        }
+      } else if (type == DocValuesType.SORTED_NUMERIC) {
+        final SortedNumericDocValues dv = reader.getSortedNumericDocValues(fi.name);
+        while (dv.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+          for (int i = 0; i < dv.docValueCount(); i++) {
+            sum += dv.nextValue();
+          }
+        }
+      } else if (type == DocValuesType.SORTED_SET) {
+        final SortedSetDocValues dv = reader.getSortedSetDocValues(fi.name);
+        while (dv.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+          long ord;
+          while ((ord = dv.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+            sum += ord;
+          }
+        }
+      }
+    }
+    sink.add(sum);
+  }
+
+  private void termsWarm(LeafReader reader) throws IOException {
+    long sum = 0;
+    final List<BytesRef> sample = new ArrayList<>();
+    for (FieldInfo fi : reader.getFieldInfos()) {
+      if (fi.getIndexOptions() == IndexOptions.NONE) {
+        continue;
+      }
+      final Terms terms = reader.terms(fi.name);
+      if (terms == null) {
+        continue;
+      }
+
+      // Sequential scan loads the terms dict blocks:
+      sample.clear();
+      TermsEnum te = terms.iterator();
+      long ord = 0;
+      BytesRef term;
+      while ((term = te.next()) != null) {
+        if (ord++ % TERMS_SAMPLE_INTERVAL == 0 && sample.size() < MAX_SAMPLED_TERMS) {
+          sample.add(BytesRef.deepCopyOf(term));
+        }
+        sum += te.docFreq();
+      }
+
+      // ... and seeking from a fresh enum walks the terms index:
+      te = terms.iterator();
+      for (BytesRef sampled : sample) {
+        if (te.seekExact(sampled)) {
+          sum += te.docFreq();
+        }
+      }
+    }
+    sink.add(sum);
+  }
+
+  private void queriesWarm(LeafReader reader, RecentQueries queries) throws IOException {
+    IndexSearcher s = new IndexSearcher(reader);
+    s.setQueryCache(null); // don't bench the cache
+    long sum = 0;
+    for (Query query : queries.get()) {
+      sum += s.search(query, 10).totalHits.value;
+    }
+    sink.add(sum);
+  }
+
+  /** Stops the pool, dropping segments not yet warmed; call
+   *  before closing the writer. */
+  public void close() throws IOException, InterruptedException {
+    if (pool != null) {
+      // Don't interrupt running warmers: that would close the
+      // NIOFSDirectory's channels:
+      final List<Runnable> queued = new ArrayList<>();
+      pool.getQueue().drainTo(queued);
+      pool.shutdown();
+      for (Runnable task : queued) {
+        ((WarmTask) task).reader.decRef();
+        skippedCount.incrementAndGet();
+      }
+      pool.awaitTermination(1, TimeUnit.MINUTES);
+    }
+  }
+
+  public void printStats(PrintStream out) {
+    final int warmed = warmedCount.get();
+    final StringBuilder b = new StringBuilder();
+    for (int i = 0; i < warmers.length; i++) {
+      b.append(String.format(Locale.ROOT, "; %s %.1f msec", names[i], warmNanos[i].sum()/1000000.0));
+    }
+    out.println(String.format(Locale.ROOT, "Warmers %s: warmed %d segments, skipped %d; avg %.1f msec from merge to warm%s",
+                              spec, warmed, skippedCount.get(),
+                              warmed == 0 ? 0.0 : totalWarmLagNanos.sum() / 1000000.0 / warmed, b));
+  }
+}
@@ -0,0 +1,249 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.lucene.facet.sortedset.DefaultSortedSetDocValuesReaderState;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesReaderState;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.OrdinalMap;
+import org.apache.lucene.index.SortedSetDocValues;
+
+// SSDV facet reader states per top-level reader (keyed by its
+// reader cache key), then per field.  States are built by the
+// first task that needs them, or up front by warm() after a
+// refresh, and dropped once their reader closes.
+//
+// Building a state is dominated by the OrdinalMap (segment to
+// global ords) and the dim to ord range map, both of which depend
+// only on the segments' doc values.  So if a reopen kept the same
+// segment cores (e.g. it only applied deletes), the new reader's
+// state reuses the previous one's instead of rebuilding.  Since an
+// OrdinalMap spans all segments, any new or merged segment still
+// means a full rebuild; we time both cases:
+final class SortedSetReaderStateCache {
+
+  private final Map<Object,Map<String,SortedSetDocValuesReaderState>> states = new ConcurrentHashMap<>();
+
+  // What the most recently built state for each field needs to be
+  // reused; this doesn't hold onto that state's reader:
+  private final Map<String,Reusable> lastBuilt = new ConcurrentHashMap<>();
+
+  private final Map<String,BuildStats> buildStats = new ConcurrentHashMap<>();
+
+  private static final class Reusable {
+    final List<Object> coreKeys;
+    final OrdinalMap ordinalMap;
+    final Map<String,SortedSetDocValuesReaderState.OrdRange> prefixToOrdRange;
+    final int size;
+
+    Reusable(List<Object> coreKeys, OrdinalMap ordinalMap, Map<String,SortedSetDocValuesReaderState.OrdRange> prefixToOrdRange, int size) {
+      this.coreKeys = coreKeys;
+      this.ordinalMap = ordinalMap;
+      this.prefixToOrdRange = prefixToOrdRange;
+      this.size = size;
+    }
+  }
+
+  private static final class BuildStats {
+    final LongAdder fullCount = new LongAdder();
+    final LongAdder fullNanos = new LongAdder();
+    final LongAccumulator fullMaxNanos = new LongAccumulator(Math::max, 0);
+    final LongAdder reusedCount = new LongAdder();
+    final LongAdder reusedNanos = new LongAdder();
+    final LongAccumulator reusedMaxNanos = new LongAccumulator(Math::max, 0);
+  }
+
+  /** Returns the SSDV facet state for this (top-level) reader,
+   *  which must be the reader of a searcher the caller holds. */
+  public SortedSetDocValuesReaderState get(IndexReader reader, String field) throws IOException {
+    final IndexReader.CacheHelper cacheHelper = reader.getReaderCacheHelper();
+    final Map<String,SortedSetDocValuesReaderState> readerStates = states.computeIfAbsent(cacheHelper.getKey(), key -> {
+        cacheHelper.addClosedListener(states::remove);
+        return new ConcurrentHashMap<>();
+      });
+    try {
+      return readerStates.computeIfAbsent(field, f -> {
+          try {
+            return build(reader, f);
+          } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+          }
+        });
+    } catch (UncheckedIOException uioe) {
+      throw uioe.getCause();
+    }
+  }
+
+  /** Builds (or reuses) states for every field tasks have asked
+   *  for so far, so the first tasks on a newly refreshed searcher
+   *  don't pay for it. */
+  public void warm(IndexReader reader) throws IOException {
+    for (String field : lastBuilt.keySet()) {
+      get(reader, field);
+    }
+  }
+
+  private SortedSetDocValuesReaderState build(IndexReader reader, String field) throws IOException {
+    final List<Object> coreKeys = new ArrayList<>();
+    for (LeafReaderContext ctx : reader.leaves()) {
+      coreKeys.add(ctx.reader().getCoreCacheHelper().getKey());
+    }
+
+    final long t0 = System.nanoTime();
+    final Reusable prev = lastBuilt.get(field);
+    final SortedSetDocValuesReaderState state;
+    final boolean reused;
+    if (prev != null && prev.coreKeys.equals(coreKeys)) {
+      state = new ReusedState(reader, field, prev);
+      reused = true;
+    } else {
+      state = new DefaultSortedSetDocValuesReaderState(reader, field);
+      final SortedSetDocValues dv = state.getDocValues();
+      final OrdinalMap ordinalMap = dv instanceof MultiDocValues.MultiSortedSetDocValues ? ((MultiDocValues.MultiSortedSetDocValues) dv).mapping : null;
+      lastBuilt.put(field, new Reusable(coreKeys, ordinalMap, state.getPrefixToOrdRange(), state.getSize()));
+      reused = false;
+    }
+    final long nanos = System.nanoTime() - t0;
+
+    final BuildStats stats = buildStats.computeIfAbsent(field, k -> new BuildStats());
+    if (reused) {
+      stats.reusedCount.increment();
+      stats.reusedNanos.add(nanos);
+      stats.reusedMaxNanos.accumulate(nanos);
+    } else {
+      stats.fullCount.increment();
+      stats.fullNanos.add(nanos);
+      stats.fullMaxNanos.accumulate(nanos);
+    }
+    return state;
+  }
+
+  /** Prints, per field, how many states were fully rebuilt vs
+   *  reused, and how long each took (ie per reopen, under NRT). */
+  public void printStats(PrintStream out) {
+    if (buildStats.isEmpty()) {
+      return;
+    }
+    out.println("\nSSDV facet reader states, by field:");
+    out.println(String.format(Locale.ROOT, "  %-24s %8s %10s %10s %8s %10s %10s",
+                              "field", "rebuilt", "meanMS", "maxMS", "reused", "meanMS", "maxMS"));
+    for (Map.Entry<String,BuildStats> ent : new TreeMap<>(buildStats).entrySet()) {
+      final BuildStats stats = ent.getValue();
+      final long fullCount = stats.fullCount.sum();
+      final long reusedCount = stats.reusedCount.sum();
+      out.println(String.format(Locale.ROOT, "  %-24s %8d %10.3f %10.3f %8d %10.3f %10.3f",
+                                ent.getKey(),
+                                fullCount, fullCount == 0 ? 0.0 : stats.fullNanos.sum()/1000000.0/fullCount, stats.fullMaxNanos.get()/1000000.0,
+                                reusedCount, reusedCount == 0 ? 0.0 : stats.reusedNanos.sum()/1000000.0/reusedCount, stats.reusedMaxNanos.get()/1000000.0));
+    }
+  }
+
+  // A state for a new reader over the same segment cores as the
+  // previous one, sharing its ordinal map and dim ord ranges; doc
+  // values (and deletions) still come from the new reader:
+  private static final class ReusedState extends SortedSetDocValuesReaderState {
+    private final IndexReader reader;
+    private final String field;
+    private final Reusable prev;
+
+    ReusedState(IndexReader reader, String field, Reusable prev) {
+      this.reader = reader;
+      this.field = field;
+      this.prev = prev;
+    }
+
+    @Override
+    public SortedSetDocValues getDocValues() throws IOException {
+      if (prev.ordinalMap == null) {
+        // Single segment, so no ordinal map to share:
+        return MultiDocValues.getSortedSetValues(reader, field);
+      }
+      // Same as DefaultSortedSetDocValuesReaderState, with the
+      // previous ordinal map:
+      final List<LeafReaderContext> leaves = reader.leaves();
+      final SortedSetDocValues[] values = new SortedSetDocValues[leaves.size()];
+      final int[] starts = new int[leaves.size() + 1];
+      long totalCost = 0;
+      for (int i = 0; i < values.length; i++) {
+        final LeafReader leaf = leaves.get(i).reader();
+        final FieldInfo fieldInfo = leaf.getFieldInfos().fieldInfo(field);
+        SortedSetDocValues v = null;
+        if (fieldInfo != null && fieldInfo.getDocValuesType() == DocValuesType.SORTED_SET) {
+          v = leaf.getSortedSetDocValues(field);
+        }
+        if (v == null) {
+          v = DocValues.emptySortedSet();
+        }
+        values[i] = v;
+        starts[i] = leaves.get(i).docBase;
+        totalCost += v.cost();
+      }
+      starts[values.length] = reader.maxDoc();
+      return new MultiDocValues.MultiSortedSetDocValues(values, starts, prev.ordinalMap, totalCost);
+    }
+
+    @Override
+    public String getField() {
+      return field;
+    }
+
+    @Override
+    public OrdRange getOrdRange(String dim) {
+      return prev.prefixToOrdRange.get(dim);
+    }
+
+    @Override
+    public Map<String,OrdRange> getPrefixToOrdRange() {
+      return prev.prefixToOrdRange;
+    }
+
+    @Override
+    public IndexReader getReader() {
+      return reader;
+    }
+
+    @Override
+    public int getSize() {
+      return prev.size;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+      // The shared ordinal map is accounted to the state that built it:
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,184 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.TotalHits;
+
+// Like LocalTaskSource, and visits tasks in the same order,
+// but never materializes the repeated tasks: the shuffled
+// order is generated lazily, one pass over the pruned tasks
+// at a time, and each call to nextTask clones a fresh task
+// that is dropped once it is done.  Each finished task's
+// results are written to the results log right away, in the
+// same format SearchPerfTest uses for local tasks, so
+// parseResults sees every instance just as for a normal run.
+// Checksums are folded into a per-task table as tasks finish,
+// so memory stays constant no matter how large taskRepeatCount
+// is:
+class StreamingTaskSource implements TaskSource {
+
+  // The pruned tasks, grouped (by category) if requested:
+  private final Task[][] groups;
+  private final int taskRepeatCount;
+  private final Random random;
+  private final boolean verifyChecksums;
+  private final IndexState indexState;
+  private final PrintStream resultsOut;
+
+  // guarded by this:
+  private int groupUpto;
+  private int iterUpto;
+  private int[] perm;
+  private int permUpto;
+  private long taskCount;
+
+  // Indexed by Task.taskID, which we set to the pruned task's
+  // ordinal; the first finished instance of each task is kept
+  // so we can print it if a later instance's checksum differs:
+  private final Task[] firstResults;
+  private final long[] checksums;
+  private volatile boolean checksumFailed;
+
+  public StreamingTaskSource(IndexState indexState, TaskParser taskParser, String tasksFile,
+                             Random staticRandom, Random random, int numTaskPerCat, int taskRepeatCount,
+                             boolean doPKLookup, boolean doBatchPKLookup, boolean groupByCat, boolean verifyChecksums,
+                             PrintStream resultsOut) throws IOException, ParseException {
+    final List<Task> prunedTasks = LocalTaskSource.loadPrunedTasks(indexState, taskParser, tasksFile, staticRandom, numTaskPerCat, doPKLookup, doBatchPKLookup);
+    for (int i = 0; i < prunedTasks.size(); i++) {
+      prunedTasks.get(i).taskID = i;
+    }
+
+    final List<List<Task>> groupsList = new ArrayList<>();
+    if (groupByCat) {
+      groupsList.addAll(LocalTaskSource.groupByCategory(prunedTasks));
+    } else {
+      groupsList.add(prunedTasks);
+    }
+    groups = new Task[groupsList.size()][];
+    for (int i = 0; i < groups.length; i++) {
+      groups[i] = groupsList.get(i).toArray(new Task[0]);
+    }
+
+    this.taskRepeatCount = taskRepeatCount;
+    this.random = random;
+    this.verifyChecksums = verifyChecksums;
+    this.indexState = indexState;
+    this.resultsOut = resultsOut;
+    firstResults = new Task[prunedTasks.size()];
+    checksums = new long[prunedTasks.size()];
+    final long taskLen = (long) prunedTasks.size() * taskRepeatCount;
+    System.out.println("TASK LEN=" + taskLen + " (streamed)");
+    resultsOut.println("\nResults for " + taskLen + " tasks (streamed):");
+  }
+
+  @Override
+  public synchronized Task nextTask() {
+    while (true) {
+      if (groupUpto == groups.length) {
+        return null;
+      }
+      final Task[] group = groups[groupUpto];
+      if (perm == null) {
+        perm = new int[group.length];
+        for (int i = 0; i < perm.length; i++) {
+          perm[i] = i;
+        }
+        iterUpto = 0;
+        permUpto = perm.length;
+      }
+      if (permUpto == perm.length) {
+        if (iterUpto == taskRepeatCount) {
+          // Done with this group
+          groupUpto++;
+          perm = null;
+          continue;
+        }
+        // Same swaps as Collections.shuffle, so we visit tasks
+        // in the same order as LocalTaskSource:
+        for (int i = perm.length; i > 1; i--) {
+          final int j = random.nextInt(i);
+          final int tmp = perm[i-1];
+          perm[i-1] = perm[j];
+          perm[j] = tmp;
+        }
+        iterUpto++;
+        permUpto = 0;
+      }
+      final Task template = group[perm[permUpto++]];
+      final Task task = template.clone();
+      task.taskID = template.taskID;
+      taskCount++;
+      return task;
+    }
+  }
+
+  @Override
+  public void taskDone(Task task, long queueTimeNS, TotalHits totalHitCount) throws IOException {
+    // Format outside of any lock; PrintStream.write is atomic, so
+    // blocks from different threads don't interleave:
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final PrintStream taskOut = new PrintStream(bytes);
+    taskOut.println("\nTASK: " + task);
+    taskOut.println("  " + (task.runTimeNanos/1000000.0) + " msec");
+    taskOut.println("  thread " + task.threadID);
+    task.printResults(taskOut, indexState);
+    taskOut.flush();
+    resultsOut.write(bytes.toByteArray(), 0, bytes.size());
+
+    final int ord = task.taskID;
+    final long checksum = verifyChecksums ? task.checksum() : 0;
+    synchronized (this) {
+      final Task first = firstResults[ord];
+      if (first == null) {
+        firstResults[ord] = task;
+        checksums[ord] = checksum;
+        return;
+      }
+      if (checksums[ord] != checksum) {
+        System.out.println("\nTASK:");
+        System.out.println(task);
+        System.out.println("\nOTHER TASK:");
+        System.out.println(first);
+        checksumFailed = true;
+      }
+    }
+  }
+
+  @Override
+  public List<Task> getAllTasks() {
+    // We don't hold onto every task:
+    return null;
+  }
+
+  public boolean checksumFailed() {
+    return checksumFailed;
+  }
+
+  /** Returns the results log every finished task was written to. */
+  public PrintStream getResultsOut() {
+    return resultsOut;
+  }
+}
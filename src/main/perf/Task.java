@@ -46,6 +46,12 @@ abstract class Task {
   public long runTimeNanos;
   public int threadID;
 
+  // Time from recvTimeNS (when the task arrived, or, in
+  // open-loop mode, when it was scheduled to be sent) until it
+  // finished, so this includes time spent waiting for a free
+  // search thread.  0 if the source does not set recvTimeNS:
+  public long latencyNanos;
+
   // Called after go, to return "summary" of the results.
   // This may use volatile docIDs -- the checksum is just
   // used to verify the same task run multiple times got
@@ -57,6 +57,7 @@ class TaskParser {
   private final int topN;
   private final Random random;
   private final boolean doStoredLoads;
+  private final int totalHitsThreshold;
   private final IndexState state;
   private final VectorDictionary vectorDictionary;
   private final String vectorField;
@@ -67,12 +68,14 @@ class TaskParser {
                     int topN,
                     Random random,
                     String vectorFile,
-                    boolean doStoredLoads) throws IOException {
+                    boolean doStoredLoads,
+                    int totalHitsThreshold) throws IOException {
     this.queryParser = queryParser;
     this.fieldName = fieldName;
     this.topN = topN;
     this.random = random;
     this.doStoredLoads = doStoredLoads;
+    this.totalHitsThreshold = totalHitsThreshold;
     this.state = state;
     if (vectorFile != null) {
       vectorDictionary = new VectorDictionary(vectorFile);
@@ -147,7 +150,7 @@ class TaskParser {
       Query query = buildQuery(taskType, text, parseMinShouldMatch());
       Query query2 = applyDrillDowns(query, drillDowns);
       Query query3 = applyFilter(query2, filter);
-      return new SearchTask(category, query2, sort, group, topN, doHilite, doStoredLoadsTask, facets, null, doDrillSideways);
+      return new SearchTask(category, query2, sort, group, topN, doHilite, doStoredLoadsTask, facets, null, doDrillSideways, totalHitsThreshold);
     }
 
     String[] parseTaskType(String line) {
@@ -17,23 +17,54 @@ package perf;
  * limitations under the License.
  */
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramData;
+import org.HdrHistogram.HistogramIterationValue;
+
 public class TaskThreads {  
 
+	// Latencies are recorded in microseconds; anything slower
+	// than this is clamped:
+	static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(10);
+
+	// 2 digits (1% resolution) keeps each histogram ~24 KB, since
+	// we have one per thread per category:
+	static final int LATENCY_SIGNIFICANT_DIGITS = 2;
+
 	private final Thread[] threads;
+	private final TaskThread[] taskThreads;
 	final CountDownLatch startLatch = new CountDownLatch(1);
 	final CountDownLatch stopLatch;
 	final AtomicBoolean stop;
 
 	public TaskThreads(TaskSource tasks, IndexState indexState, int numThreads) {
+		this(tasks, indexState, numThreads, Thread::new);
+	}
+
+	/** Runs each search thread's loop on a thread from the
+	 *  provided factory, e.g. virtual threads. */
+	public TaskThreads(TaskSource tasks, IndexState indexState, int numThreads, ThreadFactory threadFactory) {
 		threads = new Thread[numThreads];
+		taskThreads = new TaskThread[numThreads];
 		stopLatch = new CountDownLatch(numThreads);
 		stop = new AtomicBoolean(false);
 		for(int threadIDX=0;threadIDX<numThreads;threadIDX++) {
-			threads[threadIDX] = new TaskThread(startLatch, stopLatch, stop, tasks, indexState, threadIDX);
+			taskThreads[threadIDX] = new TaskThread(startLatch, stopLatch, stop, tasks, indexState, threadIDX);
+			threads[threadIDX] = threadFactory.newThread(taskThreads[threadIDX]);
 			threads[threadIDX].start();
 		}
 	}
@@ -53,7 +84,83 @@ public class TaskThreads {
 		}
 	}
 
-	private static class TaskThread extends Thread {
+	/** Merges all per-thread latency histograms, by category.
+	 *  Only call this after {@link #finish} or {@link #stop}. */
+	public Map<String,Histogram> getLatencyHistograms() {
+		final Map<String,Histogram> merged = new TreeMap<>();
+		for (TaskThread thread : taskThreads) {
+			for (Map.Entry<String,Histogram> ent : thread.latencyHistograms.entrySet()) {
+				Histogram h = merged.get(ent.getKey());
+				if (h == null) {
+					h = newLatencyHistogram();
+					merged.put(ent.getKey(), h);
+				}
+				h.add(ent.getValue());
+			}
+		}
+		return merged;
+	}
+
+	static Histogram newLatencyHistogram() {
+		return new Histogram(MAX_LATENCY_MICROS, LATENCY_SIGNIFICANT_DIGITS);
+	}
+
+	/** Prints count and p50/p99/p99.9/max latency (msec) per category. */
+	public static void printLatencySummary(Map<String,Histogram> histograms, PrintStream out) {
+		for (Map.Entry<String,Histogram> ent : histograms.entrySet()) {
+			final HistogramData data = ent.getValue().getHistogramData();
+			out.println(String.format(Locale.ROOT, "LATENCY cat=%s count=%d p50=%.3f p99=%.3f p99.9=%.3f max=%.3f msec",
+			                          ent.getKey(), data.getTotalCount(),
+			                          data.getValueAtPercentile(50.0)/1000.0,
+			                          data.getValueAtPercentile(99.0)/1000.0,
+			                          data.getValueAtPercentile(99.9)/1000.0,
+			                          data.getMaxValue()/1000.0));
+		}
+	}
+
+	/** Writes one pathPrefix.category.hgrm percentile distribution
+	 *  (in msec, like ToHGRM) per category, plus all categories to
+	 *  a compact binary pathPrefix.hlog. */
+	public static void writeLatencyHistograms(Map<String,Histogram> histograms, String pathPrefix) throws IOException {
+		for (Map.Entry<String,Histogram> ent : histograms.entrySet()) {
+			try (PrintStream out = new PrintStream(pathPrefix + "." + ent.getKey() + ".hgrm", "UTF-8")) {
+				ent.getValue().getHistogramData().outputPercentileDistribution(out, 5, 1000.0);
+			}
+		}
+
+		// Format: int version, int categoryCount, then per
+		// category: UTF name, vLong bucketCount, then bucketCount
+		// pairs of (vLong value delta from previous bucket, vLong
+		// count).  Values are in microseconds.
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(pathPrefix + ".hlog")))) {
+			out.writeInt(0);
+			out.writeInt(histograms.size());
+			for (Map.Entry<String,Histogram> ent : histograms.entrySet()) {
+				out.writeUTF(ent.getKey());
+				long bucketCount = 0;
+				for (HistogramIterationValue v : ent.getValue().getHistogramData().recordedValues()) {
+					bucketCount++;
+				}
+				writeVLong(out, bucketCount);
+				long lastValue = 0;
+				for (HistogramIterationValue v : ent.getValue().getHistogramData().recordedValues()) {
+					writeVLong(out, v.getValueIteratedTo() - lastValue);
+					writeVLong(out, v.getCountAtValueIteratedTo());
+					lastValue = v.getValueIteratedTo();
+				}
+			}
+		}
+	}
+
+	private static void writeVLong(DataOutputStream out, long v) throws IOException {
+		while ((v & ~0x7FL) != 0) {
+			out.writeByte((int) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.writeByte((int) v);
+	}
+
+	private static class TaskThread implements Runnable {
 		private final CountDownLatch startLatch;
 		private final CountDownLatch stopLatch;
 		private final AtomicBoolean stop;
@@ -61,6 +168,10 @@ public class TaskThreads {
 		private final IndexState indexState;
 		private final int threadID;
 
+		// category -> latency histogram; only touched by this thread
+		// until it finishes:
+		final Map<String,Histogram> latencyHistograms = new HashMap<>();
+
 		public TaskThread(CountDownLatch startLatch, CountDownLatch stopLatch, AtomicBoolean stop, TaskSource tasks, IndexState indexState, int threadID) {
 			this.startLatch = startLatch;
 			this.stopLatch = stopLatch;
@@ -82,8 +193,9 @@ public class TaskThreads {
 			try {
 				while (!stop.get()) {
 					final Task task = tasks.nextTask();
-					if (task == null) {
-						// Done
+					if (task == null || task == Task.END_TASK) {
+						// Done; RemoteTaskSource hands each thread one
+						// END_TASK when the client is done sending:
 						break;
 					}
 					final long t0 = System.nanoTime();
@@ -92,14 +204,21 @@ public class TaskThreads {
 					} catch (IOException ioe) {
 						throw new RuntimeException(ioe);
 					}
+					final long t1 = System.nanoTime();
+					task.runTimeNanos = t1-t0;
+					if (task.recvTimeNS != 0) {
+						task.latencyNanos = t1-task.recvTimeNS;
+					}
+					task.threadID = threadID;
+					// Set before taskDone, since the task source may
+					// print the finished task (StreamingTaskSource):
 					try {
 						tasks.taskDone(task, t0-task.recvTimeNS, task.totalHitCount);
 					} catch (Exception e) {
 						System.out.println(Thread.currentThread().getName() + ": ignoring exc:");
 						e.printStackTrace();
 					}
-					task.runTimeNanos = System.nanoTime()-t0;
-					task.threadID = threadID;
+					recordLatency(task);
 				}
 			} catch (Exception e) {
 				throw new RuntimeException(e);
@@ -107,5 +226,17 @@ public class TaskThreads {
 				stopLatch.countDown();
 			}
 		}
+
+		private void recordLatency(Task task) {
+			final String category = task.getCategory();
+			Histogram h = latencyHistograms.get(category);
+			if (h == null) {
+				// Only allocates the first time we see each category:
+				h = newLatencyHistogram();
+				latencyHistograms.put(category, h);
+			}
+			final long nanos = task.latencyNanos > 0 ? task.latencyNanos : task.runTimeNanos;
+			h.recordValue(Math.min(MAX_LATENCY_MICROS, Math.max(1, nanos / 1000)));
+		}
 	}
 }
@@ -1,6 +1,6 @@
 package perf;
 
-/*
+/**
  * Licensed to the Apache Software Foundation (ASF) under one or more
  * contributor license agreements.  See the NOTICE file distributed with
  * this work for additional information regarding copyright ownership.
@@ -17,75 +17,188 @@ package perf;
  * limitations under the License.
  */
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+// Maps tokens to unit-length word vectors.  Vectors live off-heap,
+// one after another by ordinal, and tokens are looked up through an
+// open-addressing table, so even large (300d, millions of words)
+// dictionaries cost little heap.  The text file is parsed in
+// parallel chunks the first time, and a compiled binary form is
+// written next to it (<file>.vecdict) that later runs just mmap.
 public class VectorDictionary {
 
-  private final Map<String, float[]> dict = new HashMap<>();
+  private static final int CACHE_MAGIC = 0x56444943;
+  private static final int CACHE_VERSION = 1;
+
+  // Each chunk of the text file that one thread parses; lines may
+  // run at most MAX_LINE_BYTES past the end of a chunk:
+  private static final long CHUNK_BYTES = 64L << 20;
+  private static final int MAX_LINE_BYTES = 1 << 20;
+
+  // Vectors are stored in pages of at most this many floats (1 GB),
+  // since a single (Mapped)ByteBuffer is limited to 2 GB:
+  private static final int MAX_PAGE_FLOATS = 1 << 28;
 
   public final int dimension;
 
+  // Number of ordinals, including ones with no token (zero vectors
+  // that were skipped):
+  private final int numOrds;
+  private final int vectorsPerPage;
+  private final FloatBuffer[] pages;
+
+  // Token for each ordinal is termChars[termStarts[ord]:termStarts[ord+1]]:
+  private final char[] termChars;
+  private final int[] termStarts;
+
+  // Open-addressing hash table of ord+1 (0 means empty), probed linearly:
+  private final int[] table;
+  private final int tableMask;
+  private final int size;
+
   public VectorDictionary(String filename) throws IOException {
     // read a dictionary file where each line has a token and its n-dimensional vector as text:
     // <word> <f1> <f2> ... <fn>
-    int dim = 0;
-    try (BufferedReader reader = Files.newBufferedReader(Paths.get(filename), StandardCharsets.UTF_8)) {
-      String line = reader.readLine();
-      dim = parseLine(line);
-      while ((line = reader.readLine()) != null) {
-        int lineDim = parseLine(line);
-        if (dim != lineDim) {
-          String err = String.format("vector dimension %s is not the initial dimension: %s for line: %s", lineDim, dim, line);
-          throw new IllegalStateException(err);
-        }
-        if (dict.size() % 10000 == 0) {
-          System.out.print("loaded " + dict.size() + "\n");
+    final Path path = Paths.get(filename);
+    final Path cachePath = Paths.get(filename + ".vecdict");
+    final long t0 = System.nanoTime();
+    Loaded loaded = null;
+    if (Files.exists(cachePath)) {
+      loaded = readCache(path, cachePath);
+    }
+    final boolean fromCache = loaded != null;
+    if (loaded == null) {
+      loaded = parseText(path);
+    }
+    dimension = loaded.dimension;
+    numOrds = loaded.numOrds;
+    vectorsPerPage = loaded.vectorsPerPage;
+    pages = loaded.pages;
+    termChars = loaded.termChars;
+    termStarts = loaded.termStarts;
+
+    int tableSize = Integer.highestOneBit(Math.max(2, numOrds) * 2 - 1) << 1;
+    table = new int[tableSize];
+    tableMask = tableSize - 1;
+    int count = 0;
+    for (int ord = 0; ord < numOrds; ord++) {
+      final int start = termStarts[ord];
+      final int length = termStarts[ord+1] - start;
+      if (length == 0) {
+        // skipped (zero vector)
+        continue;
+      }
+      int slot = slot(hash(termChars, start, length));
+      while (table[slot] != 0) {
+        if (termEquals(table[slot] - 1, termChars, start, length)) {
+          throw new IllegalStateException("token " + new String(termChars, start, length) + " seen twice");
         }
+        slot = (slot + 1) & tableMask;
       }
-    } catch (IOException e) {
-      System.err.println("An error occurred after reading " + dict.size() + " entries from " + filename);
-      throw e;
+      table[slot] = ord + 1;
+      count++;
     }
-    dimension = dim;
-    System.out.println("loaded " + dict.size());
+    size = count;
+    System.out.println(String.format(Locale.ROOT, "loaded %d %dd vectors from %s in %.1f sec",
+                                     size, dimension, fromCache ? cachePath : path, (System.nanoTime() - t0) / 1000000000.0));
+
+    if (fromCache == false) {
+      try {
+        writeCache(path, cachePath);
+      } catch (IOException ioe) {
+        System.err.println("WARN: could not write vector dictionary cache " + cachePath + ": " + ioe);
+      }
+    }
+  }
+
+  /** Number of tokens in the dictionary. */
+  public int size() {
+    return size;
   }
 
-  private int parseLine(String line) {
-    String[] parts = line.split(" ");
-    String token = parts[0];
-    if (dict.containsKey(token)) {
-      throw new IllegalStateException("token " + token + " seen twice");
+  /** Returns the ordinal for this token, or -1 if it is not in the dictionary. */
+  public int ordinal(String token) {
+    int slot = slot(token.hashCode());
+    while (true) {
+      final int ordPlusOne = table[slot];
+      if (ordPlusOne == 0) {
+        return -1;
+      }
+      final int start = termStarts[ordPlusOne - 1];
+      final int length = termStarts[ordPlusOne] - start;
+      if (length == token.length() && termEquals(token, start)) {
+        return ordPlusOne - 1;
+      }
+      slot = (slot + 1) & tableMask;
     }
-    float[] vector = new float[parts.length - 1];
-    double sum2 = 0;
-    for (int i = 1; i < parts.length; i++) {
-      vector[i - 1] = Float.parseFloat(parts[i]);
+  }
+
+  /** Returns the ordinal for the token chars[offset:offset+length], or -1 if it is not in the dictionary. */
+  public int ordinal(char[] chars, int offset, int length) {
+    int slot = slot(hash(chars, offset, length));
+    while (true) {
+      final int ordPlusOne = table[slot];
+      if (ordPlusOne == 0) {
+        return -1;
+      }
+      if (termEquals(ordPlusOne - 1, chars, offset, length)) {
+        return ordPlusOne - 1;
+      }
+      slot = (slot + 1) & tableMask;
     }
-    double norm = vectorNorm(vector);
-    // We want only unit vectors
-    if (norm > 0) {
-      vectorDiv(vector, norm);
-      dict.put(token, vector);
-    } else {
-      System.err.println("WARN: skipping token in dictionary with zero vector: " + token);
+  }
+
+  /** Adds the (unit) vector for this ordinal into accum. */
+  public void addVector(int ord, float[] accum) {
+    final FloatBuffer page = pages[ord / vectorsPerPage];
+    final int base = (ord % vectorsPerPage) * dimension;
+    for (int i = 0; i < dimension; i++) {
+      accum[i] += page.get(base + i);
+    }
+  }
+
+  /** Copies the (unit) vector for this ordinal into dest. */
+  public void getVector(int ord, float[] dest) {
+    final FloatBuffer page = pages[ord / vectorsPerPage];
+    final int base = (ord % vectorsPerPage) * dimension;
+    for (int i = 0; i < dimension; i++) {
+      dest[i] = page.get(base + i);
     }
-    return vector.length;
   }
 
   public float[] computeTextVector(String text) {
     float[] dvec = new float[dimension];
+    float[] tvec = new float[dimension];
     int count = 0;
     for (String token : tokenize(text)) {
-      float[] tvec = dict.get(token);
-      if (tvec != null) {
+      int ord = ordinal(token);
+      if (ord != -1) {
+        getVector(ord, tvec);
         if (Math.abs(vectorNorm(tvec) - 1) > 1e-5) {
           throw new IllegalStateException("Vector is not unitary for token '" + token + "'" +
                                           " norm=" + vectorNorm(tvec));
@@ -102,6 +215,462 @@ public class VectorDictionary {
     return dvec;
   }
 
+  /** Returns a new {@link TextVectorizer}; each thread should use its own. */
+  public TextVectorizer newTextVectorizer() {
+    return new TextVectorizer();
+  }
+
+  /** Allocation-free equivalent of {@link #computeTextVector}, for
+   *  embedding many documents.  Not thread safe, but cheap to create. */
+  public final class TextVectorizer {
+    // Our own views, so bulk reads don't race on the shared position:
+    private final FloatBuffer[] views = new FloatBuffer[pages.length];
+    private final float[] dvec = new float[dimension];
+    private final float[] tvec = new float[dimension];
+    private char[] token = new char[64];
+
+    TextVectorizer() {
+      for (int i = 0; i < pages.length; i++) {
+        views[i] = pages[i].duplicate();
+      }
+    }
+
+    /** Returns the unit-length average of the text's token vectors; the
+     *  returned array is reused by the next call. */
+    public float[] vector(CharSequence text) {
+      Arrays.fill(dvec, 0f);
+      final int length = text.length();
+      int i = 0;
+      while (i < length) {
+        // Same tokens (and lower casing, for all but a few special
+        // chars) as tokenize(), without the regex split:
+        while (i < length && isDelimiter(text.charAt(i))) {
+          i++;
+        }
+        int tokenLength = 0;
+        while (i < length && isDelimiter(text.charAt(i)) == false) {
+          if (tokenLength == token.length) {
+            token = Arrays.copyOf(token, token.length * 2);
+          }
+          token[tokenLength++] = Character.toLowerCase(text.charAt(i++));
+        }
+        if (tokenLength > 0) {
+          final int ord = ordinal(token, 0, tokenLength);
+          if (ord != -1) {
+            final FloatBuffer view = views[ord / vectorsPerPage];
+            view.position((ord % vectorsPerPage) * dimension);
+            view.get(tvec, 0, dimension);
+            // Vectors are normalized when loaded, so no need to check
+            // them here; this simple loop is auto-vectorized by C2:
+            for (int j = 0; j < dimension; j++) {
+              dvec[j] += tvec[j];
+            }
+          }
+        }
+      }
+      final double norm = vectorNorm(dvec);
+      vectorDiv(dvec, norm);
+      if (Math.abs(vectorNorm(dvec) - 1) > 1e-5) {
+        throw new IllegalStateException("Vector is not unitary for doc '" + text + "'" +
+                                        " norm=" + vectorNorm(dvec));
+      }
+      return dvec;
+    }
+  }
+
+  // The characters tokenize() splits on:
+  private static final boolean[] DELIMITERS = new boolean[128];
+  static {
+    for (char c : "][\\:\"'?/<> \t~`!@#$%^&*()+={}".toCharArray()) {
+      DELIMITERS[c] = true;
+    }
+  }
+
+  private static boolean isDelimiter(char c) {
+    return c < 128 && DELIMITERS[c];
+  }
+
+  // Same as String.hashCode, so ordinal(String) can use the cached hash:
+  private static int hash(char[] chars, int offset, int length) {
+    int h = 0;
+    for (int i = offset; i < offset + length; i++) {
+      h = 31 * h + chars[i];
+    }
+    return h;
+  }
+
+  private int slot(int hash) {
+    // Spread the bits since String.hashCode is weak in the low bits for short strings:
+    final int h = hash * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & tableMask;
+  }
+
+  private boolean termEquals(String token, int start) {
+    for (int i = 0; i < token.length(); i++) {
+      if (termChars[start + i] != token.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean termEquals(int ord, char[] chars, int offset, int length) {
+    final int start = termStarts[ord];
+    if (termStarts[ord+1] - start != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (termChars[start + i] != chars[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Everything the constructor needs, from the text file or the cache:
+  private static class Loaded {
+    int dimension;
+    int numOrds;
+    int vectorsPerPage;
+    FloatBuffer[] pages;
+    char[] termChars;
+    int[] termStarts;
+  }
+
+  private static int vectorsPerPage(int dimension) {
+    return Math.max(1, MAX_PAGE_FLOATS / dimension);
+  }
+
+  // Parses the text dictionary in parallel: one pass counts the
+  // (non-empty) lines in each chunk, so every line knows its
+  // ordinal, then a second pass parses each chunk straight into
+  // its slots of the off-heap pages:
+  private static Loaded parseText(Path path) throws IOException {
+    final int numThreads = Runtime.getRuntime().availableProcessors();
+    final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      final long fileLength = channel.size();
+      final int numChunks = (int) Math.max(1, (fileLength + CHUNK_BYTES - 1) / CHUNK_BYTES);
+
+      // Pass 1: count lines
+      final List<Future<Integer>> counts = new ArrayList<>();
+      for (int i = 0; i < numChunks; i++) {
+        final int chunk = i;
+        counts.add(executor.submit(() -> new ChunkParser(channel, chunk, fileLength).countLines()));
+      }
+      final int[] chunkStartOrd = new int[numChunks + 1];
+      for (int i = 0; i < numChunks; i++) {
+        final long total = (long) chunkStartOrd[i] + get(counts.get(i));
+        if (total > Integer.MAX_VALUE) {
+          throw new IllegalStateException("too many lines in " + path);
+        }
+        chunkStartOrd[i+1] = (int) total;
+      }
+      final int numOrds = chunkStartOrd[numChunks];
+      if (numOrds == 0) {
+        throw new IllegalStateException("no vectors in " + path);
+      }
+
+      final Loaded loaded = new Loaded();
+      loaded.dimension = new ChunkParser(channel, 0, fileLength).firstLineDimension();
+      loaded.numOrds = numOrds;
+      loaded.vectorsPerPage = vectorsPerPage(loaded.dimension);
+      loaded.pages = new FloatBuffer[(numOrds + loaded.vectorsPerPage - 1) / loaded.vectorsPerPage];
+      for (int i = 0; i < loaded.pages.length; i++) {
+        final int vectorCount = Math.min(loaded.vectorsPerPage, numOrds - i * loaded.vectorsPerPage);
+        loaded.pages[i] = ByteBuffer.allocateDirect(vectorCount * loaded.dimension * Float.BYTES)
+          .order(ByteOrder.nativeOrder()).asFloatBuffer();
+      }
+
+      // Pass 2: parse
+      final String[] terms = new String[numOrds];
+      final List<Future<Integer>> parsed = new ArrayList<>();
+      for (int i = 0; i < numChunks; i++) {
+        final int chunk = i;
+        parsed.add(executor.submit(() -> new ChunkParser(channel, chunk, fileLength).parse(loaded, terms, chunkStartOrd[chunk])));
+      }
+      for (Future<Integer> f : parsed) {
+        get(f);
+      }
+
+      int totalChars = 0;
+      for (String term : terms) {
+        if (term != null) {
+          totalChars += term.length();
+        }
+      }
+      loaded.termChars = new char[totalChars];
+      loaded.termStarts = new int[numOrds + 1];
+      int upto = 0;
+      for (int ord = 0; ord < numOrds; ord++) {
+        loaded.termStarts[ord] = upto;
+        if (terms[ord] != null) {
+          terms[ord].getChars(0, terms[ord].length(), loaded.termChars, upto);
+          upto += terms[ord].length();
+        }
+      }
+      loaded.termStarts[numOrds] = upto;
+      return loaded;
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static int get(Future<Integer> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(ie);
+    } catch (ExecutionException ee) {
+      final Throwable cause = ee.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else {
+        throw new RuntimeException(cause);
+      }
+    }
+  }
+
+  // Parses the lines that start inside one chunk of the text file;
+  // a line starts at p if p is 0 or the byte before it is \n:
+  private static class ChunkParser {
+    private final MappedByteBuffer buffer;
+    private final long mapStart;
+    private final long chunkStart;
+    private final long chunkEnd;
+    private final long fileLength;
+    private byte[] line = new byte[1024];
+    private int lineLength;
+
+    ChunkParser(FileChannel channel, int chunk, long fileLength) throws IOException {
+      this.fileLength = fileLength;
+      chunkStart = chunk * CHUNK_BYTES;
+      chunkEnd = Math.min(fileLength, chunkStart + CHUNK_BYTES);
+      // Map one byte before (to see if a line starts at chunkStart)
+      // and enough after for the last line to finish:
+      mapStart = Math.max(0, chunkStart - 1);
+      final long mapEnd = Math.min(fileLength, chunkEnd + MAX_LINE_BYTES);
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+    }
+
+    // Moves to the first line starting in this chunk; returns false if there is none:
+    private boolean seekFirstLine() {
+      long pos = chunkStart;
+      if (pos > 0) {
+        while (pos < chunkEnd && buffer.get((int) (pos - 1 - mapStart)) != '\n') {
+          pos++;
+        }
+      }
+      buffer.position((int) (pos - mapStart));
+      return pos < chunkEnd;
+    }
+
+    // Reads the line at the current position into line[], without the
+    // trailing \r\n; returns false once the next line starts past this
+    // chunk:
+    private boolean nextLine() {
+      final long pos = mapStart + buffer.position();
+      if (pos >= chunkEnd) {
+        return false;
+      }
+      lineLength = 0;
+      while (true) {
+        if (buffer.hasRemaining() == false) {
+          if (mapStart + buffer.position() < fileLength) {
+            throw new IllegalStateException("line at file offset " + pos + " is longer than " + MAX_LINE_BYTES + " bytes");
+          }
+          break;
+        }
+        final byte b = buffer.get();
+        if (b == '\n') {
+          break;
+        }
+        if (lineLength == line.length) {
+          byte[] newLine = new byte[line.length * 2];
+          System.arraycopy(line, 0, newLine, 0, lineLength);
+          line = newLine;
+        }
+        line[lineLength++] = b;
+      }
+      if (lineLength > 0 && line[lineLength-1] == '\r') {
+        lineLength--;
+      }
+      return true;
+    }
+
+    int countLines() {
+      int count = 0;
+      if (seekFirstLine()) {
+        while (nextLine()) {
+          if (lineLength > 0) {
+            count++;
+          }
+        }
+      }
+      return count;
+    }
+
+    int firstLineDimension() {
+      seekFirstLine();
+      while (nextLine()) {
+        if (lineLength > 0) {
+          int dim = 0;
+          for (int i = 0; i < lineLength; i++) {
+            if (line[i] == ' ' && i + 1 < lineLength && line[i+1] != ' ') {
+              dim++;
+            }
+          }
+          return dim;
+        }
+      }
+      throw new IllegalStateException("no vectors");
+    }
+
+    // Parses each line into terms[ord] and the vector pages:
+    int parse(Loaded loaded, String[] terms, int ord) {
+      final int dim = loaded.dimension;
+      final float[] vector = new float[dim];
+      int count = 0;
+      if (seekFirstLine() == false) {
+        return 0;
+      }
+      while (nextLine()) {
+        if (lineLength == 0) {
+          continue;
+        }
+        int upto = 0;
+        while (upto < lineLength && line[upto] != ' ') {
+          upto++;
+        }
+        final String token = new String(line, 0, upto, StandardCharsets.UTF_8);
+        int lineDim = 0;
+        while (upto < lineLength) {
+          // skip spaces
+          while (upto < lineLength && line[upto] == ' ') {
+            upto++;
+          }
+          final int start = upto;
+          while (upto < lineLength && line[upto] != ' ') {
+            upto++;
+          }
+          if (upto > start) {
+            if (lineDim == dim) {
+              lineDim++;
+              break;
+            }
+            vector[lineDim++] = Float.parseFloat(new String(line, start, upto - start, StandardCharsets.ISO_8859_1));
+          }
+        }
+        if (lineDim != dim) {
+          String err = String.format("vector dimension %s is not the initial dimension: %s for line: %s", lineDim, dim,
+                                     new String(line, 0, lineLength, StandardCharsets.UTF_8));
+          throw new IllegalStateException(err);
+        }
+        double norm = vectorNorm(vector);
+        // We want only unit vectors
+        if (norm > 0) {
+          vectorDiv(vector, norm);
+          terms[ord] = token;
+          // Other parsers write into the same page concurrently, so
+          // use absolute puts rather than the page's shared position:
+          final FloatBuffer page = loaded.pages[ord / loaded.vectorsPerPage];
+          final int base = (ord % loaded.vectorsPerPage) * dim;
+          for (int i = 0; i < dim; i++) {
+            page.put(base + i, vector[i]);
+          }
+        } else {
+          System.err.println("WARN: skipping token in dictionary with zero vector: " + token);
+        }
+        ord++;
+        count++;
+      }
+      return count;
+    }
+  }
+
+  // Cache layout: header (magic, version, source file length and
+  // modified time, dimension, numOrds), termStarts, termChars, then
+  // padding to a 4 byte boundary and the little-endian floats:
+  private void writeCache(Path path, Path cachePath) throws IOException {
+    final Path tmpPath = Paths.get(cachePath + ".tmp");
+    try (OutputStream os = Files.newOutputStream(tmpPath);
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16))) {
+      out.writeInt(CACHE_MAGIC);
+      out.writeInt(CACHE_VERSION);
+      out.writeLong(Files.size(path));
+      out.writeLong(Files.getLastModifiedTime(path).toMillis());
+      out.writeInt(dimension);
+      out.writeInt(numOrds);
+      for (int i = 0; i <= numOrds; i++) {
+        out.writeInt(termStarts[i]);
+      }
+      for (char c : termChars) {
+        out.writeChar(c);
+      }
+      long headerBytes = 4 + 4 + 8 + 8 + 4 + 4 + 4L * (numOrds + 1) + 2L * termChars.length;
+      while (headerBytes % Float.BYTES != 0) {
+        out.writeByte(0);
+        headerBytes++;
+      }
+      final ByteBuffer bytes = ByteBuffer.allocate(dimension * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      final float[] vector = new float[dimension];
+      for (int ord = 0; ord < numOrds; ord++) {
+        getVector(ord, vector);
+        bytes.clear();
+        bytes.asFloatBuffer().put(vector);
+        out.write(bytes.array());
+      }
+    }
+    Files.move(tmpPath, cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    System.out.println("wrote vector dictionary cache " + cachePath);
+  }
+
+  // Returns null if the cache is stale (source file changed) or from
+  // another version:
+  private static Loaded readCache(Path path, Path cachePath) throws IOException {
+    final Loaded loaded = new Loaded();
+    final long floatsStart;
+    try (InputStream is = Files.newInputStream(cachePath);
+         DataInputStream in = new DataInputStream(new BufferedInputStream(is, 1 << 16))) {
+      if (in.readInt() != CACHE_MAGIC || in.readInt() != CACHE_VERSION
+          || in.readLong() != Files.size(path) || in.readLong() != Files.getLastModifiedTime(path).toMillis()) {
+        System.out.println("vector dictionary cache " + cachePath + " is stale; re-parsing " + path);
+        return null;
+      }
+      loaded.dimension = in.readInt();
+      loaded.numOrds = in.readInt();
+      loaded.termStarts = new int[loaded.numOrds + 1];
+      for (int i = 0; i <= loaded.numOrds; i++) {
+        loaded.termStarts[i] = in.readInt();
+      }
+      loaded.termChars = new char[loaded.termStarts[loaded.numOrds]];
+      for (int i = 0; i < loaded.termChars.length; i++) {
+        loaded.termChars[i] = in.readChar();
+      }
+      long headerBytes = 4 + 4 + 8 + 8 + 4 + 4 + 4L * (loaded.numOrds + 1) + 2L * loaded.termChars.length;
+      floatsStart = (headerBytes + Float.BYTES - 1) / Float.BYTES * Float.BYTES;
+    }
+
+    loaded.vectorsPerPage = vectorsPerPage(loaded.dimension);
+    loaded.pages = new FloatBuffer[(loaded.numOrds + loaded.vectorsPerPage - 1) / loaded.vectorsPerPage];
+    try (FileChannel channel = FileChannel.open(cachePath, StandardOpenOption.READ)) {
+      final long pageBytes = (long) loaded.vectorsPerPage * loaded.dimension * Float.BYTES;
+      for (int i = 0; i < loaded.pages.length; i++) {
+        final int vectorCount = Math.min(loaded.vectorsPerPage, loaded.numOrds - i * loaded.vectorsPerPage);
+        final long bytes = (long) vectorCount * loaded.dimension * Float.BYTES;
+        if (floatsStart + i * pageBytes + bytes > channel.size()) {
+          throw new IllegalStateException("vector dictionary cache " + cachePath + " is truncated; delete it and retry");
+        }
+        loaded.pages[i] = channel.map(FileChannel.MapMode.READ_ONLY, floatsStart + i * pageBytes, bytes)
+          .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+      }
+    }
+    return loaded;
+  }
+
   static double vectorNorm(float[] x) {
     double sum2 = 0;
     for (float f : x) {
@@ -0,0 +1,149 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// Virtual thread support (-threadModel virtual).  We compile
+// against older JDKs, so everything goes through reflection and
+// fails up front if the running JVM has no virtual threads:
+class VirtualThreads {
+
+  // The default virtual thread scheduler's ForkJoinPool runs its
+  // carriers as this Thread subclass; other ForkJoinPools (e.g. an
+  // executor built on one) use plain worker threads:
+  private static final String CARRIER_CLASS = "jdk.internal.misc.CarrierThread";
+
+  private VirtualThreads() {
+  }
+
+  /** Returns a factory that starts named virtual threads (name0, name1, ...). */
+  public static ThreadFactory newThreadFactory(String name) {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name, 0L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("-threadModel virtual requires a JVM with virtual threads (Java 21+); running " + System.getProperty("java.version"), e);
+    }
+  }
+
+  /** Returns an executor that runs each submitted task on a new virtual thread. */
+  public static ExecutorService newThreadPerTaskExecutor(String name) {
+    final ThreadFactory factory = newThreadFactory(name);
+    try {
+      return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("-threadModel virtual requires a JVM with virtual threads (Java 21+); running " + System.getProperty("java.version"), e);
+    }
+  }
+
+  /** Tracks how busy the carrier threads were (CPU time over
+   *  wall time times scheduler parallelism) between start and
+   *  print.  Carriers may exit (and new ones start) during the run,
+   *  so we sample their CPU time periodically; a carrier that exits
+   *  loses at most its last sample interval. */
+  public static final class CarrierStats {
+    private static final long SAMPLE_MS = 100;
+
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    // By carrier thread ID: CPU time when first seen (0 if it
+    // started after start), and at its latest sample:
+    private final Map<Long,long[]> cpuNanos = new HashMap<>();
+    private long startNanos;
+    private Thread sampler;
+
+    public void start() {
+      startNanos = System.nanoTime();
+      sample(true);
+      sampler = new Thread() {
+        @Override
+        public void run() {
+          while (true) {
+            try {
+              Thread.sleep(SAMPLE_MS);
+            } catch (InterruptedException ie) {
+              return;
+            }
+            sample(false);
+          }
+        }
+      };
+      sampler.setName("CarrierStats");
+      sampler.setDaemon(true);
+      sampler.start();
+    }
+
+    private synchronized void sample(boolean first) {
+      for (Thread thread : liveThreads()) {
+        if (thread.getClass().getName().equals(CARRIER_CLASS)) {
+          final long cpu = threadBean.getThreadCpuTime(thread.getId());
+          if (cpu == -1) {
+            continue;
+          }
+          long[] cpus = cpuNanos.get(thread.getId());
+          if (cpus == null) {
+            cpus = new long[] {first ? cpu : 0, cpu};
+            cpuNanos.put(thread.getId(), cpus);
+          }
+          cpus[1] = cpu;
+        }
+      }
+    }
+
+    private static Thread[] liveThreads() {
+      ThreadGroup root = Thread.currentThread().getThreadGroup();
+      while (root.getParent() != null) {
+        root = root.getParent();
+      }
+      Thread[] threads = new Thread[root.activeCount() + 16];
+      int count;
+      while ((count = root.enumerate(threads, true)) == threads.length) {
+        threads = new Thread[2 * threads.length];
+      }
+      return Arrays.copyOf(threads, count);
+    }
+
+    public void print(PrintStream out) throws InterruptedException {
+      final long wallNanos = System.nanoTime() - startNanos;
+      sampler.interrupt();
+      sampler.join();
+      sample(false);
+      long totalCPUNanos = 0;
+      synchronized (this) {
+        for (long[] cpus : cpuNanos.values()) {
+          totalCPUNanos += cpus[1] - cpus[0];
+        }
+      }
+      final int parallelism = Integer.getInteger("jdk.virtualThreadScheduler.parallelism", Runtime.getRuntime().availableProcessors());
+      out.println(String.format(Locale.ROOT, "Carrier threads: %d seen (parallelism %d); %.1f%% utilized (%.1f sec CPU over %.1f sec, sampled every %d msec)",
+                                cpuNanos.size(), parallelism, 100.0 * totalCPUNanos / ((double) wallNanos * parallelism),
+                                totalCPUNanos / 1000000000.0, wallNanos / 1000000000.0, SAMPLE_MS));
+    }
+  }
+}
@@ -316,6 +316,25 @@ class PKLookupTask:
   def __hash__(self):
     return hash(self.pkOrd)
 
+class BatchPKLookupTask:
+  cat = 'BatchPKLookup'
+
+  def verifySame(self, other, verifyScores, verifyCounts):
+    # already "verified" in search perf test
+    pass
+
+  def __str__(self):
+    return 'BatchPK%s' % self.pkOrd
+
+  def __eq__(self, other):
+    if not isinstance(other, BatchPKLookupTask):
+      return False
+    else:
+      return self.pkOrd == other.pkOrd
+
+  def __hash__(self):
+    return hash(self.pkOrd)
+
 class PointsPKLookupTask:
   cat = 'PointsPKLookup'
 
@@ -451,6 +470,14 @@ def parseResults(resultsFiles):
             if line.find(b'getFacetResults time') != -1:
               task.getFacetResultsMsec = float(line.split()[2])
               continue
+            if line.find(b'facet counting:') != -1:
+              # sequential vs concurrent facet counting; SearchPerfTest
+              # prints the per-category summary
+              continue
+            if line.find(b'totalHitsThreshold=') != -1:
+              # exact vs early terminated comparison; SearchPerfTest
+              # prints the per-category summary
+              continue
 
             if line.startswith(b'HEAP: '):
               m = reHeap.match(decode(line))
@@ -547,6 +574,11 @@ def parseResults(resultsFiles):
         task.pkOrd = rePKOrd.search(decode(line)).group(1)
         task.msec = float(f.readline().strip().split()[0])
         task.threadID = int(f.readline().strip().split()[1])
+      elif line.startswith(b'TASK: BatchPK'):
+        task = BatchPKLookupTask()
+        task.pkOrd = rePKOrd.search(decode(line)).group(1)
+        task.msec = float(f.readline().strip().split()[0])
+        task.threadID = int(f.readline().strip().split()[1])
       elif line.startswith(b'TASK: PointsPK'):
         task = PointsPKLookupTask()
         task.pkOrd = rePKOrd.search(decode(line)).group(1)
@@ -906,6 +938,16 @@ class RunAlgs:
       if index.rearrange != 0:
         w('-rearrange', index.rearrange)
 
+      if index.batchSize != 1:
+        w('-batchSize', index.batchSize)
+
+      if index.metricsFile is not None:
+        w('-metricsFile', index.metricsFile)
+        w('-metricsIntervalMS', index.metricsIntervalMS)
+
+      if index.profileIndexWriter:
+        w('-profileIndexWriter')
+
       fullLogFile = '%s/%s.%s.log' % (constants.LOGS_DIR, id, index.getName())
 
       print('    log %s' % fullLogFile)
@@ -1107,8 +1149,18 @@ class RunAlgs:
       w('-printHeap')
     if c.pk:
       w('-pk')
+    if c.batchPK:
+      w('-batchPK')
+    if c.pkBloomBitsPerKey:
+      w('-pkBloomBitsPerKey', c.pkBloomBitsPerKey)
     if c.loadStoredFields:
       w('-loadStoredFields')
+    if c.totalHitsThreshold is not None:
+      w('-totalHitsThreshold', c.totalHitsThreshold)
+    if c.profilePhases:
+      w('-profilePhases')
+    if c.compareConcurrentFacets:
+      w('-compareConcurrentFacets')
     if c.vectorDict:
       w('-vectorDict', c.vectorDict)
 
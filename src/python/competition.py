@@ -122,7 +122,14 @@ class Index(object):
                # (rearrange % 100) / 10 gives how many medium segments desired
                # rearrange % 10 gives how many small segments desired
                # For example, rearrange = 555 means 5 large segments, 5 medium segments and 5 small segments
-               rearrange = 0
+               rearrange = 0,
+               # >1 to index that many docs per addDocuments call
+               batchSize = 1,
+               # if set, Indexer writes IngestMetrics JSON lines to this file
+               metricsFile = None,
+               metricsIntervalMS = 1000,
+               # True to print an IndexWriterProfiler timeline in the index log
+               profileIndexWriter = False
                ):
     self.checkout = checkout
     self.dataSource = dataSource
@@ -168,6 +175,10 @@ class Index(object):
       raise RuntimeError('SEGS_PER_LEVEL (%s) is greater than mergeFactor (%s)' % (SEGS_PER_LEVEL, mergeFactor))
     self.useCMS = useCMS
     self.rearrange = rearrange
+    self.batchSize = batchSize
+    self.metricsFile = metricsFile
+    self.metricsIntervalMS = metricsIntervalMS
+    self.profileIndexWriter = profileIndexWriter
 
   def getName(self):
     if self.assignedName is not None:
@@ -231,9 +242,18 @@ class Competitor(object):
                printHeap = False,
                hiliteImpl = 'FastVectorHighlighter',
                pk = True,
+               batchPK = False,
+               # > 0 to skip PK lookup seeks using per-segment bloom filters with this many bits per id:
+               pkBloomBitsPerKey = 0,
                vectorDict = None,
                loadStoredFields = False,
                concurrentSearches = False,
+               # if set, also run each top N search with this early termination threshold and compare to exact counts
+               totalHitsThreshold = None,
+               # time each search task's rewrite, weight, search, hilite, facets and stored loads, per category
+               profilePhases = False,
+               # count each taxonomy and SSDV facet request both sequentially and concurrently (per leaf), and compare
+               compareConcurrentFacets = False,
                javacCommand = constants.JAVAC_EXE):
     self.name = name
     self.checkout = checkout
@@ -252,10 +272,15 @@ class Competitor(object):
     self.printHeap = printHeap
     self.hiliteImpl = hiliteImpl
     self.pk = pk
+    self.batchPK = batchPK
+    self.pkBloomBitsPerKey = pkBloomBitsPerKey
     self.loadStoredFields = loadStoredFields
     self.vectorDict = vectorDict
     self.javacCommand = javacCommand
     self.concurrentSearches = concurrentSearches
+    self.totalHitsThreshold = totalHitsThreshold
+    self.profilePhases = profilePhases
+    self.compareConcurrentFacets = compareConcurrentFacets
 
   def getAggregateProfilerResult(self, id, mode, count=30, stackSize=1):
 
@@ -308,29 +333,45 @@ class Competitor(object):
     # Can we iterate the perf directory and get this list automatically?
     files = ['%s/perf/%s' % (perfSrc, x) for x in (
       'Args.java',
+      'ConcurrentTaxonomyFacetCounts.java',
+      'FlushStallTracker.java',
       'IndexState.java',
       'IndexThreads.java',
+      'IndexWriterProfiler.java',
+      'IngestMetrics.java',
+      'IngestRateLimiter.java',
       'NRTPerfTest.java',
+      'ReopenPolicy.java',
+      'SegmentWarmers.java',
       'Indexer.java',
+      'IndexerSweep.java',
       'KeepNoCommitsDeletionPolicy.java',
       'KnnQuery.java',
       'LineFileDocs.java',
       'LocalTaskSource.java',
       'OpenDirectory.java',
+      'OpenLoopTaskSource.java',
       'PKLookupTask.java',
+      'PKBloomFilter.java',
+      'BatchPKLookupTask.java',
       'PointsPKLookupTask.java',
       'PerfUtils.java',
       'RandomQuery.java',
       'RemoteTaskSource.java',
       'RespellTask.java',
+      'SearchConcurrencySweep.java',
       'SearchPerfTest.java',
+      'SearchPhaseTimer.java',
       'SearchTask.java',
+      'SortedSetReaderStateCache.java',
       'StatisticsHelper.java',
+      'StreamingTaskSource.java',
       'Task.java',
       'TaskParser.java',
       'TaskSource.java',
       'TaskThreads.java',
       'VectorDictionary.java',
+      'VirtualThreads.java',
       'BenchRearranger.java',
       'StringFieldDocSelector.java',
       )]
@@ -34,6 +34,12 @@ def run(command):
 
 reNRTReopenTime = re.compile('^Reopen: +([0-9.]+) msec$', re.MULTILINE)
 reByTime = re.compile('  (\d+) searches=(\d+) docs=(\d+) reopens=(\d+) totUpdateTime=(\d+)$')
+reSearchLatency = re.compile('^Search latency msec: n=\d+ p50=([0-9.]+) p99=([0-9.]+) max=([0-9.]+)$', re.MULTILINE)
+reVisibilityLag = re.compile('^Visibility lag msec: n=\d+ p50=([0-9.]+) p99=([0-9.]+) max=([0-9.]+)$', re.MULTILINE)
+rePostMergeLatency = re.compile('^Post-merge search latency msec: n=(\d+) p50=([0-9.]+) p99=([0-9.]+) max=([0-9.]+)$', re.MULTILINE)
+reSteadyLatency = re.compile('^Steady search latency msec: n=(\d+) p50=([0-9.]+) p99=([0-9.]+) max=([0-9.]+)$', re.MULTILINE)
+reMerges = re.compile('^Merges: (\d+) merges; ([0-9.]+) MB in ([0-9.]+) sec merge time \(([0-9.]+) MB/sec\)$', re.MULTILINE)
+reReopenPolicy = re.compile('^Reopen policy .*?: (\d+) refreshes .*reopen time ([0-9.]+)% of wall time, CPU ([0-9.]+)% of one core', re.MULTILINE)
 
 def runOne(classpath, data, docsPerSec, reopensPerSec, fullIndexPath, 
            mode='update',
@@ -43,8 +49,18 @@ def runOne(classpath, data, docsPerSec, reopensPerSec, fullIndexPath,
            numSearchThreads=1,
            numIndexThreads=constants.INDEX_NUM_THREADS,
            statsEverySec=1,
-           commit="no"):
-  logFileName = '%s/%s_dps%s_reopen%s.txt' % (constants.LOGS_DIR, mode, docsPerSec, reopensPerSec)
+           commit="no",
+           reopenPolicy=None,
+           warmers=None):
+  if reopenPolicy is None:
+    logFileName = '%s/%s_dps%s_reopen%s' % (constants.LOGS_DIR, mode, docsPerSec, reopensPerSec)
+  else:
+    logFileName = '%s/%s_dps%s_%s' % (constants.LOGS_DIR, mode, docsPerSec, reopenPolicy.replace(':', '_'))
+  if warmers is not None:
+    logFileName += '_warm_%s' % re.sub('[^a-z0-9=]', '_', warmers)
+    if reopenPolicy is None:
+      reopenPolicy = 'fixed:%s' % (1.0 / float(reopensPerSec))
+  logFileName += '.txt'
   print 'log: %s' % logFileName
   
   command = constants.JAVA_COMMAND
@@ -65,6 +81,10 @@ def runOne(classpath, data, docsPerSec, reopensPerSec, fullIndexPath,
   command += ' %s' % commit
   command += ' 0.0'
   command += ' %s' % data.tasksFile 
+  if reopenPolicy is not None:
+    command += ' %s' % reopenPolicy
+  if warmers is not None:
+    command += ' %s' % warmers
   command += ' > %s 2>&1' % logFileName
 
   if VERBOSE:
@@ -113,6 +133,30 @@ def runOne(classpath, data, docsPerSec, reopensPerSec, fullIndexPath,
     reopenStats.meanReopenTime = mean
     reopenStats.stddevReopenTime = stdDev
 
+    # Whole-run percentiles, for comparing reopen policies:
+    m = reSearchLatency.search(result)
+    if m is not None:
+      reopenStats.searchP50, reopenStats.searchP99, reopenStats.searchMax = [float(x) for x in m.groups()]
+    m = reVisibilityLag.search(result)
+    if m is not None:
+      reopenStats.lagP50, reopenStats.lagP99, reopenStats.lagMax = [float(x) for x in m.groups()]
+    m = rePostMergeLatency.search(result)
+    if m is not None:
+      reopenStats.postMergeCount = int(m.group(1))
+      reopenStats.postMergeP50, reopenStats.postMergeP99, reopenStats.postMergeMax = [float(x) for x in m.groups()[1:]]
+    m = reSteadyLatency.search(result)
+    if m is not None:
+      reopenStats.steadyP50, reopenStats.steadyP99, reopenStats.steadyMax = [float(x) for x in m.groups()[1:]]
+    m = reMerges.search(result)
+    if m is not None:
+      reopenStats.mergeCount = int(m.group(1))
+      reopenStats.mergeMBPerSec = float(m.group(4))
+    m = reReopenPolicy.search(result)
+    if m is not None:
+      reopenStats.policyRefreshes = int(m.group(1))
+      reopenStats.reopenWallPct = float(m.group(2))
+      reopenStats.reopenCPUPct = float(m.group(3))
+
     if VERBOSE:
       print 'reopen stats:'
       reopenStats.toString()
@@ -133,6 +177,16 @@ class ReopenStats:
     self.totalReopens = 0
     self.totalUpdateTime = 0
     self.qtCount = 0
+    self.searchP50 = self.searchP99 = self.searchMax = 0.0
+    self.lagP50 = self.lagP99 = self.lagMax = 0.0
+    self.policyRefreshes = 0
+    self.reopenWallPct = 0.0
+    self.reopenCPUPct = 0.0
+    self.postMergeCount = 0
+    self.postMergeP50 = self.postMergeP99 = self.postMergeMax = 0.0
+    self.steadyP50 = self.steadyP99 = self.steadyMax = 0.0
+    self.mergeCount = 0
+    self.mergeMBPerSec = 0.0
 
   def toString(self):
     print 'meanReopenTime=%s stdReopenTime=%s qtCount=%s totalDocs=%s totalReopen=%s totalSearches=%s totalUpdateTime=%s' % \
@@ -175,7 +229,92 @@ if __name__ == '__main__':
   runTimeSec = benchUtil.getArg('-rts', 60, True)
   numSearchThreads = benchUtil.getArg('-nst', 1, True) # default to 1 search thread
   numIndexThreads = benchUtil.getArg('-nit', constants.INDEX_NUM_THREADS, True)
-  
+  # eg -reopenPolicies fixed:1.0,staleness:500:0.1,ram:32 runs the same
+  # workload (same seed) under each policy and compares them:
+  reopenPolicies = benchUtil.getArg('-reopenPolicies', None, True)
+
+  # eg -warmers 'none/sync:search/async:norms,dv,terms/async:queries=50'
+  # compares the post-merge search latency spike, and merge
+  # throughput, of each segment warming config:
+  warmers = benchUtil.getArg('-warmers', None, True)
+
+  if warmers is not None:
+    for mode in modes.split(','):
+      for dps in docsPerSec.split(','):
+        allStats = []
+        for warmer in warmers.split('/'):
+          print
+          print 'params: mode=%s docs/sec=%s reopen/sec=%s warmers=%s runTime(s)=%s searchThreads=%s indexThreads=%s' \
+                  % (mode, dps, reopenPerSec, warmer, runTimeSec, numSearchThreads, numIndexThreads)
+          reopenStats = runOne(classpath=cp,
+                               mode=mode,
+                               data=sourceData,
+                               docsPerSec=dps,
+                               reopensPerSec=reopenPerSec,
+                               fullIndexPath=fip,
+                               runTimeSec=runTimeSec,
+                               numSearchThreads=numSearchThreads,
+                               numIndexThreads=numIndexThreads,
+                               warmers=warmer,
+                               )
+          allStats.append((warmer, reopenStats))
+
+        print
+        header = '%-40s %8s %12s %12s %12s %12s %7s %9s' % \
+                 ('warmers', 'postMrg', 'postMrgP50', 'postMrgP99', 'steadyP50', 'steadyP99', 'merges', 'mergeMB/s')
+        print ('%s docs/s=%s' % (mode, dps)).center(len(header))
+        print header
+        for warmer, reopenStats in allStats:
+          print '%-40s %8d %12.2f %12.2f %12.2f %12.2f %7d %9.1f' % \
+                (warmer,
+                 reopenStats.postMergeCount,
+                 reopenStats.postMergeP50,
+                 reopenStats.postMergeP99,
+                 reopenStats.steadyP50,
+                 reopenStats.steadyP99,
+                 reopenStats.mergeCount,
+                 reopenStats.mergeMBPerSec)
+    sys.exit(0)
+
+  if reopenPolicies is not None:
+    for mode in modes.split(','):
+      for dps in docsPerSec.split(','):
+        allStats = []
+        for policy in reopenPolicies.split(','):
+          print
+          print 'params: mode=%s docs/sec=%s reopenPolicy=%s runTime(s)=%s searchThreads=%s indexThreads=%s' \
+                  % (mode, dps, policy, runTimeSec, numSearchThreads, numIndexThreads)
+          reopenStats = runOne(classpath=cp,
+                               mode=mode,
+                               data=sourceData,
+                               docsPerSec=dps,
+                               reopensPerSec=1.0,
+                               fullIndexPath=fip,
+                               runTimeSec=runTimeSec,
+                               numSearchThreads=numSearchThreads,
+                               numIndexThreads=numIndexThreads,
+                               reopenPolicy=policy,
+                               )
+          allStats.append((policy, reopenStats))
+
+        print
+        header = '%-32s %8s %8s %8s %10s %10s %10s %10s %10s' % \
+                 ('policy', 'reopens', 'wall%', 'cpu%', 'lagP50(ms)', 'lagP99(ms)', 'lagMax(ms)', 'srchP50', 'srchP99')
+        print ('%s docs/s=%s' % (mode, dps)).center(len(header))
+        print header
+        for policy, reopenStats in allStats:
+          print '%-32s %8d %8.1f %8.1f %10.1f %10.1f %10.1f %10.2f %10.2f' % \
+                (policy,
+                 reopenStats.policyRefreshes,
+                 reopenStats.reopenWallPct,
+                 reopenStats.reopenCPUPct,
+                 reopenStats.lagP50,
+                 reopenStats.lagP99,
+                 reopenStats.lagMax,
+                 reopenStats.searchP50,
+                 reopenStats.searchP99)
+    sys.exit(0)
+
   for mode in modes.split(','):
     allStats = []
     for dps in docsPerSec.split(','):
@@ -39,7 +39,19 @@ sys.setcheckinterval(10)
 # We don't create cyclic garbage, and we want no hiccups:
 gc.disable()
 
-MAX_BYTES = 70
+# Tasks and results are sent as frames: 4 byte big-endian length,
+# then the UTF-8 bytes (see RemoteTaskSource.java):
+def frame(s):
+  return struct.pack('>i', len(s)) + s
+
+def recvFully(sock, count):
+  result = ''
+  while len(result) < count:
+    b = sock.recv(count - len(result))
+    if b == '':
+      raise RuntimeError('server closed connection')
+    result = result + b
+  return result
 
 # TODO
 #   - generalize this to send requests via http too
@@ -83,6 +95,8 @@ class Results:
     self.fOut = open(savFile, 'wb')
 
   def add(self, taskString, totalHitCount, timestamp, latencyMS, queueTimeMS):
+    # Task length is saved as one byte; tasks may now be longer:
+    taskString = taskString[:255]
     self.current.write(struct.pack('fffIB', timestamp, latencyMS, queueTimeMS, totalHitCount, len(taskString)))
     self.current.write(taskString)
     if self.current.tell() >= 64*1024:
@@ -121,7 +135,7 @@ class SendTasks:
 
   def send(self, startTime, task):
     self.sent[self.taskID] = (startTime, task)
-    self.queue.put(task)
+    self.queue.put(frame(task))
     self.taskID += 1
 
   def gatherResponses(self):
@@ -142,12 +156,12 @@ class SendTasks:
     latenciesInMS = []
     
     while True:
-      result = ''
-      while len(result) < 30:
-        result = result + self.sock.recv(30 - len(result))
+      length = struct.unpack('>i', recvFully(self.sock, 4))[0]
+      result = recvFully(self.sock, length)
       taskID, totalHitCount, queueTimeMS = result.split(':')
       taskID = int(taskID)
-      totalHitCount = int(totalHitCount)
+      # Trailing + means the count is a lower bound:
+      totalHitCount = int(totalHitCount.rstrip('+'))
       queueTimeMS = float(queueTimeMS)
       endTime = time.time()
       intSec = int(endTime)
@@ -253,11 +267,7 @@ def run(tasksFile, serverHost, serverPort, meanQPS, numTasksPerCat, runTimeSec,
     l = l.strip()
     if l == '':
       continue
-    s = l
-    if len(s) > MAX_BYTES:
-      raise RuntimeError('task is > %d bytes: %s' % (MAX_BYTES, l))
-    s = s + ((MAX_BYTES-len(s))*' ')
-    taskStrings.append(s)
+    taskStrings.append(l)
 
   r = random.Random(0)
   r.shuffle(taskStrings)